@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * BenchmarkFiles
+ *
+ * Test data for the benchmarks: files of random bytes in a temporary directory.
+ */
+public class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Writes a file of random bytes.
+     */
+    public static Path randomFile(long bytes) throws IOException {
+        Path file = Files.createTempFile("gcsuploader-bench", ".bin");
+        Random random = new Random(bytes);
+        byte[] block = new byte[1024 * 1024];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < bytes; written += block.length) {
+                random.nextBytes(block);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, bytes - written));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes count files of random bytes into a new directory.
+     */
+    public static Path randomFiles(int count, int bytes) throws IOException {
+        Path directory = Files.createTempDirectory("gcsuploader-bench");
+        Random random = new Random(count);
+        byte[] content = new byte[bytes];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(content);
+            Files.write(directory.resolve("file_" + i), content);
+        }
+        return directory;
+    }
+
+    /**
+     * Deletes a file, or a directory and everything in it.
+     */
+    public static void delete(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Discards the uploaders' per-file progress lines, which would otherwise
+     * dominate runs over many files. JMH reports results over its own channel.
+     */
+    public static void silenceStdout() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.solutions.gcsuploader.CRC32CFile;
+
+/**
+ * Measure CRC32CFile hashing of a whole file, by thread count and the size of
+ * the ranges each thread maps. Multiply ops/s by fileMegabytes for MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CRC32CFileBenchmark {
+
+    @Param({ "512" })
+    public int fileMegabytes;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    @Param({ "16", "64" })
+    public int rangeMegabytes;
+
+    private Path file;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.file = BenchmarkFiles.randomFile(this.fileMegabytes * 1000L * 1000L);
+        this.executor = Executors.newFixedThreadPool(this.threads);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.executor.shutdown();
+        BenchmarkFiles.delete(this.file);
+    }
+
+    @Benchmark
+    public int mappedRanges() throws IOException {
+        return new CRC32CFile(this.file.toString(), this.executor, this.rangeMegabytes * 1000L * 1000L).checksum();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.solutions.gcsuploader.FileSource;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.UploadRun;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+
+/**
+ * Measure the per-file overhead of a run over many small files: the directory
+ * walk, the pending-file limit, the nanny and the small-file pool. The fake adds
+ * a fixed latency per request, so the score is about how well the connections
+ * are kept busy. Reported as time per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    private static final int FILES = 1000;
+
+    @Param({ "16" })
+    public int fileKilobytes;
+
+    @Param({ "16", "64", "256" })
+    public int connections;
+
+    @Param({ "0", "20" })
+    public long latencyMillis;
+
+    private Path directory;
+    private FakeStorageRpc fake;
+    private UploadContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkFiles.silenceStdout();
+        this.directory = BenchmarkFiles.randomFiles(FILES, this.fileKilobytes * 1000);
+        this.fake = FakeStorageRpc.newBuilder()
+                .setLatencyMillis(this.latencyMillis)
+                .build();
+        this.context = UploadContext.newBuilder()
+                .setStorage(this.fake.getOptions().getService())
+                .setConnections(this.connections)
+                .setSmallFileConnections(this.connections)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.context.shutdown();
+        BenchmarkFiles.delete(this.directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public long uploadRun() throws InterruptedException {
+        UploadRun run = new UploadRun("bench", this.context);
+        run.run(new FileSource(Collections.singletonList(this.directory.toString()),
+                Collections.<String>emptyList(), '\n').start());
+        return run.getSucceeded();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+import com.google.solutions.gcsuploader.uploaders.SimpleUpload;
+import com.google.solutions.gcsuploader.uploaders.SmallUpload;
+
+/**
+ * Measure small files through the resumable SimpleUpload path and the
+ * single-request SmallUpload path, against FakeStorageRpc. The fake's latency
+ * per request is what the single-request path saves on, so the gap between the
+ * two grows with it. Reported as time per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmallFileBenchmark {
+
+    private static final int FILES = 1000;
+
+    @Param({ "100" })
+    public int fileKilobytes;
+
+    @Param({ "16", "64" })
+    public int connections;
+
+    @Param({ "0", "20" })
+    public long latencyMillis;
+
+    private Path directory;
+    private List<String> fileNames;
+    private FakeStorageRpc fake;
+    private UploadContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkFiles.silenceStdout();
+        this.directory = BenchmarkFiles.randomFiles(FILES, this.fileKilobytes * 1000);
+        try (Stream<Path> files = Files.list(this.directory)) {
+            this.fileNames = files.map(Path::toString).collect(Collectors.toList());
+        }
+        this.fake = FakeStorageRpc.newBuilder()
+                .setLatencyMillis(this.latencyMillis)
+                .build();
+        this.context = UploadContext.newBuilder()
+                .setStorage(this.fake.getOptions().getService())
+                .setConnections(this.connections)
+                .setSmallFileConnections(this.connections)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.context.shutdown();
+        BenchmarkFiles.delete(this.directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public int resumableUpload() {
+        List<CompletableFuture<Void>> uploads = new ArrayList<CompletableFuture<Void>>();
+        for (String fileName : this.fileNames) {
+            uploads.add(new SimpleUpload("bench", fileName, this.context).start());
+        }
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).join();
+        return uploads.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public int singleRequestUpload() {
+        List<CompletableFuture<Void>> uploads = new ArrayList<CompletableFuture<Void>>();
+        for (String fileName : this.fileNames) {
+            uploads.add(new SmallUpload("bench", fileName, this.context).start());
+        }
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).join();
+        return uploads.size();
+    }
+}
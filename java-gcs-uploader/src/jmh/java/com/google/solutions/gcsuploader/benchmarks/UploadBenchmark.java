@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+import com.google.solutions.gcsuploader.uploaders.CompositeUpload;
+import com.google.solutions.gcsuploader.uploaders.SimpleUpload;
+
+/**
+ * Measure whole-file uploads against FakeStorageRpc, so the numbers show the
+ * uploaders' own costs and how chunk size and slicing interact with a per-request
+ * latency, without a real bucket. Reported as time per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+    @Param({ "256" })
+    public int fileMegabytes;
+
+    @Param({ "2", "8", "15", "32" })
+    public int chunkMegabytes;
+
+    @Param({ "1", "4", "16", "32" })
+    public int slices;
+
+    @Param({ "16" })
+    public int threads;
+
+    @Param({ "0", "20" })
+    public long latencyMillis;
+
+    private Path file;
+    private FakeStorageRpc fake;
+    private UploadContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkFiles.silenceStdout();
+        this.file = BenchmarkFiles.randomFile(this.fileMegabytes * 1000L * 1000L);
+        this.fake = FakeStorageRpc.newBuilder()
+                .setLatencyMillis(this.latencyMillis)
+                .build();
+        this.context = UploadContext.newBuilder()
+                .setStorage(this.fake.getOptions().getService())
+                .setConnections(this.threads)
+                .setChunkSize(this.chunkMegabytes * 1000 * 1000)
+                .setSlices(this.slices)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.context.shutdown();
+        BenchmarkFiles.delete(this.file);
+    }
+
+    @Benchmark
+    public String simpleUpload() {
+        SimpleUpload upload = new SimpleUpload("bench", this.file.toString(), this.context);
+        upload.start().join();
+        return upload.getCrc32c();
+    }
+
+    @Benchmark
+    public String compositeUpload() {
+        CompositeUpload upload = new CompositeUpload("bench", this.file.toString(), this.context);
+        upload.start().join();
+        return upload.getCrc32c();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.benchmarks.BenchmarkFiles;
+
+/**
+ * Measure the read, hash and copy loop that each composite slice runs, with the
+ * network taken out: slices of one file are read in parallel from a shared
+ * channel, by the file's device readers, into sinks that buffer a chunk at a
+ * time, as a resumable writer does.
+ * Multiply ops/s by fileMegabytes for MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SliceCopyBenchmark {
+
+    @Param({ "512" })
+    public int fileMegabytes;
+
+    @Param({ "1", "4", "16" })
+    public int sliceCount;
+
+    @Param({ "1", "4", "8" })
+    public int threads;
+
+    @Param({ "8", "15", "64" })
+    public int chunkMegabytes;
+
+    @Param({ "1", "2" })
+    public int readersPerDevice;
+
+    private Path file;
+    private FileChannel input;
+    private ExecutorService executor;
+    private BandwidthGovernor governor;
+    private ReadAhead readAhead;
+    private ReadAhead.Device device;
+
+    /**
+     * Stands in for a resumable writer: fills a chunk buffer and empties it when full.
+     */
+    private static class ChunkSink implements WritableByteChannel {
+        private final ByteBuffer chunk;
+
+        ChunkSink(int chunkSize) {
+            this.chunk = ByteBuffer.allocate(chunkSize);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = 0;
+            while (source.hasRemaining()) {
+                if (!this.chunk.hasRemaining()) {
+                    this.chunk.clear();
+                }
+                int length = Math.min(source.remaining(), this.chunk.remaining());
+                ByteBuffer slice = source.duplicate();
+                slice.limit(slice.position() + length);
+                this.chunk.put(slice);
+                source.position(source.position() + length);
+                written += length;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        this.file = BenchmarkFiles.randomFile(this.fileMegabytes * 1000L * 1000L);
+        this.input = FileChannel.open(this.file, StandardOpenOption.READ);
+        this.executor = Executors.newFixedThreadPool(this.threads);
+        this.governor = new BandwidthGovernor(0, Constants.MAX_BUFFERED_BYTES);
+        this.readAhead = new ReadAhead(this.readersPerDevice,
+                (int) (this.governor.getMaxBufferedBytes() / 4 / Constants.IO_BUFFER_SIZE));
+        this.device = this.readAhead.deviceOf(this.file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.executor.shutdown();
+        this.readAhead.shutdown();
+        this.input.close();
+        BenchmarkFiles.delete(this.file);
+    }
+
+    @Benchmark
+    public int copySlices() throws Exception {
+        long fileBytes = this.input.size();
+        long sliceBytes = fileBytes / this.sliceCount;
+        int chunkSize = this.chunkMegabytes * 1000 * 1000;
+        List<Future<Integer>> slices = new ArrayList<Future<Integer>>();
+        for (int idx = 0; idx < this.sliceCount; idx++) {
+            long start = idx * sliceBytes;
+            long length = idx < this.sliceCount - 1 ? sliceBytes : fileBytes - start;
+            slices.add(this.executor.submit(
+                    () -> SliceReader.copy(this.input, this.device, start, length, new ChunkSink(chunkSize), this.governor)));
+        }
+        int crc32c = 0;
+        for (Future<Integer> slice : slices) {
+            crc32c ^= slice.get();
+        }
+        return crc32c;
+    }
+}
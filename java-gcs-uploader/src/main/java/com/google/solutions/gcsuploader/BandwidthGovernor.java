@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * BandwidthGovernor
+ *
+ * Shared limits on every upload in the process: a token bucket on bytes written
+ * per second, and a cap on the bytes that resumable writers may hold in their
+ * chunk buffers at once. Writers reserve their buffer before opening, and take
+ * tokens before each write.
+ */
+public class BandwidthGovernor implements BandwidthGovernorMXBean {
+
+    // buffer memory is counted in units of this many bytes, so a semaphore's int
+    // permits can cover a cap over 2 GB
+    private static final int BUFFER_UNIT = 1024;
+
+    /**
+     * The largest cap on buffered bytes a governor can keep.
+     */
+    public static final long MAX_BUFFERED_LIMIT = (long) Integer.MAX_VALUE * BUFFER_UNIT;
+
+    private volatile RateLimiter rateLimiter = null;
+    private volatile long bytesPerSecond = 0;
+    private final Semaphore buffered;
+    private final long maxBufferedBytes;
+    private final int maxBufferedUnits;
+
+    private final LongAdder bytesGranted = new LongAdder();
+    private final LongAdder throttledWrites = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder memoryWaits = new LongAdder();
+    private final LongAdder memoryWaitNanos = new LongAdder();
+
+    /**
+     * @param bytesPerSecond   upload rate limit, or 0 for unlimited.
+     * @param maxBufferedBytes cap on bytes held in writer chunk buffers, up to
+     *                         MAX_BUFFERED_LIMIT.
+     */
+    public BandwidthGovernor(long bytesPerSecond, long maxBufferedBytes) {
+        if (maxBufferedBytes <= 0 || maxBufferedBytes > MAX_BUFFERED_LIMIT) {
+            throw new IllegalArgumentException("Buffer cap must be from 1 to " + MAX_BUFFERED_LIMIT + " bytes");
+        }
+        this.maxBufferedUnits = units(maxBufferedBytes);
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.buffered = new Semaphore(this.maxBufferedUnits, true);
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Waits for the rate limiter to allow bytes to be written.
+     */
+    public void acquire(int bytes) {
+        RateLimiter limiter = this.rateLimiter;
+        if (limiter != null && bytes > 0) {
+            double waitedSeconds = limiter.acquire(bytes);
+            if (waitedSeconds > 0) {
+                this.throttledWrites.increment();
+                this.throttledNanos.add((long) (waitedSeconds * 1e9));
+            }
+        }
+        this.bytesGranted.add(bytes);
+    }
+
+    /**
+     * Reserves memory for a writer's chunk buffer, waiting if the cap is reached.
+     * Returns the amount reserved, which must be passed to releaseBuffer.
+     */
+    public int reserveBuffer(long bytes) throws InterruptedIOException {
+        int reserve = (int) Math.min(bytes, Math.min(this.maxBufferedBytes, Integer.MAX_VALUE));
+        int units = Math.min(units(reserve), this.maxBufferedUnits);
+        if (this.buffered.tryAcquire(units)) {
+            return reserve;
+        }
+        this.memoryWaits.increment();
+        long waitStart = System.nanoTime();
+        try {
+            this.buffered.acquire(units);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for buffer memory");
+        } finally {
+            this.memoryWaitNanos.add(System.nanoTime() - waitStart);
+        }
+        return reserve;
+    }
+
+    public void releaseBuffer(int reserved) {
+        this.buffered.release(Math.min(units(reserved), this.maxBufferedUnits));
+    }
+
+    private static int units(long bytes) {
+        return (int) ((bytes + BUFFER_UNIT - 1) / BUFFER_UNIT);
+    }
+
+    /**
+     * Publishes this governor over JMX, so its counters can be watched and its rate
+     * changed while uploads run.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("com.google.solutions.gcsuploader:type=BandwidthGovernor"));
+        } catch (JMException e) {
+            System.err.println("Could not register bandwidth governor over JMX: " + e.getMessage());
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        if (this.bytesPerSecond == 0) {
+            this.rateLimiter = null;
+        } else if (this.rateLimiter == null) {
+            this.rateLimiter = RateLimiter.create(this.bytesPerSecond);
+        } else {
+            this.rateLimiter.setRate(this.bytesPerSecond);
+        }
+    }
+
+    public long getBytesGranted() {
+        return this.bytesGranted.sum();
+    }
+
+    public long getThrottledWrites() {
+        return this.throttledWrites.sum();
+    }
+
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.throttledNanos.sum());
+    }
+
+    public long getMaxBufferedBytes() {
+        return this.maxBufferedBytes;
+    }
+
+    public long getBufferedBytes() {
+        return Math.min(this.maxBufferedBytes, (long) (this.maxBufferedUnits - this.buffered.availablePermits())
+                * BUFFER_UNIT);
+    }
+
+    public long getMemoryWaits() {
+        return this.memoryWaits.sum();
+    }
+
+    public long getMemoryWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.memoryWaitNanos.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "rate limit " + (this.bytesPerSecond == 0 ? "none" : this.bytesPerSecond + " B/s")
+                + ", " + getBytesGranted() + " bytes written"
+                + ", " + getThrottledWrites() + " writes throttled for " + getThrottledMillis() + " ms"
+                + ", " + getMemoryWaits() + " writers waited " + getMemoryWaitMillis() + " ms for buffer memory";
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+/**
+ * BandwidthGovernorMXBean
+ *
+ * The governor's limits and throttling counters, as exported over JMX. The rate
+ * limit can be changed from a JMX console while uploads run.
+ */
+public interface BandwidthGovernorMXBean {
+
+    /**
+     * Upload rate limit in bytes per second; 0 means unlimited.
+     */
+    public long getBytesPerSecond();
+
+    public void setBytesPerSecond(long bytesPerSecond);
+
+    public long getBytesGranted();
+
+    /**
+     * How many writes had to wait for the rate limiter, and for how long.
+     */
+    public long getThrottledWrites();
+
+    public long getThrottledMillis();
+
+    public long getMaxBufferedBytes();
+
+    public long getBufferedBytes();
+
+    /**
+     * How many writers had to wait for buffer memory, and for how long.
+     */
+    public long getMemoryWaits();
+
+    public long getMemoryWaitMillis();
+}
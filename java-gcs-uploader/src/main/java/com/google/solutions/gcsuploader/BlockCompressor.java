@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * BlockCompressor
+ *
+ * Compresses blocks of a file into gzip members on a pool with a thread per
+ * core. Concatenated gzip members are themselves a gzip stream, so blocks can be
+ * compressed independently and in parallel, and slices of members composed in
+ * order are still one valid stream. Blocks in flight, across every upload, are
+ * limited to a few per thread, which bounds the memory compression holds.
+ */
+public class BlockCompressor {
+
+    public static final String CONTENT_ENCODING = "gzip";
+
+    private final ExecutorService executor;
+    private final Semaphore blocks;
+    private final int level;
+
+    public BlockCompressor(int level, int threads) {
+        this.level = level;
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("compress-%d").setDaemon(true).build());
+        this.blocks = new Semaphore(threads * 2);
+    }
+
+    /**
+     * Compresses length bytes of input into one gzip member.
+     */
+    public static byte[] gzip(byte[] input, int length, int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024) {
+            {
+                this.def.setLevel(level);
+            }
+        }) {
+            gzip.write(input, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses a block on the pool. The caller must hold a block reservation,
+     * from tryReserve() or reserve(), until it has taken the result.
+     */
+    public Future<byte[]> submit(byte[] block, int length) {
+        return this.executor.submit(() -> {
+            try {
+                return gzip(block, length, this.level);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Reserves room for a block in flight, if there is some now.
+     */
+    public boolean tryReserve() {
+        return this.blocks.tryAcquire();
+    }
+
+    /**
+     * Reserves room for a block in flight, waiting for one. Callers holding
+     * reservations of their own should take their results first instead, so
+     * that every waiter holds none.
+     */
+    public void reserve() throws InterruptedIOException {
+        try {
+            this.blocks.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to compress");
+        }
+    }
+
+    public void release() {
+        this.blocks.release();
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+}
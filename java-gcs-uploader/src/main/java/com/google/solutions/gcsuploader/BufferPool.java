@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool
+ *
+ * A bounded pool of reusable direct buffers. Buffers are allocated lazily, up
+ * to the pool size, after which acquire() waits for one to be released.
+ */
+public class BufferPool {
+
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<ByteBuffer>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final int maxBuffers;
+    private final int bufferSize;
+
+    public BufferPool(int maxBuffers, int bufferSize) {
+        this.maxBuffers = maxBuffers;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, waiting if all are in use.
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = this.free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (this.allocated.incrementAndGet() <= this.maxBuffers) {
+            return ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        this.allocated.decrementAndGet();
+        return this.free.take();
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        this.free.add(buffer);
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+}
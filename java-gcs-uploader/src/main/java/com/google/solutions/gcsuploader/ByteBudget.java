@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ByteBudget
+ *
+ * A non-blocking, first-come first-served budget of bytes. acquire() returns a
+ * future that completes once the bytes are granted, so callers chain work on it
+ * instead of parking a thread. A request larger than the whole budget is
+ * granted the whole budget, so it runs alone rather than never.
+ */
+public class ByteBudget {
+
+    private final long capacity;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+    private long available;
+
+    public ByteBudget(long capacity) {
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+
+    /**
+     * Asks for bytes, returning a future of the amount granted, which is what must
+     * later be released.
+     */
+    public CompletableFuture<Long> acquire(long bytes) {
+        long grant = Math.max(0, Math.min(bytes, this.capacity));
+        synchronized (this) {
+            if (this.waiters.isEmpty() && this.available >= grant) {
+                this.available -= grant;
+                return CompletableFuture.completedFuture(grant);
+            }
+            Waiter waiter = new Waiter(grant);
+            this.waiters.add(waiter);
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Returns granted bytes, admitting waiters in order while they fit.
+     */
+    public void release(long bytes) {
+        List<Waiter> admitted = new ArrayList<Waiter>();
+        synchronized (this) {
+            this.available += bytes;
+            while (!this.waiters.isEmpty() && this.waiters.peek().bytes <= this.available) {
+                Waiter waiter = this.waiters.poll();
+                this.available -= waiter.bytes;
+                admitted.add(waiter);
+            }
+        }
+        // complete outside the lock, since completion runs dependent stages
+        for (Waiter waiter : admitted) {
+            waiter.future.complete(waiter.bytes);
+        }
+    }
+
+    public synchronized long getAvailable() {
+        return this.available;
+    }
+
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    private static class Waiter {
+        private final long bytes;
+        private final CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+        Waiter(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -16,46 +16,134 @@
 
 package com.google.solutions.gcsuploader;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
 
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
-import com.google.common.io.BaseEncoding;
-import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * CRC32CFile
+ *
+ * Computes the CRC32C of a file by splitting it into ranges, hashing the ranges
+ * in parallel over memory-mapped buffers, and combining the partial checksums.
  */
-public class CRC32CFile implements Runnable {
+public class CRC32CFile implements Callable<String> {
+
+    // Largest single mapping; MappedByteBuffer is int-indexed.
+    private static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+    private static ExecutorService defaultExecutor = Executors.newFixedThreadPool(Constants.CHECKSUM_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("crc32c-%d").setDaemon(true).build());
 
-    private String fileName;
-    public Boolean success = false;
-    public String crc32c = null;
+    private final Path path;
+    private final ExecutorService executor;
+    private final long rangeBytes;
 
     public CRC32CFile(String fileName) {
-        this.fileName = fileName;
+        this(fileName, defaultExecutor, Constants.CHECKSUM_RANGE_BYTES);
     }
 
-    public void run() {
-        File target = new File(this.fileName);
-        try (FileInputStream targetStream = new FileInputStream(target);) {
-            ByteBuffer buf = ByteBuffer.allocate(10 * 1000 * 1000); //10MB
-            Hasher hasher = Hashing.crc32c().newHasher();
-            //InputStream targetStream = .openStream();
-            while (targetStream.getChannel().read(buf) != -1) {
-                buf.flip();
-                hasher.putBytes(buf);
-                buf.clear();
-            }
-            this.crc32c = BaseEncoding.base64()
-                    .encode(Ints.toByteArray(hasher.hash().asInt()));
-            this.success = true;
+    /**
+     * @param executor   runs the range hashes.
+     * @param rangeBytes size of the ranges hashed in parallel.
+     */
+    public CRC32CFile(String fileName, ExecutorService executor, long rangeBytes) {
+        this.path = FileSystems.getDefault().getPath(fileName);
+        this.executor = executor;
+        this.rangeBytes = rangeBytes;
+    }
+
+    /**
+     * Returns the file CRC32C, base64 encoded as GCS reports it.
+     */
+    public String call() throws IOException {
+        return CRC32CMath.encode(checksum());
+    }
+
+    /**
+     * Returns the file CRC32C.
+     */
+    public int checksum() throws IOException {
+        try {
+            return checksumAsync().join();
+        } catch (CompletionException e) {
+            Throwable cause = RetryPolicy.unwrap(e);
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Error computing checksum of " + this.path, cause);
+        }
+    }
+
+    /**
+     * Starts hashing the file, returning a future of its CRC32C. No thread waits
+     * on the ranges; they are combined as a dependent stage.
+     */
+    public CompletableFuture<Integer> checksumAsync() {
+        FileChannel channel;
+        long size;
+        try {
+            channel = FileChannel.open(this.path, StandardOpenOption.READ);
+            size = channel.size();
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        List<Long> lengths = new ArrayList<Long>();
+        long ranges = Math.max(1, (size + this.rangeBytes - 1) / this.rangeBytes);
+        for (long range = 0; range < ranges; range++) {
+            long start = range * this.rangeBytes;
+            long length = Math.min(this.rangeBytes, size - start);
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return checksum(channel, start, length);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, this.executor));
+            lengths.add(length);
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            int crc32c = results.get(0).join();
+            for (int i = 1; i < results.size(); i++) {
+                crc32c = CRC32CMath.combine(crc32c, results.get(i).join(), lengths.get(i));
+            }
+            return crc32c;
+        }).whenComplete((crc32c, error) -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        });
+    }
+
+    /**
+     * Returns the CRC32C of a range of an open channel, hashing it through
+     * memory mappings so the bytes are never copied onto the heap.
+     */
+    public static int checksum(FileChannel channel, long start, long length) throws IOException {
+        CRC32C checksum = new CRC32C();
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            long mappingLength = Math.min(MAX_MAPPING, end - position);
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, mappingLength);
+            checksum.update(mapping);
+            position += mappingLength;
         }
+        return (int) checksum.getValue();
     }
-}
\ No newline at end of file
+}
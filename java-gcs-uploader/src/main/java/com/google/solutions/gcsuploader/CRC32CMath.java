@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+/**
+ * CRC32CMath
+ *
+ * Helpers for working with CRC32C values: combining the checksums of adjacent
+ * byte ranges, and encoding them the way GCS reports them.
+ */
+public class CRC32CMath {
+
+    // Castagnoli polynomial, reversed.
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private CRC32CMath() {
+    }
+
+    /**
+     * Returns the CRC32C of A followed by B, given crc(A), crc(B) and the length
+     * of B. This is zlib's crc32_combine with the Castagnoli polynomial, and runs
+     * in O(log(lengthB)) without touching the data.
+     */
+    public static int combine(int crcA, int crcB, long lengthB) {
+        if (lengthB <= 0) {
+            return crcA;
+        }
+
+        int[] even = new int[32]; // even-power-of-two zeros operator
+        int[] odd = new int[32]; // odd-power-of-two zeros operator
+
+        // put operator for one zero bit in odd
+        odd[0] = POLYNOMIAL;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // put operator for two zero bits in even, then four zero bits in odd
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply len(B) zeros to crc(A); the first square puts the operator for
+        // one zero byte (eight zero bits) in even
+        int crc = crcA;
+        long remaining = lengthB;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((remaining & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            remaining >>>= 1;
+            if (remaining == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((remaining & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            remaining >>>= 1;
+        } while (remaining != 0);
+
+        return crc ^ crcB;
+    }
+
+    /**
+     * Encodes a CRC32C value as big-endian base64, matching Blob.getCrc32c().
+     */
+    public static String encode(int crc32c) {
+        return BaseEncoding.base64().encode(Ints.toByteArray(crc32c));
+    }
+
+    /**
+     * Decodes a CRC32C value from the form Blob.getCrc32c() reports.
+     */
+    public static int decode(String crc32c) {
+        return Ints.fromByteArray(BaseEncoding.base64().decode(crc32c));
+    }
+
+    private static int gf2MatrixTimes(int[] matrix, int vector) {
+        int sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
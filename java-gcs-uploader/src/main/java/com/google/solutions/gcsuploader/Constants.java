@@ -20,8 +20,123 @@ public class Constants {
     public static final int CHUNK_SIZE = 15 * 1000 * 1000;
 
     public static final long SLICED_THRESHOLD = CHUNK_SIZE * 4;
-    public static final int MAX_SLICES = 8; // No more than 32 due to simple implementation.
+    // Files under this size are read into memory and sent in a single request.
+    public static final long SMALL_FILE_THRESHOLD = 5 * 1000 * 1000;
+    public static final long MIN_SLICE_BYTES = SLICED_THRESHOLD;
+    public static final long MAX_SLICE_BYTES = 1000 * 1000 * 1000;
+    public static final int MAX_SLICES = 1024; // GCS limit on components of a composite object.
+    public static final int MAX_COMPOSE_SOURCES = 32; // GCS limit on sources per compose request.
+    // A running slice is split for an idle connection only if each part keeps at least this much.
+    public static final long MIN_SPLIT_BYTES = MIN_SLICE_BYTES / 2;
 
-    public static final int SIMULTANEOUS_FILES = Runtime.getRuntime().availableProcessors();
+    // Slices needed to fill the link are estimated from what one stream can carry.
+    public static final long STREAM_BYTES_PER_SECOND = 16 * 1000 * 1000;
+    public static final long DEFAULT_BANDWIDTH = 1000 * 1000 * 1000 / 8; // 1 Gb/s
+
+    // Concurrent connections; upload stages never wait on each other, so this is
+    // also the size of the I/O pool.
     public static final int UPLOAD_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+    // Small files spend their time waiting on round trips rather than moving bytes,
+    // so they get a pool of their own with many more connections.
+    public static final int SMALL_FILE_THREADS = UPLOAD_THREADS * 4;
+    // Files are admitted for upload while their total size fits in this budget.
+    public static final long MAX_IN_FLIGHT_BYTES = 8L * 1000 * 1000 * 1000;
+    // Cap on memory held in resumable writer chunk buffers across all uploads.
+    public static final int MAX_BUFFERED_BYTES = 1000 * 1000 * 1000;
+
+    // Enumerated files wait in a queue of this size; enumeration blocks while it is full.
+    public static final int FILE_QUEUE_SIZE = 10 * 1000;
+    // Files started but not yet finished, which bounds the futures held at once.
+    public static final int MAX_PENDING_FILES = UPLOAD_THREADS * 16;
+
+    // Files compared against the bucket per batched get; GCS allows 100 calls per batch.
+    public static final int SYNC_BATCH_SIZE = 100;
+    public static final int DELETE_BATCH_SIZE = 100;
+    // Slices and intermediate compose objects carry this metadata key, naming the
+    // file they are part of, so leftovers can be told from the user's own objects.
+    public static final String SLICE_METADATA_KEY = "gcsuploader-slice-of";
+    // Leftovers younger than this may belong to an upload still running elsewhere.
+    public static final long SWEEP_MIN_AGE_MILLIS = 24 * 60 * 60 * 1000;
+    public static final String DEFAULT_SYNC_INDEX_DIR = System.getProperty("user.home") + "/.gcsuploader/index";
+
+    // Watched files are uploaded once their size and modification time have not
+    // changed for this long, so files still being written are left alone.
+    public static final long WATCH_SETTLE_MILLIS = 5 * 1000;
+    public static final long WATCH_POLL_MILLIS = 500;
+    // Watched files last passed on are remembered, so that an event with no change
+    // behind it does not upload them again, up to this many; the least recently
+    // seen are forgotten first, and the sync index, if there is one, covers them.
+    public static final int WATCH_PASSED_FILES = 100 * 1000;
+    // The daemon saves its sync index this often, as well as when it stops.
+    public static final long DAEMON_SAVE_MILLIS = 60 * 1000;
+
+    // Input of unknown length, from stdin or a pipe, is read into a ring of buffers
+    // of this size, a multiple of the writer's 256 KiB chunk granularity. The ring
+    // takes half of the buffered memory cap.
+    public static final int STREAM_BUFFER_SIZE = 16 * 1024 * 1024;
+    // A stream's segments double in size after this many, so a long stream still
+    // fits in MAX_SLICES components.
+    public static final int STREAM_SEGMENTS_PER_SIZE = MAX_SLICES / 8;
+
+    // Files are compressed, on request, in independent blocks of this size, each
+    // a gzip member, on a thread per core.
+    public static final int COMPRESS_BLOCK_SIZE = 1024 * 1024;
+    public static final int COMPRESS_THREADS = Runtime.getRuntime().availableProcessors();
+    // The fastest level gets most of the reduction on logs and CSVs, at a fraction
+    // of the CPU of the default 6, which would make compression the bottleneck.
+    public static final int COMPRESS_LEVEL = 1;
+
+    // Deduplicated files are cut into chunks that average this size, a power of
+    // two, doubled for files so big that would make more than DEDUP_CHUNKS_PER_FILE,
+    // which leaves room under MAX_SLICES for chunks that come out small.
+    public static final long DEDUP_CHUNK_BYTES = 4 * 1024 * 1024;
+    public static final int DEDUP_CHUNKS_PER_FILE = MAX_SLICES / 2;
+    public static final String DEFAULT_CHUNK_PREFIX = "gcsuploader-chunks/";
+    public static final String DEFAULT_CHUNK_INDEX_DIR = System.getProperty("user.home") + "/.gcsuploader/chunks";
+
+    // Workers of a distributed upload renew their leases on tasks at a third of
+    // this; a lease not renewed for this long has expired, and its task is taken
+    // over by another worker. Workers and the coordinator look at the shared
+    // manifest this often.
+    public static final long LEASE_MILLIS = 30 * 1000;
+    public static final long MANIFEST_POLL_MILLIS = 1000;
+
+    public static final int IO_BUFFER_SIZE = 2 * 1024 * 1024;
+    // Files are read on threads of their own, one per device, ahead of the
+    // transfers that send them. A transfer's reads run this many buffers ahead of
+    // its writes, enough to keep reading while its writer sends a chunk of the
+    // default size, and a reader reads this much of one transfer before moving on
+    // to the next, so concurrent slices on one disk are read in long runs.
+    public static final int READ_AHEAD_BUFFERS = 8;
+    public static final long READ_AHEAD_EXTENT_BYTES = 16 * 1024 * 1024;
+    public static final int READERS_PER_DEVICE = 1;
+
+    public static final int RETRY_ATTEMPTS = 5;
+    public static final long RETRY_INITIAL_DELAY_MILLIS = 1000;
+    public static final long RETRY_MAX_DELAY_MILLIS = 32 * 1000;
+
+    // Slices save a resumable checkpoint at most this often.
+    public static final long CHECKPOINT_BYTES = CHUNK_SIZE * 4;
+    public static final String DEFAULT_JOURNAL = System.getProperty("user.home") + "/.gcsuploader/journal";
+
+    // The tuner measures throughput over each interval before adjusting, sampling
+    // the busy connections this often within it. Writers take a chunk's worth of
+    // bytes at a time, so an interval also spans enough chunk transfer times for
+    // that granularity to be small next to the tolerance.
+    public static final long TUNE_INTERVAL_MILLIS = 5 * 1000;
+    public static final int TUNE_CHUNKS_PER_INTERVAL = 20;
+    public static final long TUNE_SAMPLE_MILLIS = 250;
+    // Changes in throughput smaller than this fraction are taken as noise.
+    public static final double TUNE_TOLERANCE = 0.05;
+    public static final int TUNE_CONNECTION_STEP = 4;
+    public static final int TUNE_MIN_CONNECTIONS = 2;
+    public static final int TUNE_MAX_CONNECTIONS = UPLOAD_THREADS * 4;
+    public static final int TUNE_MIN_CHUNK_SIZE = 2 * 1000 * 1000;
+    public static final int TUNE_MAX_CHUNK_SIZE = 120 * 1000 * 1000;
+    public static final String DEFAULT_TUNING_FILE = System.getProperty("user.home") + "/.gcsuploader/tuning.properties";
+
+    public static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+    public static final long CHECKSUM_RANGE_BYTES = 64 * 1000 * 1000;
+    public static final int CHECKSUM_THREADS = Runtime.getRuntime().availableProcessors();
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+/**
+ * FileFeed
+ *
+ * A stream of files to upload, handed out one at a time.
+ */
+public interface FileFeed {
+
+    /**
+     * Returns the next file, waiting for one if needed, or null once every file
+     * has been handed out.
+     */
+    FileSource.Entry next() throws InterruptedException;
+}
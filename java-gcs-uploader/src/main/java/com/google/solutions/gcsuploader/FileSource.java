@@ -0,0 +1,244 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FileSource
+ *
+ * Enumerates the files to upload on its own thread: paths given as arguments,
+ * directories walked recursively, and manifests of newline or NUL delimited paths
+ * ("-" is stdin). Files are handed over through a bounded queue as they are
+ * found, so uploads start before enumeration finishes and memory does not grow
+ * with the number of files.
+ */
+public class FileSource implements FileFeed, Runnable {
+
+    /**
+     * A file found by enumeration, with the size and modification time read while
+     * finding it.
+     */
+    public static class Entry {
+        public final String fileName;
+        public final long bytes;
+        public final long modifiedMillis;
+
+        Entry(String fileName, long bytes, long modifiedMillis) {
+            this.fileName = fileName;
+            this.bytes = bytes;
+            this.modifiedMillis = modifiedMillis;
+        }
+    }
+
+    // marks the end of enumeration in the queue
+    private static final Entry END = new Entry(null, 0, 0);
+
+    private final List<String> paths;
+    private final List<String> manifests;
+    private final char delimiter;
+    private final BlockingQueue<Entry> queue;
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder foundFiles = new LongAdder();
+    private final LongAdder foundBytes = new LongAdder();
+    private volatile boolean finished = false;
+
+    /**
+     * @param paths     files or directories to upload.
+     * @param manifests files listing paths to upload, "-" for stdin.
+     * @param delimiter separates paths in a manifest, '\n' or '\0'.
+     */
+    public FileSource(List<String> paths, List<String> manifests, char delimiter) {
+        this.paths = paths;
+        this.manifests = manifests;
+        this.delimiter = delimiter;
+        this.queue = new ArrayBlockingQueue<Entry>(Constants.FILE_QUEUE_SIZE);
+    }
+
+    /**
+     * Starts enumerating on a daemon thread.
+     */
+    public FileSource start() {
+        Thread producer = new Thread(this, "file-source");
+        producer.setDaemon(true);
+        producer.start();
+        return this;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (String path : this.paths) {
+                add(path);
+            }
+            for (String manifest : this.manifests) {
+                readManifest(manifest);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | UncheckedIOException e) {
+            print("Enumeration stopped: " + e.getMessage());
+        } finally {
+            this.finished = true;
+            try {
+                this.queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public Entry next() throws InterruptedException {
+        Entry entry = this.queue.take();
+        if (entry == END) {
+            // leave the marker for any other consumer
+            this.queue.put(END);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Files found so far, and their total size.
+     */
+    public long getFoundFiles() {
+        return this.foundFiles.sum();
+    }
+
+    public long getFoundBytes() {
+        return this.foundBytes.sum();
+    }
+
+    /**
+     * Whether enumeration has finished, so the found counts are final.
+     */
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Paths that were not regular files or could not be read.
+     */
+    public long getSkipped() {
+        return this.skipped.sum();
+    }
+
+    private void readManifest(String manifest) throws IOException, InterruptedException {
+        InputStream input = "-".equals(manifest) ? System.in : Files.newInputStream(Paths.get(manifest));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            StringBuilder path = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c == this.delimiter || (this.delimiter == '\n' && c == '\r')) {
+                    addFromManifest(path);
+                } else {
+                    path.append((char) c);
+                }
+            }
+            addFromManifest(path);
+        }
+    }
+
+    private void addFromManifest(StringBuilder path) throws IOException, InterruptedException {
+        if (path.length() > 0) {
+            add(path.toString());
+            path.setLength(0);
+        }
+    }
+
+    private void add(String name) throws IOException, InterruptedException {
+        Path path = Paths.get(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            skip(name);
+            return;
+        }
+        if (attributes.isDirectory()) {
+            walk(path);
+        } else if (attributes.isRegularFile()) {
+            found(new Entry(name, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } else {
+            skip(name);
+        }
+    }
+
+    private void found(Entry entry) throws InterruptedException {
+        this.foundFiles.increment();
+        this.foundBytes.add(entry.bytes);
+        this.queue.put(entry);
+    }
+
+    private void walk(Path directory) throws IOException, InterruptedException {
+        try {
+            // the visitor sees each file's attributes from the directory read, without a second stat
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (!attributes.isRegularFile()) {
+                        skip(file.toString());
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        found(new Entry(file.toString(), attributes.size(),
+                                attributes.lastModifiedTime().toMillis()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    skip(file.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void skip(String name) {
+        this.skipped.increment();
+        print("Bad file, skipping: " + name);
+    }
+
+    private void print(String message) {
+        System.out.println("source: " + message);
+    }
+}
@@ -16,108 +16,1063 @@
 
  package com.google.solutions.gcsuploader;
 
-import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.LinkedList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import com.google.solutions.gcsuploader.dedup.ChunkIndex;
+import com.google.solutions.gcsuploader.distributed.Coordinator;
+import com.google.solutions.gcsuploader.distributed.Worker;
+import com.google.solutions.gcsuploader.downloaders.CompositeDownload;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+import com.google.solutions.gcsuploader.journal.UploadJournal;
+import com.google.solutions.gcsuploader.metrics.ProgressLine;
+import com.google.solutions.gcsuploader.metrics.RunReport;
+import com.google.solutions.gcsuploader.sync.SyncFilter;
+import com.google.solutions.gcsuploader.sync.SyncIndex;
+import com.google.solutions.gcsuploader.tuning.TunedSettings;
+import com.google.solutions.gcsuploader.tuning.Tuner;
+import com.google.solutions.gcsuploader.uploaders.OrphanSweeper;
+import com.google.solutions.gcsuploader.uploaders.ReadAhead;
+import com.google.solutions.gcsuploader.uploaders.StreamUpload;
+
 /**
- * Test uploading a file to GCS.
+ * GCSUploader
  *
+ * The command line. Every mode shares the settings read into a Setup, and the
+ * UploadContext built from them; each then runs, and reports, in a method of
+ * its own: upload, the default, and sweep, download, stream, work, coordinate
+ * and daemon. A mode returns whether it succeeded, and main exits with 1 if
+ * it did not, or if the command line was not usable.
  */
 public class GCSUploader {
 
-    private static ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors
-            .newFixedThreadPool(Constants.SIMULTANEOUS_FILES);
+    // bandwidth options in Mb/s are turned into bytes per second without overflowing
+    private static final long MAX_MEGABITS = Long.MAX_VALUE / 1000 / 1000;
 
-    public static void main(String[] args) {
+    // durations in seconds or hours are capped at a year
+    private static final double MAX_SECONDS = 365 * 24 * 3600;
 
-        Options options = new Options();
+    /**
+     * A command line that cannot be run, with why, worded for the user.
+     */
+    private static class UsageException extends Exception {
+        UsageException(String message) {
+            super(message);
+        }
+    }
 
-        Option bucketOption = new Option("b", "bucket", true, "Upload bucket target.");
-        bucketOption.setRequired(true);
-        options.addOption(bucketOption);
+    public static void main(String[] args) {
+        // Idle connections are only kept for reuse up to this many per host; with
+        // fewer, most small-file requests would open a new TLS connection.
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    String.valueOf(Constants.TUNE_MAX_CONNECTIONS + Constants.SMALL_FILE_THREADS));
+        }
 
-        CommandLineParser parser = new DefaultParser();
-        HelpFormatter formatter = new HelpFormatter();
-        CommandLine cmd;
+        boolean succeeded;
+        try {
+            succeeded = run(args);
+        } catch (UsageException e) {
+            System.out.println(e.getMessage());
+            succeeded = false;
+        }
+        if (!succeeded) {
+            System.exit(1);
+        }
+    }
 
+    /**
+     * Runs the mode the command line asks for, returning whether it succeeded.
+     */
+    private static boolean run(String[] args) throws UsageException {
+        Options options = options();
+        CommandLine cmd;
         try {
-            cmd = parser.parse(options, args);
+            cmd = new DefaultParser().parse(options, args);
         } catch (ParseException e) {
             System.out.println(e.getMessage());
-            formatter.printHelp("As arguments, provide [OPTIONS] FILE1 FILE2...", options);
-            System.exit(1);
-            return;
+            new HelpFormatter().printHelp("As arguments, provide [OPTIONS] FILE|DIR|- ...", options);
+            return false;
+        }
+
+        Setup setup = new Setup(cmd);
+        try {
+            if (cmd.hasOption("sweep")) {
+                if (!sweep(setup)) {
+                    return false;
+                }
+                if (!setup.hasFiles() && !cmd.hasOption("stream") && !cmd.hasOption("download")) {
+                    return true;
+                }
+            }
+            if (cmd.hasOption("download")) {
+                return download(setup);
+            }
+            if (cmd.hasOption("stream")) {
+                return stream(setup);
+            }
+            if (cmd.hasOption("work")) {
+                return work(setup);
+            }
+            if (cmd.hasOption("coordinate")) {
+                return coordinate(setup);
+            }
+            if (cmd.hasOption("watch") || cmd.hasOption("listen")) {
+                return daemon(setup);
+            }
+            return upload(setup);
+        } finally {
+            // no new work for the nannies
+            setup.context.shutdown();
         }
+    }
 
-        String bucket = cmd.getOptionValue("bucket");
+    /**
+     * What every mode shares: the settings read from the command line, with those
+     * not given taken from earlier runs' tuning, and the context built from them.
+     */
+    private static class Setup {
+        final CommandLine cmd;
+        final String bucket;
+        final int slices;
+        final int readersPerDevice;
+        final RetryPolicy retryPolicy;
+        final BandwidthGovernor governor;
+        // null unless uploading to the fake
+        final FakeStorageRpc fake;
+        final boolean tuneChunkSize;
+        final boolean tuneConnections;
+        final boolean tuneStreams;
+        // null if not tuning, or there were no settings to read
+        final TunedSettings tuned;
+        // null unless deduplicating
+        final ChunkIndex chunkIndex;
+        final UploadContext context;
+        // files and directories given as arguments, and manifests listing more
+        final List<String> paths = new ArrayList<String>();
+        final List<String> manifests = new ArrayList<String>();
 
-        String[] files = cmd.getArgs();
-        if (files.length < 1) {
-            System.out.println("No files provided.");
-            System.exit(1);
+        Setup(CommandLine cmd) throws UsageException {
+            this.cmd = cmd;
+            this.bucket = cmd.getOptionValue("bucket");
+            boolean verifyFile = cmd.hasOption("verify-file");
+            int compressionLevel = 0;
+            if (cmd.hasOption("compress")) {
+                compressionLevel = cmd.hasOption("compress-level")
+                        ? (int) numberOption(cmd, "compress-level", 1, 9)
+                        : Constants.COMPRESS_LEVEL;
+                if (verifyFile) {
+                    // the second pass hashes the file, not the gzip data the object holds
+                    throw new UsageException("--verify-file cannot be used with --compress.");
+                }
+            }
+            if ((cmd.hasOption("coordinate") || cmd.hasOption("work"))
+                    && (compressionLevel > 0 || cmd.hasOption("dedup") || cmd.hasOption("sync"))) {
+                // workers send slices of the file as it is, each planned by the coordinator
+                throw new UsageException(
+                        "--coordinate and --work cannot be used with --compress, --dedup or --sync.");
+            }
+            if (cmd.hasOption("dedup") && compressionLevel > 0) {
+                // chunks are named for the file's bytes, which compression would change
+                throw new UsageException("--dedup cannot be used with --compress.");
+            }
+            long bandwidth = Constants.DEFAULT_BANDWIDTH;
+            if (cmd.hasOption("bandwidth")) {
+                bandwidth = numberOption(cmd, "bandwidth", 1, MAX_MEGABITS) * 1000 * 1000 / 8;
+            }
+            int chunkSize = Constants.CHUNK_SIZE;
+            if (cmd.hasOption("chunk-size")) {
+                // the client library takes the chunk size as an int
+                chunkSize = (int) (numberOption(cmd, "chunk-size", 1, Integer.MAX_VALUE / 1000 / 1000)
+                        * 1000 * 1000);
+            }
+            this.slices = cmd.hasOption("slices") ? (int) numberOption(cmd, "slices", 1, Constants.MAX_SLICES) : 0;
+            int connections = Constants.UPLOAD_THREADS;
+            if (cmd.hasOption("connections")) {
+                connections = (int) numberOption(cmd, "connections", 1, Constants.TUNE_MAX_CONNECTIONS);
+            }
+            this.readersPerDevice = cmd.hasOption("readers-per-device")
+                    ? (int) numberOption(cmd, "readers-per-device", 1, Integer.MAX_VALUE)
+                    : Constants.READERS_PER_DEVICE;
+            this.retryPolicy = cmd.hasOption("max-attempts")
+                    ? new RetryPolicy((int) numberOption(cmd, "max-attempts", 1, Integer.MAX_VALUE),
+                            Constants.RETRY_INITIAL_DELAY_MILLIS, Constants.RETRY_MAX_DELAY_MILLIS)
+                    : RetryPolicy.defaultPolicy();
+            UploadJournal journal = null;
+            if (!cmd.hasOption("no-journal")) {
+                journal = new UploadJournal(Paths.get(cmd.getOptionValue("journal", Constants.DEFAULT_JOURNAL)));
+            }
+
+            long rateLimit = 0;
+            if (cmd.hasOption("rate-limit")) {
+                rateLimit = numberOption(cmd, "rate-limit", 0, MAX_MEGABITS) * 1000 * 1000 / 8;
+            }
+            long maxBuffered = Constants.MAX_BUFFERED_BYTES;
+            if (cmd.hasOption("max-buffered")) {
+                maxBuffered = numberOption(cmd, "max-buffered", 1,
+                        BandwidthGovernor.MAX_BUFFERED_LIMIT / 1000 / 1000) * 1000 * 1000;
+            }
+            this.governor = new BandwidthGovernor(rateLimit, maxBuffered);
+            this.governor.register();
+
+            FakeStorageRpc fake = null;
+            if (cmd.hasOption("fake")) {
+                fake = FakeStorageRpc.newBuilder()
+                        .setLatencyMillis(cmd.hasOption("fake-latency")
+                                ? numberOption(cmd, "fake-latency", 0, (long) MAX_SECONDS * 1000) : 0)
+                        .setBytesPerSecond(cmd.hasOption("fake-bandwidth")
+                                ? numberOption(cmd, "fake-bandwidth", 0, MAX_MEGABITS) * 1000 * 1000 / 8 : 0)
+                        .setStreamBytesPerSecond(cmd.hasOption("fake-stream-bandwidth")
+                                ? numberOption(cmd, "fake-stream-bandwidth", 0, MAX_MEGABITS) * 1000 * 1000 / 8
+                                : 0)
+                        .setFailureRate(cmd.hasOption("fake-failure-rate")
+                                ? decimalOption(cmd, "fake-failure-rate", 0, 1) : 0)
+                        .setSeed(cmd.hasOption("fake-seed")
+                                ? numberOption(cmd, "fake-seed", Long.MIN_VALUE, Long.MAX_VALUE) : 0)
+                        .setDirectory(cmd.hasOption("fake-dir") ? Paths.get(cmd.getOptionValue("fake-dir")) : null)
+                        .build();
+            }
+            this.fake = fake;
+
+            // start from what was tuned last time for whatever is not set explicitly
+            boolean tune = !cmd.hasOption("no-tune");
+            this.tuneChunkSize = tune && !cmd.hasOption("chunk-size");
+            this.tuneConnections = tune && !cmd.hasOption("connections");
+            this.tuneStreams = tune && !cmd.hasOption("slices");
+            long streamBytesPerSecond = Constants.STREAM_BYTES_PER_SECOND;
+            TunedSettings tuned = null;
+            if (tune) {
+                Path tuningPath = Paths.get(cmd.getOptionValue("tuning-file", Constants.DEFAULT_TUNING_FILE));
+                try {
+                    tuned = TunedSettings.load(tuningPath, (fake != null ? "fake://" : "gs://") + this.bucket);
+                } catch (IOException | NumberFormatException e) {
+                    print("Could not read tuned settings from " + tuningPath + ": " + e.getMessage());
+                }
+            }
+            if (tuned != null) {
+                if (this.tuneChunkSize && tuned.getChunkSize() > 0) {
+                    chunkSize = tuned.getChunkSize();
+                }
+                if (this.tuneConnections && tuned.getConnections() > 0) {
+                    connections = tuned.getConnections();
+                }
+                if (this.tuneStreams && tuned.getStreamBytesPerSecond() > 0) {
+                    streamBytesPerSecond = tuned.getStreamBytesPerSecond();
+                }
+            }
+            this.tuned = tuned;
+
+            ChunkIndex chunkIndex = null;
+            if (cmd.hasOption("dedup")) {
+                Path indexPath = Paths.get(cmd.getOptionValue("chunk-index",
+                        Constants.DEFAULT_CHUNK_INDEX_DIR + "/" + this.bucket + ".idx"));
+                try {
+                    chunkIndex = ChunkIndex.load(indexPath, this.bucket,
+                            cmd.getOptionValue("dedup-prefix", Constants.DEFAULT_CHUNK_PREFIX));
+                } catch (IOException e) {
+                    throw new UsageException("Could not read chunk index " + indexPath + ": " + e.getMessage());
+                }
+                print("Chunk index holds " + chunkIndex.size() + " chunks.");
+            }
+            this.chunkIndex = chunkIndex;
+
+            this.context = UploadContext.newBuilder()
+                    .setStorage(fake != null ? fake.getOptions().getService() : null)
+                    .setConnections(connections)
+                    .setBandwidth(bandwidth)
+                    .setChunkSize(chunkSize)
+                    .setSlices(this.slices)
+                    .setStreamBytesPerSecond(streamBytesPerSecond)
+                    .setGovernor(this.governor)
+                    .setRetryPolicy(this.retryPolicy)
+                    .setJournal(journal)
+                    .setVerifyFile(verifyFile)
+                    .setCompressionLevel(compressionLevel)
+                    .setChunkIndex(chunkIndex)
+                    .setReadersPerDevice(this.readersPerDevice)
+                    .build();
+
+            // a bare - is read as a manifest on stdin
+            this.paths.addAll(Arrays.asList(cmd.getArgs()));
+            if (cmd.hasOption("manifest")) {
+                this.manifests.add(cmd.getOptionValue("manifest"));
+            }
+            if (this.paths.removeAll(Collections.singleton("-"))) {
+                this.manifests.add("-");
+            }
+        }
+
+        boolean hasFiles() {
+            return !this.paths.isEmpty() || !this.manifests.isEmpty();
+        }
+
+        /**
+         * Finds the files given, on a thread of its own once started.
+         */
+        FileSource source() {
+            return new FileSource(this.paths, this.manifests, this.cmd.hasOption("null") ? '\0' : '\n');
+        }
+
+        /**
+         * Loads the sync index, or returns null if not syncing.
+         */
+        SyncIndex syncIndex() throws UsageException {
+            if (!this.cmd.hasOption("sync")) {
+                return null;
+            }
+            Path indexPath = Paths.get(this.cmd.getOptionValue("sync-index",
+                    Constants.DEFAULT_SYNC_INDEX_DIR + "/" + this.bucket + ".idx"));
+            try {
+                return SyncIndex.load(indexPath, this.bucket);
+            } catch (IOException e) {
+                throw new UsageException("Could not read sync index " + indexPath + ": " + e.getMessage());
+            }
+        }
+
+        void printFake() {
+            if (this.fake != null) {
+                print("Fake GCS: " + this.fake);
+            }
+        }
+    }
+
+    /**
+     * Uploads the files given, skipping those unchanged if syncing, tuning the
+     * chunk size and connections as it goes unless told not to, and reports how
+     * it went. Returns whether every file was uploaded.
+     */
+    private static boolean upload(Setup setup) throws UsageException {
+        CommandLine cmd = setup.cmd;
+        UploadContext context = setup.context;
+        if (!setup.hasFiles()) {
+            throw new UsageException("No files provided.");
+        }
+        FileSource source = setup.source();
+        SyncIndex syncIndex = setup.syncIndex();
+        SyncFilter syncFilter = null;
+        if (syncIndex != null) {
+            print("Sync index holds " + syncIndex.size() + " files.");
+            syncFilter = new SyncFilter(source, context.getStorage(), setup.bucket, syncIndex,
+                    cmd.hasOption("check-remote"));
         }
 
         print("Starting all uploads.");
-        print("Chunk size is: " + Constants.CHUNK_SIZE);
-        print("Simultaneous files (core count) is: " + Constants.SIMULTANEOUS_FILES);
-        print("Upload threads is: " + Constants.UPLOAD_THREADS);
+        print("Chunk size is: " + context.getChunkSize());
+        print("In-flight bytes is: " + Constants.MAX_IN_FLIGHT_BYTES);
+        print("Upload connections is: " + context.getConnections());
+        Tuner tuner = null;
+        if (setup.tuneChunkSize || setup.tuneConnections || setup.tuneStreams) {
+            tuner = new Tuner(context, setup.tuneChunkSize, setup.tuneConnections, setup.tuneStreams).start();
+        }
         Instant start = Instant.now();
 
-        LinkedList<Future<?>> results = new LinkedList<Future<?>>();
-        long bytes = 0;
+        // only the main thread waits; upload stages never do
+        UploadRun run = new UploadRun(setup.bucket, context);
+        ProgressLine progress = null;
+        if (cmd.hasOption("progress")) {
+            SyncFilter filter = syncFilter;
+            progress = new ProgressLine(setup.governor::getBytesGranted,
+                    () -> source.getFoundBytes() - (filter != null ? filter.getSkippedBytes() : 0),
+                    () -> run.getSucceeded() + run.getFailed(),
+                    () -> source.getFoundFiles() - (filter != null ? filter.getUnchanged() + filter.getMatched() : 0),
+                    source::isFinished).start();
+        }
+        try {
+            if (syncFilter != null) {
+                run.setOnUploaded((file, crc32c) -> syncIndex.put(file.fileName, file.bytes, file.modifiedMillis,
+                        CRC32CMath.decode(crc32c)));
+                source.start();
+                run.run(syncFilter.start());
+            } else {
+                run.run(source.start());
+            }
+        } catch (InterruptedException e) {
+            print("Interrupted.");
+            return false;
+        }
 
-        for (String file : files) {
-            File toUpload = new File(file);
-            if (!toUpload.exists()){
-                print("Bad file, skipping: " + toUpload);
-                continue;
+        Instant finish = Instant.now();
+        if (progress != null) {
+            try {
+                progress.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (tuner != null) {
+            try {
+                tuner.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            bytes += toUpload.length();
-            UploadNanny nannyWork = new UploadNanny(bucket, file);
-            results.add(executor.submit(nannyWork));
         }
+        print("Completed upload.");
 
-        // no new work
-        executor.shutdown();
+        RunReport report = reportUpload(setup, run, source, start, finish);
+        if (syncFilter != null) {
+            print("Sync: " + syncFilter.getUnchanged() + " unchanged, " + syncFilter.getMatched()
+                    + " already in bucket, " + syncFilter.getChanged() + " new or changed.");
+            try {
+                syncIndex.save();
+            } catch (IOException e) {
+                print("Could not save sync index: " + e.getMessage());
+            }
+        }
+        if (setup.chunkIndex != null) {
+            Map<String, Long> counters = context.getMetrics().getCounters();
+            print("Dedup: " + counters.getOrDefault("dedup.chunks.sent", 0L) + " of "
+                    + counters.getOrDefault("dedup.chunks", 0L) + " chunks sent, "
+                    + counters.getOrDefault("dedup.bytes.sent", 0L) + " bytes; "
+                    + counters.getOrDefault("dedup.bytes.skipped", 0L) + " bytes already stored.");
+            try {
+                setup.chunkIndex.save();
+            } catch (IOException e) {
+                print("Could not save chunk index: " + e.getMessage());
+            }
+        }
+        if (tuner != null) {
+            saveTuning(setup, tuner);
+        }
 
-        for (Future<?> result : results) {
+        if (cmd.hasOption("report")) {
+            Map<String, Object> files = new LinkedHashMap<String, Object>();
+            files.put("started", run.getStarted());
+            files.put("succeeded", run.getSucceeded());
+            files.put("failed", run.getFailed());
+            files.put("skipped", source.getSkipped());
+            if (syncFilter != null) {
+                files.put("unchanged", syncFilter.getUnchanged());
+                files.put("matched", syncFilter.getMatched());
+            }
+            Map<String, Object> settings = new LinkedHashMap<String, Object>();
+            settings.put("chunkSize", context.getChunkSize());
+            settings.put("connections", context.getConnections());
+            settings.put("slices", setup.slices);
+            settings.put("readersPerDevice", setup.readersPerDevice);
+            settings.put("streamBytesPerSecond", context.getStreamBytesPerSecond());
+            report.put("files", files)
+                    .put("settings", settings)
+                    .putMetrics(context.getMetrics());
+            Path reportPath = Paths.get(cmd.getOptionValue("report"));
             try {
-                result.get();
-            } catch (InterruptedException | ExecutionException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                report.write(reportPath);
+                print("Report written to " + reportPath);
+            } catch (IOException e) {
+                print("Could not write report: " + e.getMessage());
             }
         }
 
-        Instant finish = Instant.now();
-        print("Completed upload.");
+        if (run.getFailed() > 0) {
+            print(run.getFailed() + " of " + run.getStarted() + " uploads failed.");
+            return false;
+        }
+        return true;
+    }
 
-        // Compute and report statistics.
+    /**
+     * Prints how an upload went, and where its time went, and returns the same
+     * figures for its report.
+     */
+    private static RunReport reportUpload(Setup setup, UploadRun run, FileSource source, Instant start,
+            Instant finish) {
+        UploadContext context = setup.context;
         Duration duration = Duration.between(start, finish);
+        long bytes = run.getBytesUploaded();
         print("Elapsed time " + duration.toString());
-        float bytesPerSecond = bytes / duration.getSeconds();
+        // uploads to a fast backend can finish in under a second
+        float bytesPerSecond = bytes * 1000f / Math.max(duration.toMillis(), 1);
         float megabytesPerSecond = bytesPerSecond / 1000 / 1000;
         print("Effective MB/s: " + megabytesPerSecond);
         float megabitsPerSecond = (bytesPerSecond * 8) / 1000 / 1000;
         print("Average Mb/s: " + megabitsPerSecond);
+        print("Bandwidth governor: " + setup.governor);
+        setup.printFake();
+        // how much of the connections' time, from first start to last finish, moved data
+        long makespanMillis = run.getMakespanMillis();
+        double ioUtilization = (double) context.getIoExecutor().getBusyMillis()
+                / Math.max(makespanMillis, 1) / context.getConnections();
+        print("Makespan " + Duration.ofMillis(makespanMillis) + ", I/O pool " + Math.round(ioUtilization * 100)
+                + "% busy, " + context.getIoExecutor().getSplits() + " running slices split.");
+        // whether the disks or the network held the run back: how busy each was, and
+        // how long transfers waited for reads
+        ReadAhead readAhead = context.getReadAhead();
+        List<Object> disks = new ArrayList<Object>();
+        for (ReadAhead.Device device : readAhead.getDevices()) {
+            double diskUtilization = (double) device.getBusyMillis() / Math.max(makespanMillis, 1)
+                    / device.getReaders();
+            print("Disk " + device.getName() + ": " + Math.round(diskUtilization * 100) + "% busy, "
+                    + device.getBytesRead() + " bytes read.");
+            Map<String, Object> disk = new LinkedHashMap<String, Object>();
+            disk.put("name", device.getName());
+            disk.put("readers", device.getReaders());
+            disk.put("bytesRead", device.getBytesRead());
+            disk.put("busyMillis", device.getBusyMillis());
+            disk.put("utilization", Math.round(diskUtilization * 1000) / 1000.0);
+            disks.add(disk);
+        }
+        double networkUtilization = (double) readAhead.getWriteMillis() / Math.max(makespanMillis, 1)
+                / context.getConnections();
+        print("Network " + Math.round(networkUtilization * 100) + "% busy, transfers waited "
+                + Duration.ofMillis(readAhead.getWaitMillis()) + " for reads.");
+        print("Files uploaded: " + run.getSucceeded() + ", failed: " + run.getFailed()
+                + ", skipped: " + source.getSkipped());
+        // slices are deleted after their uploads are reported done, so wait for those deletes
+        context.getCleaner().await();
+        print("Cleanup: " + context.getCleaner());
+
+        return new RunReport()
+                .put("bucket", setup.bucket)
+                .put("start", start.toString())
+                .put("elapsedMillis", duration.toMillis())
+                .put("makespanMillis", makespanMillis)
+                .put("ioUtilization", Math.round(ioUtilization * 1000) / 1000.0)
+                .put("networkUtilization", Math.round(networkUtilization * 1000) / 1000.0)
+                .put("readWaitMillis", readAhead.getWaitMillis())
+                .put("disks", disks)
+                .put("bytesUploaded", bytes)
+                .put("bytesSent", setup.governor.getBytesGranted())
+                .put("bytesPerSecond", Math.round(bytesPerSecond))
+                .put("retries", setup.retryPolicy.getRetries());
+    }
+
+    /**
+     * Prints what the tuner settled on, and keeps it for the next run if it
+     * measured anything.
+     */
+    private static void saveTuning(Setup setup, Tuner tuner) {
+        print("Tuned: " + tuner);
+        TunedSettings tuned = setup.tuned;
+        if (tuned == null || !tuner.hasMeasured()) {
+            return;
+        }
+        UploadContext context = setup.context;
+        try {
+            // knobs set explicitly keep their earlier tuned values
+            tuned.save(setup.tuneChunkSize ? context.getChunkSize() : tuned.getChunkSize(),
+                    setup.tuneConnections ? context.getConnections() : tuned.getConnections(),
+                    setup.tuneStreams ? context.getStreamBytesPerSecond() : tuned.getStreamBytesPerSecond());
+        } catch (IOException e) {
+            print("Could not save tuned settings: " + e.getMessage());
+        }
+    }
 
-        // no new work for the nannies
-        UploadNanny.shutdown();
+    /**
+     * Deletes slices left in the bucket by composite uploads that never finished,
+     * returning whether the sweep ran.
+     */
+    private static boolean sweep(Setup setup) throws UsageException {
+        long minAgeMillis = Constants.SWEEP_MIN_AGE_MILLIS;
+        if (setup.cmd.hasOption("sweep-age")) {
+            minAgeMillis = (long) (decimalOption(setup.cmd, "sweep-age", 0, MAX_SECONDS / 3600) * 3600 * 1000);
+        }
+        OrphanSweeper sweeper = new OrphanSweeper(setup.bucket, setup.context);
+        try {
+            long deleted = sweeper.sweep(setup.cmd.getOptionValue("sweep-prefix"), minAgeMillis);
+            print("Sweep: " + sweeper.getFound() + " leftover slices found, " + deleted + " deleted, "
+                    + sweeper.getKept() + " kept as recent or resumable.");
+            return true;
+        } catch (RuntimeException e) {
+            print("Sweep failed: " + RetryPolicy.unwrap(e).getMessage());
+            return false;
+        }
+    }
+
+    private static boolean download(Setup setup) throws UsageException {
+        if (setup.paths.isEmpty() || !setup.manifests.isEmpty()) {
+            throw new UsageException("--download takes the names of the objects to download.");
+        }
+        return download(setup.bucket, setup.paths, Paths.get(setup.cmd.getOptionValue("download-dir", ".")),
+                setup.context);
+    }
+
+    private static boolean stream(Setup setup) throws UsageException {
+        if (setup.hasFiles()) {
+            throw new UsageException("--stream uploads a single stream; give no files.");
+        }
+        return stream(setup.bucket, setup.cmd.getOptionValue("stream"), setup.cmd.getOptionValue("stream-from"),
+                setup.context);
+    }
+
+    private static boolean work(Setup setup) throws UsageException {
+        if (setup.hasFiles()) {
+            throw new UsageException("--work takes its files from the coordinator; give none.");
+        }
+        long leaseMillis = Constants.LEASE_MILLIS;
+        if (setup.cmd.hasOption("lease")) {
+            leaseMillis = (long) (decimalOption(setup.cmd, "lease", 0.001, MAX_SECONDS) * 1000);
+        }
+        boolean worked = work(setup.bucket, Paths.get(setup.cmd.getOptionValue("work")),
+                setup.cmd.getOptionValue("worker-name"), leaseMillis, setup.context);
+        setup.printFake();
+        return worked;
+    }
+
+    private static boolean coordinate(Setup setup) throws UsageException {
+        if (!setup.hasFiles()) {
+            throw new UsageException("No files provided.");
+        }
+        return coordinate(setup.bucket, Paths.get(setup.cmd.getOptionValue("coordinate")), setup.source().start(),
+                setup.context);
+    }
+
+    private static boolean daemon(Setup setup) throws UsageException {
+        CommandLine cmd = setup.cmd;
+        if (setup.hasFiles()) {
+            throw new UsageException("--watch and --listen take their files while running; give none.");
+        }
+        List<Path> directories = new ArrayList<Path>();
+        if (cmd.hasOption("watch")) {
+            for (String directory : cmd.getOptionValues("watch")) {
+                directories.add(Paths.get(directory));
+            }
+        }
+        long settleMillis = Constants.WATCH_SETTLE_MILLIS;
+        if (cmd.hasOption("settle")) {
+            settleMillis = (long) (decimalOption(cmd, "settle", 0, MAX_SECONDS) * 1000);
+        }
+        int port = cmd.hasOption("listen") ? (int) numberOption(cmd, "listen", 0, 65535) : -1;
+        boolean served = daemon(setup.bucket, directories, settleMillis, port, setup.syncIndex(), setup.context);
+        setup.printFake();
+        return served;
+    }
+
+    /**
+     * Every command-line option.
+     */
+    private static Options options() {
+        Options options = new Options();
+
+        Option bucketOption = new Option("b", "bucket", true, "Upload bucket target.");
+        bucketOption.setRequired(true);
+        options.addOption(bucketOption);
+
+        Option verifyOption = new Option(null, "verify-file", false,
+                "Re-read each file after upload for a second checksum pass.");
+        options.addOption(verifyOption);
+
+        Option compressOption = new Option(null, "compress", false,
+                "Compress files with gzip, in parallel blocks, before sending them. Objects are stored with"
+                        + " Content-Encoding: gzip and checksums are of the compressed bytes.");
+        options.addOption(compressOption);
+
+        Option compressLevelOption = new Option(null, "compress-level", true,
+                "With --compress, the gzip level from 1, fastest, to 9, smallest. Default "
+                        + Constants.COMPRESS_LEVEL + ".");
+        options.addOption(compressLevelOption);
+
+        Option bandwidthOption = new Option(null, "bandwidth", true,
+                "Available upload bandwidth in Mb/s, used to choose slice counts. Default 1000.");
+        options.addOption(bandwidthOption);
+
+        Option chunkSizeOption = new Option(null, "chunk-size", true,
+                "Resumable upload chunk size in MB. Default " + Constants.CHUNK_SIZE / 1000 / 1000 + ".");
+        options.addOption(chunkSizeOption);
+
+        Option slicesOption = new Option(null, "slices", true,
+                "Slices per composite upload. Default chosen from file size and bandwidth.");
+        options.addOption(slicesOption);
+
+        Option connectionsOption = new Option(null, "connections", true,
+                "Concurrent upload connections for files and slices, up to " + Constants.TUNE_MAX_CONNECTIONS
+                        + ". Default " + Constants.UPLOAD_THREADS + ".");
+        options.addOption(connectionsOption);
+
+        Option readersOption = new Option(null, "readers-per-device", true,
+                "Threads reading files on each disk or file system. Default " + Constants.READERS_PER_DEVICE
+                        + "; more suit SSDs and RAID arrays.");
+        options.addOption(readersOption);
+
+        Option noTuneOption = new Option(null, "no-tune", false,
+                "Do not adjust chunk size and connections while running, nor start from earlier runs' settings.");
+        options.addOption(noTuneOption);
+
+        Option tuningFileOption = new Option(null, "tuning-file", true,
+                "Where tuned settings are kept per bucket. Default " + Constants.DEFAULT_TUNING_FILE + ".");
+        options.addOption(tuningFileOption);
+
+        Option attemptsOption = new Option(null, "max-attempts", true,
+                "Attempts per slice, or per file on checksum mismatch, before giving up. Default "
+                        + Constants.RETRY_ATTEMPTS + ".");
+        options.addOption(attemptsOption);
+
+        Option journalOption = new Option(null, "journal", true,
+                "Directory for the checkpoint journal used to resume interrupted uploads. Default "
+                        + Constants.DEFAULT_JOURNAL + ".");
+        options.addOption(journalOption);
+
+        Option noJournalOption = new Option(null, "no-journal", false, "Do not checkpoint uploads.");
+        options.addOption(noJournalOption);
+
+        Option rateLimitOption = new Option(null, "rate-limit", true,
+                "Cap on total upload rate in Mb/s. Can be changed over JMX while running. Default unlimited.");
+        options.addOption(rateLimitOption);
+
+        Option maxBufferedOption = new Option(null, "max-buffered", true,
+                "Cap on memory held in upload chunk buffers, in MB; files are read ahead into up to a quarter"
+                        + " as much again. Default " + Constants.MAX_BUFFERED_BYTES / 1000 / 1000 + ".");
+        options.addOption(maxBufferedOption);
+
+        Option manifestOption = new Option(null, "manifest", true,
+                "File listing paths to upload, one per line. Use - for stdin.");
+        options.addOption(manifestOption);
+
+        Option nullOption = new Option("0", "null", false, "Manifest paths are NUL delimited, as from find -print0.");
+        options.addOption(nullOption);
+
+        Option streamOption = new Option(null, "stream", true,
+                "Upload stdin to this object as it is read, in parallel segments, for input of unknown length"
+                        + " such as a pipe. Memory use is bounded by --max-buffered.");
+        options.addOption(streamOption);
+
+        Option streamFromOption = new Option(null, "stream-from", true,
+                "With --stream, read from this file or named pipe instead of stdin.");
+        options.addOption(streamFromOption);
+
+        Option downloadOption = new Option(null, "download", false,
+                "Download the named objects instead of uploading files, each in parallel ranges, verified against"
+                        + " its checksum. Interrupted downloads resume from the journal.");
+        options.addOption(downloadOption);
+
+        Option downloadDirOption = new Option(null, "download-dir", true,
+                "With --download, the directory objects are written under, at paths named for them. Default the"
+                        + " current directory.");
+        options.addOption(downloadDirOption);
+
+        Option watchOption = new Option(null, "watch", true,
+                "Run as a daemon, uploading files that appear or change under this directory once they settle."
+                        + " Can be given more than once.");
+        options.addOption(watchOption);
+
+        Option settleOption = new Option(null, "settle", true,
+                "With --watch, seconds a file's size and modification time must stay the same before it is"
+                        + " uploaded. Default " + Constants.WATCH_SETTLE_MILLIS / 1000 + ".");
+        options.addOption(settleOption);
+
+        Option listenOption = new Option(null, "listen", true,
+                "Run as a daemon, taking jobs on this port on the loopback interface, one per line: UPLOAD path,"
+                        + " RATE mbps, STATUS or SHUTDOWN. Port 0 picks a free one.");
+        options.addOption(listenOption);
+
+        Option coordinateOption = new Option(null, "coordinate", true,
+                "Spread the upload over workers: plan the files as tasks in this directory, on a file system the"
+                        + " workers share, then compose and verify each file as the workers finish its slices.");
+        options.addOption(coordinateOption);
+
+        Option workOption = new Option(null, "work", true,
+                "Run as a worker of a distributed upload, taking tasks from the coordinator's directory.");
+        options.addOption(workOption);
+
+        Option workerNameOption = new Option(null, "worker-name", true,
+                "With --work, names the worker in leases and records. Default the host name and process ID.");
+        options.addOption(workerNameOption);
+
+        Option leaseOption = new Option(null, "lease", true,
+                "With --work, seconds a task's lease lasts without being renewed before another worker takes the"
+                        + " task over. Default " + Constants.LEASE_MILLIS / 1000 + ".");
+        options.addOption(leaseOption);
+
+        Option syncOption = new Option(null, "sync", false,
+                "Upload only files that are new or changed since the last sync, or that differ from the bucket.");
+        options.addOption(syncOption);
+
+        Option syncIndexOption = new Option(null, "sync-index", true,
+                "Index of file states used by --sync. Default " + Constants.DEFAULT_SYNC_INDEX_DIR + "/BUCKET.idx.");
+        options.addOption(syncIndexOption);
+
+        Option checkRemoteOption = new Option(null, "check-remote", false,
+                "With --sync, compare every file against the bucket, not only those changed locally.");
+        options.addOption(checkRemoteOption);
+
+        Option dedupOption = new Option(null, "dedup", false,
+                "Upload large files as content-defined chunks stored once each, named by their SHA-256,"
+                        + " and send only the chunks not already in the bucket.");
+        options.addOption(dedupOption);
+
+        Option dedupPrefixOption = new Option(null, "dedup-prefix", true,
+                "With --dedup, where chunks are kept in the bucket. Default " + Constants.DEFAULT_CHUNK_PREFIX + ".");
+        options.addOption(dedupPrefixOption);
+
+        Option chunkIndexOption = new Option(null, "chunk-index", true,
+                "Index of chunks known to be in the bucket, used by --dedup. Default "
+                        + Constants.DEFAULT_CHUNK_INDEX_DIR + "/BUCKET.idx.");
+        options.addOption(chunkIndexOption);
+
+        Option sweepOption = new Option(null, "sweep", false,
+                "First delete slices left in the bucket by composite uploads that never finished."
+                        + " With no files, only sweep.");
+        options.addOption(sweepOption);
+
+        Option sweepPrefixOption = new Option(null, "sweep-prefix", true, "Only sweep objects under this prefix.");
+        options.addOption(sweepPrefixOption);
+
+        Option sweepAgeOption = new Option(null, "sweep-age", true,
+                "Only sweep leftovers at least this many hours old. Default "
+                        + Constants.SWEEP_MIN_AGE_MILLIS / 3600 / 1000 + ".");
+        options.addOption(sweepAgeOption);
+
+        Option progressOption = new Option(null, "progress", false,
+                "Print a progress line with rate and time left to stderr while running.");
+        options.addOption(progressOption);
+
+        Option reportOption = new Option(null, "report", true,
+                "Write a JSON report of totals, counters and stage latency percentiles to this file at the end.");
+        options.addOption(reportOption);
+
+        Option fakeOption = new Option(null, "fake", false,
+                "Upload to an in-process fake GCS instead of the real one, for testing and benchmarks.");
+        options.addOption(fakeOption);
+
+        Option fakeLatencyOption = new Option(null, "fake-latency", true, "Fake GCS: milliseconds added per request.");
+        options.addOption(fakeLatencyOption);
+
+        Option fakeBandwidthOption = new Option(null, "fake-bandwidth", true,
+                "Fake GCS: link rate in Mb/s shared by all transfers. Default unlimited.");
+        options.addOption(fakeBandwidthOption);
+
+        Option fakeStreamBandwidthOption = new Option(null, "fake-stream-bandwidth", true,
+                "Fake GCS: rate of any one transfer in Mb/s. Default unlimited.");
+        options.addOption(fakeStreamBandwidthOption);
+
+        Option fakeFailureRateOption = new Option(null, "fake-failure-rate", true,
+                "Fake GCS: fraction of requests that fail with a 503, from 0 to 1.");
+        options.addOption(fakeFailureRateOption);
+
+        Option fakeSeedOption = new Option(null, "fake-seed", true, "Fake GCS: seed for injected failures.");
+        options.addOption(fakeSeedOption);
+
+        Option fakeDirOption = new Option(null, "fake-dir", true,
+                "Fake GCS: keep objects in files under this directory, shared by every process given it, rather"
+                        + " than in memory.");
+        options.addOption(fakeDirOption);
+        return options;
+    }
+
+    /**
+     * Uploads stdin, or the file or pipe at from, to objectName, returning whether
+     * it was uploaded and its checksum matched. A stream cannot be read twice, so a
+     * mismatch is reported rather than retried.
+     */
+    private static boolean stream(String bucket, String objectName, String from, UploadContext context) {
+        Instant start = Instant.now();
+        long startNanos = System.nanoTime();
+        StreamUpload upload;
+        try (ReadableByteChannel input = from == null ? new FileInputStream(FileDescriptor.in).getChannel()
+                : FileChannel.open(Paths.get(from), StandardOpenOption.READ)) {
+            print("Streaming " + (from == null ? "stdin" : from) + " to " + objectName + ".");
+            upload = new StreamUpload(bucket, objectName, input, context);
+            upload.start().join();
+        } catch (IOException | CompletionException e) {
+            print("Stream upload failed: " + RetryPolicy.unwrap(e).getMessage());
+            return false;
+        }
+        context.getMetrics().histogram("file.stream").recordSince(startNanos);
+
+        Duration duration = Duration.between(start, Instant.now());
+        print("Elapsed time " + duration.toString());
+        float bytesPerSecond = upload.bytes * 1000f / Math.max(duration.toMillis(), 1);
+        print("Effective MB/s: " + bytesPerSecond / 1000 / 1000);
+        print("\n\tChecksum for blob: " + upload.getCrc32c() + "\n\tChecksum for stream: "
+                + upload.getComputedCrc32c());
+        context.getCleaner().await();
+        print("Cleanup: " + context.getCleaner());
+        if (!upload.getComputedCrc32c().equals(upload.getCrc32c())) {
+            print("Checksum mismatch! " + objectName + " does not hold what was read.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Downloads objects into directory, all at once within the in-flight byte
+     * budget, returning whether every one was downloaded and verified.
+     */
+    private static boolean download(String bucket, List<String> objectNames, Path directory, UploadContext context) {
+        Instant start = Instant.now();
+        Path root = directory.toAbsolutePath().normalize();
+        List<CompositeDownload> downloads = new ArrayList<CompositeDownload>();
+        List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+        int failed = 0;
+        for (String objectName : objectNames) {
+            // object names may start with a slash or climb out with .., files may not
+            Path target = root.resolve(objectName.replaceFirst("^/+", "")).normalize();
+            if (!target.startsWith(root) || target.equals(root)) {
+                print("Not downloading " + objectName + ", which names a path outside " + root);
+                failed++;
+                continue;
+            }
+            CompositeDownload download = new CompositeDownload(bucket, objectName, target, context);
+            downloads.add(download);
+            results.add(download.start());
+        }
+        long bytes = 0;
+        for (int idx = 0; idx < downloads.size(); idx++) {
+            try {
+                results.get(idx).join();
+                bytes += downloads.get(idx).bytes;
+            } catch (CompletionException e) {
+                print("Download of " + downloads.get(idx).objectName + " failed: "
+                        + RetryPolicy.unwrap(e).getMessage());
+                failed++;
+            }
+        }
+
+        Duration duration = Duration.between(start, Instant.now());
+        print("Elapsed time " + duration.toString());
+        float bytesPerSecond = bytes * 1000f / Math.max(duration.toMillis(), 1);
+        print("Effective MB/s: " + bytesPerSecond / 1000 / 1000);
+        print("Files downloaded: " + (objectNames.size() - failed) + ", failed: " + failed);
+        return failed == 0;
+    }
+
+    /**
+     * Coordinates a distributed upload of the files from source, returning
+     * whether every one was uploaded and verified.
+     */
+    private static boolean coordinate(String bucket, Path directory, FileSource source, UploadContext context) {
+        Instant start = Instant.now();
+        Coordinator coordinator = new Coordinator(bucket, directory, context);
+        boolean coordinated;
+        try {
+            coordinated = coordinator.run(source);
+        } catch (IOException e) {
+            print("Could not coordinate the upload: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            print("Interrupted.");
+            return false;
+        }
+        // slices are deleted once their files are composed
+        context.getCleaner().await();
+
+        Duration duration = Duration.between(start, Instant.now());
+        print("Elapsed time " + duration.toString());
+        float bytesPerSecond = coordinator.getBytes() * 1000f / Math.max(duration.toMillis(), 1);
+        print("Effective MB/s: " + bytesPerSecond / 1000 / 1000);
+        print("Files uploaded: " + coordinator.getFilesSucceeded() + ", failed: " + coordinator.getFilesFailed()
+                + ", leases taken over: " + coordinator.getReassigned());
+        print("Cleanup: " + context.getCleaner());
+        return coordinated;
+    }
+
+    /**
+     * Works on a distributed upload until it has nothing left to do, returning
+     * whether every task it took was done.
+     */
+    private static boolean work(String bucket, Path directory, String name, long leaseMillis,
+            UploadContext context) {
+        if (name == null) {
+            try {
+                name = InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+            } catch (UnknownHostException e) {
+                name = "worker-" + ProcessHandle.current().pid();
+            }
+        }
+        try {
+            return new Worker(directory, name, context, leaseMillis).run(bucket);
+        } catch (IOException e) {
+            print("Could not work on the upload: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            print("Interrupted.");
+            return false;
+        }
+    }
+
+    /**
+     * Runs an UploadDaemon until it is told to stop, or the JVM is, returning
+     * whether it started.
+     */
+    private static boolean daemon(String bucket, List<Path> directories, long settleMillis, int port,
+            SyncIndex index, UploadContext context) {
+        UploadDaemon daemon = new UploadDaemon(bucket, context).setSyncIndex(index);
+        try {
+            if (!directories.isEmpty()) {
+                daemon.watch(directories, settleMillis);
+            }
+            if (port >= 0) {
+                daemon.listen(port);
+            }
+        } catch (IOException e) {
+            print("Could not start daemon: " + e.getMessage());
+            return false;
+        }
+        // on SIGTERM, finish what is under way and save the index before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            daemon.shutdown();
+            try {
+                daemon.awaitStopped();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "daemon-shutdown"));
+        try {
+            daemon.run();
+        } catch (InterruptedException e) {
+            print("Interrupted.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a whole-number option, which must be from min to max.
+     */
+    private static long numberOption(CommandLine cmd, String name, long min, long max) throws UsageException {
+        try {
+            long value = Long.parseLong(cmd.getOptionValue(name).trim());
+            if (value >= min && value <= max) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new UsageException("--" + name + " must be a whole number from " + min + " to " + max + ".");
+    }
+
+    /**
+     * Reads an option that may have a fraction, which must be from min to max.
+     */
+    private static double decimalOption(CommandLine cmd, String name, double min, double max)
+            throws UsageException {
+        try {
+            double value = Double.parseDouble(cmd.getOptionValue(name).trim());
+            if (value >= min && value <= max) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new UsageException("--" + name + " must be a number from " + plain(min) + " to " + plain(max) + ".");
+    }
 
+    private static String plain(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
     }
 
     private static void print(String message){
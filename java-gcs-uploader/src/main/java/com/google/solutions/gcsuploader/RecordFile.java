@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RecordFile
+ *
+ * A file of records by key, as the sync and chunk indexes keep theirs: a magic
+ * number and version, the names of what it was written for, such as a bucket,
+ * then a flat binary list of keys and records. It is read in one sequential
+ * pass, and replaced atomically on save, by writing a temporary file and
+ * moving it into place.
+ *
+ * @param <R> the record kept under each key.
+ */
+public class RecordFile<R> {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * How one record is laid out, after its key.
+     */
+    public interface Format<R> {
+        R read(DataInputStream in) throws IOException;
+
+        void write(DataOutputStream out, R record) throws IOException;
+    }
+
+    private final Path path;
+    private final int magic;
+    private final int version;
+    private final List<String> owners;
+    private final Format<R> format;
+
+    /**
+     * @param magic  tells the file from other kinds of file.
+     * @param owners what the records hold for, such as a bucket; a file written
+     *               for others is not read.
+     */
+    public RecordFile(Path path, int magic, int version, Format<R> format, String... owners) {
+        this.path = path;
+        this.magic = magic;
+        this.version = version;
+        this.format = format;
+        this.owners = Arrays.asList(owners);
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Reads every record into records. Returns false, reading none, if the file
+     * is of another kind or version, or for other owners; a file not yet written
+     * reads as empty.
+     */
+    public boolean read(Map<String, R> records) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(this.path), BUFFER_SIZE))) {
+            if (in.readInt() != this.magic || in.readInt() != this.version) {
+                return false;
+            }
+            for (String owner : this.owners) {
+                if (!owner.equals(in.readUTF())) {
+                    return false;
+                }
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                records.put(key, this.format.read(in));
+            }
+        } catch (NoSuchFileException e) {
+            // not saved yet
+        }
+        return true;
+    }
+
+    /**
+     * Writes a snapshot of records, which may still be changing, to a temporary
+     * file and moves it into place.
+     */
+    public void write(Map<String, R> records) throws IOException {
+        Files.createDirectories(this.path.toAbsolutePath().getParent());
+        Path temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+            out.writeInt(this.magic);
+            out.writeInt(this.version);
+            for (String owner : this.owners) {
+                out.writeUTF(owner);
+            }
+            Map<String, R> snapshot = new HashMap<String, R>(records);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, R> entry : snapshot.entrySet()) {
+                out.writeUTF(entry.getKey());
+                this.format.write(out, entry.getValue());
+            }
+        }
+        Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
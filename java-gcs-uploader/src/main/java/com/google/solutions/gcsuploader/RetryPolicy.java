@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * RetryPolicy
+ *
+ * A retry budget with exponential backoff and full jitter: the wait before
+ * retry n is uniform in [0, min(maxDelay, initialDelay * 2^n)).
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final LongAdder retries = new LongAdder();
+
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public static RetryPolicy defaultPolicy() {
+        return new RetryPolicy(Constants.RETRY_ATTEMPTS, Constants.RETRY_INITIAL_DELAY_MILLIS,
+                Constants.RETRY_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Whether another attempt may follow the given number of failed attempts.
+     */
+    public boolean canRetry(int failedAttempts) {
+        return failedAttempts < this.maxAttempts;
+    }
+
+    /**
+     * How long to wait after the given number of failed attempts.
+     */
+    public long delayMillis(int failedAttempts) {
+        int exponent = Math.min(Math.max(failedAttempts - 1, 0), 30);
+        long ceiling = Math.min(this.maxDelayMillis, this.initialDelayMillis << exponent);
+        return ThreadLocalRandom.current().nextLong(Math.max(ceiling, 1));
+    }
+
+    /**
+     * Waits out the backoff after the given number of failed attempts.
+     */
+    public void backoff(int failedAttempts) throws InterruptedException {
+        Thread.sleep(delayMillis(failedAttempts));
+    }
+
+    /**
+     * Runs attempt on executor, retrying failures that are retryable until the
+     * budget runs out. Backoff is scheduled rather than slept, so no thread is
+     * held between attempts. onFailure, if not null, sees each failure that will
+     * be retried, with the count of failed attempts so far.
+     */
+    public <T> CompletableFuture<T> retryAsync(Callable<T> attempt, Predicate<Throwable> retryable,
+            BiConsumer<Integer, Throwable> onFailure, Executor executor) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        runAttempt(attempt, retryable, onFailure, executor, executor, 0, result);
+        return result;
+    }
+
+    private <T> void runAttempt(Callable<T> attempt, Predicate<Throwable> retryable,
+            BiConsumer<Integer, Throwable> onFailure, Executor executor, Executor runOn, int failedAttempts,
+            CompletableFuture<T> result) {
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return attempt.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, runOn).whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            int failures = failedAttempts + 1;
+            if (!retryable.test(cause) || !canRetry(failures)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            this.retries.increment();
+            if (onFailure != null) {
+                onFailure.accept(failures, cause);
+            }
+            Executor later = CompletableFuture.delayedExecutor(delayMillis(failures), TimeUnit.MILLISECONDS, executor);
+            runAttempt(attempt, retryable, onFailure, executor, later, failures, result);
+        });
+    }
+
+    /**
+     * Strips the CompletionException wrappers that futures add.
+     */
+    public static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Failed attempts that have been retried, across everything using this policy.
+     */
+    public long getRetries() {
+        return this.retries.sum();
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+}
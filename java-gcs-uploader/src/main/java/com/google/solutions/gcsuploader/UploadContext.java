@@ -0,0 +1,400 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+import com.google.solutions.gcsuploader.dedup.ChunkIndex;
+import com.google.solutions.gcsuploader.journal.UploadJournal;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+import com.google.solutions.gcsuploader.uploaders.ObjectCleaner;
+import com.google.solutions.gcsuploader.uploaders.ReadAhead;
+
+/**
+ * UploadContext
+ *
+ * What every upload in a run shares: the storage client, the I/O pools, the
+ * in-flight byte budget, the bandwidth governor, and the run's settings.
+ *
+ * Uploads are chains of CompletableFuture stages. Only stages that touch the
+ * disk or the network run on the I/O pool, and no stage waits on another, so
+ * the pool size is the number of concurrent connections rather than a count of
+ * threads that may be parked. How many files are in progress at once is
+ * governed by the in-flight byte budget. Both pools are WorkSchedulers, so
+ * transfers from every file are taken by size rather than by arrival. Files
+ * are read ahead of those transfers on reader threads of each device's own.
+ *
+ * The chunk size, the I/O pool size and the per-stream rate that slice counts
+ * are planned from may be changed while a run goes, by the Tuner; uploads read
+ * them as they start.
+ */
+public class UploadContext {
+
+    private final Storage storage;
+    private final WorkScheduler ioExecutor;
+    private final WorkScheduler smallFileExecutor;
+    private final ByteBudget inFlight;
+    private final BandwidthGovernor governor;
+    private final long bandwidth;
+    private volatile int chunkSize;
+    private final int slices;
+    private volatile long streamBytesPerSecond;
+    private final RetryPolicy retryPolicy;
+    private final UploadJournal journal;
+    private final boolean verifyFile;
+    private final BlockCompressor compressor;
+    private final ChunkIndex chunkIndex;
+    private final ReadAhead readAhead;
+    private final Metrics metrics;
+    private final ObjectCleaner cleaner;
+
+    private UploadContext(Builder builder) {
+        this.storage = builder.storage != null ? builder.storage : StorageOptions.getDefaultInstance().getService();
+        // the biggest slices first keeps one large file from finishing last; the
+        // smallest files first finishes the most files soonest
+        this.ioExecutor = new WorkScheduler(builder.connections, "upload-%d", true);
+        this.smallFileExecutor = new WorkScheduler(builder.smallFileConnections, "small-%d", false);
+        this.inFlight = new ByteBudget(builder.inFlightBytes);
+        this.governor = builder.governor != null ? builder.governor
+                : new BandwidthGovernor(0, Constants.MAX_BUFFERED_BYTES);
+        this.bandwidth = builder.bandwidth;
+        this.chunkSize = builder.chunkSize;
+        this.slices = builder.slices;
+        this.streamBytesPerSecond = builder.streamBytesPerSecond;
+        this.retryPolicy = builder.retryPolicy;
+        this.journal = builder.journal;
+        this.verifyFile = builder.verifyFile;
+        this.compressor = builder.compressionLevel > 0
+                ? new BlockCompressor(builder.compressionLevel, Constants.COMPRESS_THREADS) : null;
+        this.chunkIndex = builder.chunkIndex;
+        // buffers read ahead take up to a quarter of the cap on buffered bytes,
+        // with at least one so that readers can make progress
+        int readAheadBuffers = (int) Math.max(1, this.governor.getMaxBufferedBytes() / 4 / Constants.IO_BUFFER_SIZE);
+        this.readAhead = new ReadAhead(builder.readersPerDevice, readAheadBuffers);
+        this.metrics = builder.metrics != null ? builder.metrics : new Metrics();
+        this.cleaner = new ObjectCleaner(this.storage, this.ioExecutor, this.retryPolicy, this.metrics);
+        if (this.slices == 0) {
+            // slices are split to keep as many streams going as it takes to fill the
+            // link; a slice count given explicitly is kept
+            this.ioExecutor.setWantedTransfers(() -> (int) Math.min(Integer.MAX_VALUE,
+                    (this.bandwidth + this.streamBytesPerSecond - 1) / this.streamBytesPerSecond));
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * The client every upload talks to GCS through.
+     */
+    public Storage getStorage() {
+        return this.storage;
+    }
+
+    /**
+     * Runs disk and network stages, largest transfers first. Its size is the
+     * connection limit.
+     */
+    public WorkScheduler getIoExecutor() {
+        return this.ioExecutor;
+    }
+
+    /**
+     * The I/O pool size, which is the connection limit for files and slices.
+     */
+    public int getConnections() {
+        return this.ioExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Resizes the I/O pool. Work already queued runs on the new number of threads.
+     */
+    public synchronized void setConnections(int connections) {
+        // the core size may never exceed the maximum, so grow the maximum first and shrink it last
+        if (connections > this.ioExecutor.getMaximumPoolSize()) {
+            this.ioExecutor.setMaximumPoolSize(connections);
+            this.ioExecutor.setCorePoolSize(connections);
+        } else {
+            this.ioExecutor.setCorePoolSize(connections);
+            this.ioExecutor.setMaximumPoolSize(connections);
+        }
+    }
+
+    /**
+     * I/O pool threads busy with a stage right now.
+     */
+    public int getActiveConnections() {
+        return this.ioExecutor.getActiveCount();
+    }
+
+    /**
+     * Runs single-request uploads of small files. Its size is the connection limit
+     * for those, separate from the I/O pool so that small files do not queue
+     * behind slices. The smallest files go first.
+     */
+    public WorkScheduler getSmallFileExecutor() {
+        return this.smallFileExecutor;
+    }
+
+    /**
+     * Bytes of files admitted for upload and not yet finished.
+     */
+    public ByteBudget getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * Rate limit and buffer memory cap shared by every writer.
+     */
+    public BandwidthGovernor getGovernor() {
+        return this.governor;
+    }
+
+    /**
+     * Available upload bandwidth in bytes per second.
+     */
+    public long getBandwidth() {
+        return this.bandwidth;
+    }
+
+    /**
+     * Bytes a resumable writer buffers and sends per request.
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Sets the chunk size for writers opened from now on.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Slices per composite upload, or 0 to choose from the file size and bandwidth.
+     */
+    public int getSlices() {
+        return this.slices;
+    }
+
+    /**
+     * What one upload stream is expected to carry, in bytes per second. Composite
+     * uploads use enough slices for their streams to fill the bandwidth.
+     */
+    public long getStreamBytesPerSecond() {
+        return this.streamBytesPerSecond;
+    }
+
+    public void setStreamBytesPerSecond(long streamBytesPerSecond) {
+        this.streamBytesPerSecond = Math.max(1, streamBytesPerSecond);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * The checkpoint journal, or null if uploads are not checkpointed.
+     */
+    public UploadJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Whether files are re-read in a separate checksum pass after upload.
+     */
+    public boolean getVerifyFile() {
+        return this.verifyFile;
+    }
+
+    /**
+     * Compresses files on their way to GCS, or null if they are sent as they are.
+     */
+    public BlockCompressor getCompressor() {
+        return this.compressor;
+    }
+
+    /**
+     * The content-addressed chunks known to be in the bucket, or null if large
+     * files are not deduplicated.
+     */
+    public ChunkIndex getChunkIndex() {
+        return this.chunkIndex;
+    }
+
+    /**
+     * The readers that read files ahead of the transfers sending them.
+     */
+    public ReadAhead getReadAhead() {
+        return this.readAhead;
+    }
+
+    /**
+     * Counters and latency histograms for every stage of every upload.
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Deletes slices and other leftovers in batches, in the background.
+     */
+    public ObjectCleaner getCleaner() {
+        return this.cleaner;
+    }
+
+    /**
+     * Waits for background deletes, then lets the pools' threads finish.
+     */
+    public void shutdown() {
+        this.cleaner.await();
+        this.ioExecutor.shutdown();
+        this.smallFileExecutor.shutdown();
+        this.readAhead.shutdown();
+        if (this.compressor != null) {
+            this.compressor.shutdown();
+        }
+    }
+
+    /**
+     * Builder for UploadContext.
+     */
+    public static class Builder {
+        private Storage storage = null;
+        private int connections = Constants.UPLOAD_THREADS;
+        private int smallFileConnections = Constants.SMALL_FILE_THREADS;
+        private long inFlightBytes = Constants.MAX_IN_FLIGHT_BYTES;
+        private long bandwidth = Constants.DEFAULT_BANDWIDTH;
+        private int chunkSize = Constants.CHUNK_SIZE;
+        private int slices = 0;
+        private long streamBytesPerSecond = Constants.STREAM_BYTES_PER_SECOND;
+        private BandwidthGovernor governor = null;
+        private RetryPolicy retryPolicy = RetryPolicy.defaultPolicy();
+        private UploadJournal journal = null;
+        private boolean verifyFile = false;
+        private int compressionLevel = 0;
+        private ChunkIndex chunkIndex = null;
+        private int readersPerDevice = Constants.READERS_PER_DEVICE;
+        private Metrics metrics = null;
+
+        private Builder() {
+        }
+
+        /**
+         * The client to upload with. Defaults to one from the environment's default
+         * credentials and project.
+         */
+        public Builder setStorage(Storage storage) {
+            this.storage = storage;
+            return this;
+        }
+
+        public Builder setConnections(int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        public Builder setSmallFileConnections(int smallFileConnections) {
+            this.smallFileConnections = smallFileConnections;
+            return this;
+        }
+
+        public Builder setInFlightBytes(long inFlightBytes) {
+            this.inFlightBytes = inFlightBytes;
+            return this;
+        }
+
+        public Builder setBandwidth(long bandwidth) {
+            this.bandwidth = bandwidth;
+            return this;
+        }
+
+        public Builder setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder setSlices(int slices) {
+            this.slices = slices;
+            return this;
+        }
+
+        public Builder setStreamBytesPerSecond(long streamBytesPerSecond) {
+            this.streamBytesPerSecond = streamBytesPerSecond;
+            return this;
+        }
+
+        public Builder setGovernor(BandwidthGovernor governor) {
+            this.governor = governor;
+            return this;
+        }
+
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        public Builder setJournal(UploadJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        public Builder setVerifyFile(boolean verifyFile) {
+            this.verifyFile = verifyFile;
+            return this;
+        }
+
+        /**
+         * Compresses files with gzip at this level, 1 to 9, before they are sent.
+         * 0, the default, sends them as they are.
+         */
+        public Builder setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        /**
+         * Uploads files big enough for a composite upload as deduplicated chunks,
+         * skipping those the index lists or the bucket already holds.
+         */
+        public Builder setChunkIndex(ChunkIndex chunkIndex) {
+            this.chunkIndex = chunkIndex;
+            return this;
+        }
+
+        /**
+         * Threads reading files on each device. More than one suits SSDs and RAID
+         * arrays that serve several reads at once.
+         */
+        public Builder setReadersPerDevice(int readersPerDevice) {
+            this.readersPerDevice = readersPerDevice;
+            return this;
+        }
+
+        public Builder setMetrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public UploadContext build() {
+            return new UploadContext(this);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.solutions.gcsuploader.sync.SyncIndex;
+
+/**
+ * UploadDaemon
+ *
+ * Keeps running, and keeps one UploadContext, with its Storage client, pooled
+ * connections and threads, warm across uploads, so that frequent small batches
+ * do not each pay for a new JVM, credentials and TLS handshakes. Files come from
+ * watched directories, through a WatchFeed, and from jobs sent as lines of text
+ * to a socket on the loopback interface, each answered with one line:
+ *
+ *   UPLOAD path   uploads a file, or a directory's files, answering when done
+ *   RATE mbps     sets the upload rate limit in Mb/s, 0 for none
+ *   STATUS        answers with the daemon's and the governor's counters
+ *   SHUTDOWN      stops taking work, and stops once uploads under way finish
+ */
+public class UploadDaemon {
+
+    private final String bucketName;
+    private final UploadContext context;
+    private final CountDownLatch stopping = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final LongAdder jobs = new LongAdder();
+    private final LongAdder jobsFailed = new LongAdder();
+    private SyncIndex index = null;
+    private WatchFeed feed = null;
+    private UploadRun watchRun = null;
+    private ServerSocket server = null;
+    private ExecutorService clientExecutor = null;
+
+    public UploadDaemon(String bucketName, UploadContext context) {
+        this.bucketName = bucketName;
+        this.context = context;
+    }
+
+    /**
+     * Records every file uploaded in index, and skips watched files it records
+     * as unchanged. The index is saved periodically and when the daemon stops,
+     * as is the context's chunk index if it has one.
+     */
+    public UploadDaemon setSyncIndex(SyncIndex index) {
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Uploads files that appear or change under directories, once they settle.
+     */
+    public UploadDaemon watch(List<Path> directories, long settleMillis) throws IOException {
+        this.feed = new WatchFeed(directories, settleMillis, this.index);
+        return this;
+    }
+
+    /**
+     * Takes jobs on port, on the loopback interface only; 0 picks a free port.
+     */
+    public UploadDaemon listen(int port) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        return this;
+    }
+
+    public int getPort() {
+        return this.server != null ? this.server.getLocalPort() : -1;
+    }
+
+    /**
+     * Runs until shutdown() or a SHUTDOWN job, then waits for uploads under way.
+     */
+    public void run() throws InterruptedException {
+        Thread watchThread = null;
+        if (this.feed != null) {
+            this.watchRun = newRun();
+            this.feed.start();
+            watchThread = new Thread(() -> {
+                try {
+                    this.watchRun.run(this.feed);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "watch-run");
+            watchThread.start();
+        }
+        Thread listenThread = null;
+        if (this.server != null) {
+            this.clientExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("daemon-client-%d").setDaemon(true).build());
+            listenThread = new Thread(this::accept, "daemon-listen");
+            listenThread.setDaemon(true);
+            listenThread.start();
+            print("Listening on " + this.server.getLocalSocketAddress());
+        }
+
+        try {
+            while (!this.stopping.await(Constants.DAEMON_SAVE_MILLIS, TimeUnit.MILLISECONDS)) {
+                saveIndex();
+            }
+        } finally {
+            print("Stopping.");
+            try {
+                stopTaking(watchThread);
+                this.context.getCleaner().await();
+                saveIndex();
+                print("Stopped: " + this + "; cleanup: " + this.context.getCleaner());
+            } finally {
+                this.stopped.countDown();
+            }
+        }
+    }
+
+    /**
+     * Closes the listener and the watch, and waits for the jobs and uploads they
+     * started.
+     */
+    private void stopTaking(Thread watchThread) throws InterruptedException {
+        if (this.server != null) {
+            try {
+                this.server.close();
+            } catch (IOException e) {
+                print("Could not close listener: " + e.getMessage());
+            }
+            // jobs under way are answered, then their connections end
+            this.clientExecutor.shutdown();
+            for (Socket client : this.clients) {
+                try {
+                    client.shutdownInput();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+            this.clientExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (this.feed != null) {
+            this.feed.stop();
+            watchThread.join();
+        }
+    }
+
+    /**
+     * Asks the daemon to stop, and returns at once.
+     */
+    public void shutdown() {
+        this.stopping.countDown();
+    }
+
+    /**
+     * Waits for the daemon to have stopped.
+     */
+    public void awaitStopped() throws InterruptedException {
+        this.stopped.await();
+    }
+
+    private UploadRun newRun() {
+        UploadRun run = new UploadRun(this.bucketName, this.context);
+        if (this.index != null) {
+            SyncIndex index = this.index;
+            run.setOnUploaded((file, crc32c) -> index.put(file.fileName, file.bytes, file.modifiedMillis,
+                    CRC32CMath.decode(crc32c)));
+        }
+        return run;
+    }
+
+    private void saveIndex() {
+        if (this.index != null) {
+            try {
+                this.index.save();
+            } catch (IOException e) {
+                print("Could not save sync index: " + e.getMessage());
+            }
+        }
+        if (this.context.getChunkIndex() != null) {
+            try {
+                this.context.getChunkIndex().save();
+            } catch (IOException e) {
+                print("Could not save chunk index: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() {
+        while (!this.server.isClosed()) {
+            Socket client;
+            try {
+                client = this.server.accept();
+            } catch (IOException e) {
+                if (!this.server.isClosed()) {
+                    print("Could not accept connection: " + e.getMessage());
+                }
+                continue;
+            }
+            try {
+                this.clients.add(client);
+                this.clientExecutor.execute(() -> serve(client));
+            } catch (RejectedExecutionException e) {
+                this.clients.remove(client);
+                close(client);
+            }
+        }
+    }
+
+    /**
+     * Answers each job sent on a connection, in order, until it is closed.
+     */
+    private void serve(Socket client) {
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(
+                        new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    out.println(execute(line));
+                }
+            }
+        } catch (IOException e) {
+            print("Connection ended: " + e.getMessage());
+        } finally {
+            this.clients.remove(client);
+            close(client);
+        }
+    }
+
+    private String execute(String line) {
+        int space = line.indexOf(' ');
+        String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+        String argument = space < 0 ? "" : line.substring(space + 1).trim();
+        switch (command) {
+        case "UPLOAD":
+            if (argument.isEmpty()) {
+                return "ERROR UPLOAD takes a path";
+            }
+            if (this.stopping.getCount() == 0) {
+                return "ERROR stopping";
+            }
+            return upload(argument);
+        case "RATE":
+            long megabitsPerSecond;
+            try {
+                megabitsPerSecond = Long.parseLong(argument);
+            } catch (NumberFormatException e) {
+                return "ERROR RATE takes Mb/s";
+            }
+            this.context.getGovernor().setBytesPerSecond(megabitsPerSecond * 1000 * 1000 / 8);
+            return "OK " + this.context.getGovernor();
+        case "STATUS":
+            return "OK " + this;
+        case "SHUTDOWN":
+            shutdown();
+            return "OK stopping";
+        default:
+            return "ERROR unknown command " + command;
+        }
+    }
+
+    /**
+     * Uploads path, a file or directory, with the daemon's context.
+     */
+    private String upload(String path) {
+        long startMillis = System.currentTimeMillis();
+        this.jobs.increment();
+        FileSource source = new FileSource(Collections.singletonList(path), Collections.<String>emptyList(), '\n');
+        UploadRun run = newRun();
+        try {
+            run.run(source.start());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.jobsFailed.increment();
+            return "ERROR interrupted";
+        }
+        String result = "uploaded " + run.getSucceeded() + ", failed " + run.getFailed()
+                + ", skipped " + source.getSkipped() + ", bytes " + run.getBytesUploaded()
+                + ", millis " + (System.currentTimeMillis() - startMillis);
+        if (run.getFailed() > 0 || source.getSkipped() > 0) {
+            this.jobsFailed.increment();
+            return "FAILED " + result;
+        }
+        return "OK " + result;
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder status = new StringBuilder();
+        if (this.watchRun != null) {
+            status.append("watched files uploaded ").append(this.watchRun.getSucceeded())
+                    .append(", failed ").append(this.watchRun.getFailed())
+                    .append(", unchanged ").append(this.feed.getUnchanged()).append("; ");
+        }
+        status.append("jobs ").append(this.jobs.sum()).append(", failed ").append(this.jobsFailed.sum())
+                .append("; ").append(this.context.getGovernor());
+        return status.toString();
+    }
+
+    private void print(String message) {
+        System.out.println("daemon: " + message);
+    }
+}
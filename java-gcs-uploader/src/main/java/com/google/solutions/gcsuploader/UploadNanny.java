@@ -19,98 +19,173 @@ package com.google.solutions.gcsuploader;
 import java.io.File;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import com.google.solutions.gcsuploader.uploaders.CompositeUpload;
+import com.google.solutions.gcsuploader.uploaders.DedupUpload;
 import com.google.solutions.gcsuploader.uploaders.SimpleUpload;
+import com.google.solutions.gcsuploader.uploaders.SmallUpload;
 import com.google.solutions.gcsuploader.uploaders.Uploader;
 
 /**
  * Test uploading a file to GCS.
  *
  */
-public class UploadNanny implements Runnable {
+public class UploadNanny {
     private String bucketName = null;
     private String fileName = null;
-    private static ThreadPoolExecutor commonExecutor = (ThreadPoolExecutor) Executors
-            .newFixedThreadPool(Constants.UPLOAD_THREADS);
+    private long bytes = 0;
+    private String crc32c = null;
+    private UploadContext context = null;
 
-    public UploadNanny(String bucketName, String fileName) {
+    public UploadNanny(String bucketName, String fileName, UploadContext context) {
+        this(bucketName, fileName, new File(fileName).length(), context);
+    }
+
+    /**
+     * For callers that already know the file's size, such as a directory walk.
+     */
+    public UploadNanny(String bucketName, String fileName, long bytes, UploadContext context) {
         this.bucketName = bucketName;
         this.fileName = fileName;
+        this.bytes = bytes;
+        this.context = context;
     }
 
-    public void run() {
-        // Calculate file size pre-flight
-        File testFile = new File(fileName);
-        long bytes = testFile.length();
+    /**
+     * Starts the upload once the file fits in the in-flight byte budget, returning
+     * a future that completes when it is uploaded and verified.
+     */
+    public CompletableFuture<Void> start() {
+        long bytes = this.bytes;
         float gigabytes = bytes / 1000 / 1000 / 1000;
 
-        // Perform the upload.
-        print("Starting upload of GB: " + gigabytes);
-        Instant start = Instant.now();
-        while (!doUpload()) {
-            print("Upload error! Waiting and retrying.");
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
+        ByteBudget inFlight = this.context.getInFlight();
+        return inFlight.acquire(bytes).thenCompose(granted -> {
+            // Perform the upload.
+            print("Starting upload of GB: " + gigabytes);
+            Instant start = Instant.now();
+            long startNanos = System.nanoTime();
+            return attempt(0).whenComplete((done, error) -> {
+                inFlight.release(granted);
+                if (error == null) {
+                    this.context.getMetrics().histogram("file." + uploaderType()).recordSince(startNanos);
+                    report(bytes, start);
+                }
+            });
+        });
+    }
+
+    private void report(long bytes, Instant start) {
         Instant finish = Instant.now();
         print("Completed upload.");
 
         // Compute and report statistics.
         Duration duration = Duration.between(start, finish);
         print("Elapsed time " + duration.toString());
-        float bytesPerSecond = bytes / duration.getSeconds();
+        // uploads to a fast backend can finish in under a second
+        float bytesPerSecond = bytes * 1000f / Math.max(duration.toMillis(), 1);
         float megabytesPerSecond = bytesPerSecond / 1000 / 1000;
         print("Effective MB/s: " + megabytesPerSecond);
         float megabitsPerSecond = (bytesPerSecond * 8) / 1000 / 1000;
         print("Average Mb/s: " + megabitsPerSecond);
     }
 
-    private Boolean doUpload() {
-        // The job here is to decide how to upload, and check success.
-        File inputFile = new File(this.fileName);
+    /**
+     * Uploads and verifies the file. Failed slices are retried by the uploader;
+     * only a checksum mismatch sends the whole file again, after a backoff that is
+     * scheduled rather than slept.
+     */
+    private CompletableFuture<Void> attempt(int failedAttempts) {
+        RetryPolicy retryPolicy = this.context.getRetryPolicy();
+        return doUpload().thenCompose(matched -> {
+            if (matched) {
+                return CompletableFuture.completedFuture(null);
+            }
+            int failures = failedAttempts + 1;
+            if (!retryPolicy.canRetry(failures)) {
+                throw new CompletionException(new RuntimeException(
+                        "Checksum mismatch on " + failures + " attempts, giving up on " + this.fileName));
+            }
+            print("Checksum mismatch! Waiting and retrying.");
+            this.context.getMetrics().counter("checksum.mismatches").increment();
+            Executor later = CompletableFuture.delayedExecutor(retryPolicy.delayMillis(failures),
+                    TimeUnit.MILLISECONDS, this.context.getIoExecutor());
+            return CompletableFuture.runAsync(() -> { }, later).thenCompose(waited -> attempt(failures));
+        });
+    }
 
+    /**
+     * Which uploader a file of this size goes to, as named in the metrics.
+     */
+    private String uploaderType() {
+        if (this.bytes < Constants.SMALL_FILE_THRESHOLD) {
+            return "small";
+        } else if (this.bytes < Constants.SLICED_THRESHOLD) {
+            return "simple";
+        } else if (this.context.getChunkIndex() != null) {
+            return "dedup";
+        }
+        return "composite";
+    }
+
+    private CompletableFuture<Boolean> doUpload() {
+        // The job here is to decide how to upload, and check success.
         // Form simple upload subtasks
         Uploader uploadWork;
-        if (inputFile.length() < Constants.SLICED_THRESHOLD) {
-            uploadWork = new SimpleUpload(this.bucketName, this.fileName);
+        String type = uploaderType();
+        if (type.equals("small")) {
+            uploadWork = new SmallUpload(this.bucketName, this.fileName, this.bytes, this.context);
+        } else if (type.equals("simple")) {
+            uploadWork = new SimpleUpload(this.bucketName, this.fileName, this.bytes, this.context);
+        } else if (type.equals("dedup")) {
+            uploadWork = new DedupUpload(this.bucketName, this.fileName, this.bytes, this.context);
         } else {
-            uploadWork = new CompositeUpload(this.bucketName, this.fileName, commonExecutor);
+            uploadWork = new CompositeUpload(this.bucketName, this.fileName, this.context);
         }
-        Future<?> uploadResult = commonExecutor.submit(uploadWork);
+        CompletableFuture<Void> uploadResult = uploadWork.start();
         print("Started upload.");
-        CRC32CFile checksumWork = new CRC32CFile(this.fileName);
-        Future<?> checksumResult = commonExecutor.submit(checksumWork);
-        print("Started checksum.");
-        // Wait for subtasks to complete
-        try {
-            checksumResult.get();
-            print("Completed checksum.");
-            uploadResult.get();
-            print("Completed upload.");
-        } catch (InterruptedException | ExecutionException e) {
-            System.err.println("Error writing chunk.");
-            e.printStackTrace();
+        // The uploader hashes bytes as it sends them; a second read of the file is
+        // only done on request.
+        CompletableFuture<String> checksumResult = CompletableFuture.completedFuture(null);
+        if (this.context.getVerifyFile()) {
+            long checksumStart = System.nanoTime();
+            checksumResult = new CRC32CFile(this.fileName).checksumAsync().thenApply(checksum -> {
+                this.context.getMetrics().histogram("checksum").recordSince(checksumStart);
+                return CRC32CMath.encode(checksum);
+            });
+            print("Started checksum.");
         }
-        String blobChecksum = uploadWork.getCrc32c();
-        String fileChecksum = checksumWork.crc32c;
-        print("\n\tChecksum for blob: " + blobChecksum + "\n\tChecksum for file: " + fileChecksum);
-        return fileChecksum.equals(blobChecksum);
+
+        return uploadResult.thenCombine(checksumResult, (uploaded, fileChecksum) -> {
+            String blobChecksum = uploadWork.getCrc32c();
+            String streamChecksum = uploadWork.getComputedCrc32c();
+            print("\n\tChecksum for blob: " + blobChecksum + "\n\tChecksum for stream: " + streamChecksum);
+            if (streamChecksum == null || !streamChecksum.equals(blobChecksum)) {
+                return false;
+            }
+            if (this.context.getVerifyFile()) {
+                print("\n\tChecksum for file: " + fileChecksum);
+                if (!blobChecksum.equals(fileChecksum)) {
+                    return false;
+                }
+            }
+            this.crc32c = blobChecksum;
+            return true;
+        });
     }
 
-    private void print(String message) {
-        System.out.println(this.fileName + ": " + message);
+    /**
+     * The verified checksum of the uploaded object, once the upload has completed.
+     */
+    public String getCrc32c() {
+        return this.crc32c;
     }
 
-    public static void shutdown() {
-        commonExecutor.shutdown();
+    private void print(String message) {
+        System.out.println(this.fileName + ": " + message);
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * UploadRun
+ *
+ * Takes files from a FileFeed and starts an upload for each, keeping at most
+ * MAX_PENDING_FILES unfinished at once. Outcomes are tallied as each upload
+ * completes, so nothing is kept per file once it is done. The run's makespan,
+ * from the first upload starting to the last finishing, is what scheduling
+ * across files tries to keep short.
+ */
+public class UploadRun {
+
+    private final String bucketName;
+    private final UploadContext context;
+    private final Semaphore pending = new Semaphore(Constants.MAX_PENDING_FILES);
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final AtomicLong firstStartNanos = new AtomicLong();
+    private final AtomicLong lastDoneNanos = new AtomicLong();
+    private BiConsumer<FileSource.Entry, String> onUploaded = null;
+
+    public UploadRun(String bucketName, UploadContext context) {
+        this.bucketName = bucketName;
+        this.context = context;
+    }
+
+    /**
+     * Called with each file and its verified checksum as its upload completes.
+     */
+    public UploadRun setOnUploaded(BiConsumer<FileSource.Entry, String> onUploaded) {
+        this.onUploaded = onUploaded;
+        return this;
+    }
+
+    /**
+     * Uploads every file the feed yields, and returns once all have finished.
+     */
+    public void run(FileFeed feed) throws InterruptedException {
+        FileSource.Entry entry;
+        while ((entry = feed.next()) != null) {
+            this.pending.acquire();
+            this.firstStartNanos.compareAndSet(0, System.nanoTime());
+            this.started.increment();
+            FileSource.Entry file = entry;
+            long bytes = entry.bytes;
+            String fileName = entry.fileName;
+            UploadNanny nanny = new UploadNanny(this.bucketName, fileName, bytes, this.context);
+            nanny.start()
+                    .whenComplete((done, error) -> {
+                        if (error == null) {
+                            this.succeeded.increment();
+                            this.bytesUploaded.add(bytes);
+                            if (this.onUploaded != null) {
+                                this.onUploaded.accept(file, nanny.getCrc32c());
+                            }
+                        } else {
+                            this.failed.increment();
+                            print("Upload of " + fileName + " failed: " + RetryPolicy.unwrap(error));
+                        }
+                        this.lastDoneNanos.accumulateAndGet(System.nanoTime(), Math::max);
+                        this.pending.release();
+                    });
+        }
+        // every permit back means every upload has finished
+        this.pending.acquire(Constants.MAX_PENDING_FILES);
+        this.pending.release(Constants.MAX_PENDING_FILES);
+    }
+
+    public long getStarted() {
+        return this.started.sum();
+    }
+
+    public long getSucceeded() {
+        return this.succeeded.sum();
+    }
+
+    public long getFailed() {
+        return this.failed.sum();
+    }
+
+    public long getBytesUploaded() {
+        return this.bytesUploaded.sum();
+    }
+
+    /**
+     * Time from the first upload starting to the last one finishing.
+     */
+    public long getMakespanMillis() {
+        long first = this.firstStartNanos.get();
+        return first == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(Math.max(0, this.lastDoneNanos.get() - first));
+    }
+
+    private void print(String message) {
+        System.out.println("main: " + message);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.solutions.gcsuploader.sync.SyncIndex;
+
+/**
+ * WatchFeed
+ *
+ * Feeds the files that appear or change under a set of directories, watching
+ * them, and the subdirectories created in them, with a WatchService. A file is
+ * passed on only once it has settled: its size and modification time unchanged
+ * for the settle time, so one still being written or copied in is not uploaded
+ * half done. Files already there when watching starts are checked the same way.
+ * Files passed on before, or recorded unchanged in the sync index if there is
+ * one, are not passed on again until they change. Only the most recently seen
+ * WATCH_PASSED_FILES are remembered as passed on; the index, which records each
+ * upload, is what keeps older ones from going again.
+ */
+public class WatchFeed implements FileFeed, Runnable {
+
+    // marks the end of the feed in the queue
+    private static final FileSource.Entry END = new FileSource.Entry(null, 0, 0);
+
+    private final List<Path> directories;
+    private final long settleMillis;
+    private final SyncIndex index;
+    private final WatchService watcher;
+    private final BlockingQueue<FileSource.Entry> queue;
+    // only used on the watching thread
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private final Map<Path, Candidate> candidates = new HashMap<Path, Candidate>();
+    // least recently seen first, so the oldest are dropped once it is full
+    private final Map<Path, FileSource.Entry> passed = new LinkedHashMap<Path, FileSource.Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, FileSource.Entry> eldest) {
+            return size() > Constants.WATCH_PASSED_FILES;
+        }
+    };
+    private final LongAdder settled = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param directories directories to watch, recursively.
+     * @param settleMillis how long a file must stay the same before it is passed on.
+     * @param index files recorded in it as uploaded, and unchanged since, are skipped; may be null.
+     */
+    public WatchFeed(List<Path> directories, long settleMillis, SyncIndex index) throws IOException {
+        this.directories = directories;
+        this.settleMillis = settleMillis;
+        this.index = index;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.queue = new ArrayBlockingQueue<FileSource.Entry>(Constants.FILE_QUEUE_SIZE);
+    }
+
+    /**
+     * Starts watching on a daemon thread.
+     */
+    public WatchFeed start() {
+        Thread thread = new Thread(this, "watch-feed");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Stops watching. Files not yet settled are dropped, and the feed ends once
+     * those already passed on have been taken.
+     */
+    public void stop() {
+        this.stopped = true;
+        try {
+            this.watcher.close();
+        } catch (IOException e) {
+            print("Could not close watcher: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (Path directory : this.directories) {
+                register(directory);
+            }
+            print("Watching " + this.keys.size() + " directories.");
+            while (!this.stopped) {
+                WatchKey key = this.watcher.poll(Constants.WATCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handle(key);
+                    key = this.watcher.poll();
+                }
+                settle();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            print("Watching stopped: " + e.getMessage());
+        } finally {
+            this.stopped = true;
+            try {
+                this.queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public FileSource.Entry next() throws InterruptedException {
+        FileSource.Entry entry = this.queue.take();
+        if (entry == END) {
+            // leave the marker for any other consumer
+            this.queue.put(END);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Files passed on so far, and files found but skipped as uploaded before.
+     */
+    public long getSettled() {
+        return this.settled.sum();
+    }
+
+    public long getUnchanged() {
+        return this.unchanged.sum();
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        Path directory = this.keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, so look at everything again
+                print("Watch events overflowed, rescanning.");
+                for (Path root : this.directories) {
+                    register(root);
+                }
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path child = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                this.candidates.remove(child);
+                this.passed.remove(child);
+            } else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                // files may have been created in it before it was registered
+                register(child);
+            } else {
+                Candidate candidate = this.candidates.get(child);
+                if (candidate != null) {
+                    candidate.stableSince = System.currentTimeMillis();
+                } else {
+                    this.candidates.put(child, new Candidate());
+                }
+            }
+        }
+        if (!key.reset()) {
+            this.keys.remove(key);
+        }
+    }
+
+    /**
+     * Watches directory and every directory under it, taking the files in them
+     * as candidates.
+     */
+    private void register(Path directory) throws IOException {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                        throws IOException {
+                    // registering again returns the same key
+                    WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    keys.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && !candidates.containsKey(file)) {
+                        candidates.put(file, new Candidate());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            // removed before it could be watched
+        }
+    }
+
+    /**
+     * Looks at each candidate again, and passes on those that have not changed
+     * for the settle time.
+     */
+    private void settle() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Candidate>> iterator = this.candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Candidate> next = iterator.next();
+            Path file = next.getKey();
+            Candidate candidate = next.getValue();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                iterator.remove();
+                continue;
+            }
+            if (!attributes.isRegularFile()) {
+                iterator.remove();
+                continue;
+            }
+            long bytes = attributes.size();
+            long modifiedMillis = attributes.lastModifiedTime().toMillis();
+            if (bytes != candidate.bytes || modifiedMillis != candidate.modifiedMillis) {
+                candidate.bytes = bytes;
+                candidate.modifiedMillis = modifiedMillis;
+                candidate.stableSince = now;
+                continue;
+            }
+            if (now - candidate.stableSince < this.settleMillis) {
+                continue;
+            }
+            iterator.remove();
+            FileSource.Entry before = this.passed.get(file);
+            SyncIndex.Record record = this.index != null ? this.index.get(file.toString()) : null;
+            if ((before != null && before.bytes == bytes && before.modifiedMillis == modifiedMillis)
+                    || (record != null && record.matches(bytes, modifiedMillis))) {
+                this.unchanged.increment();
+                continue;
+            }
+            FileSource.Entry entry = new FileSource.Entry(file.toString(), bytes, modifiedMillis);
+            this.passed.put(file, entry);
+            this.settled.increment();
+            this.queue.put(entry);
+        }
+    }
+
+    private static class Candidate {
+        private long bytes = -1;
+        private long modifiedMillis = -1;
+        private long stableSince = System.currentTimeMillis();
+    }
+
+    private void print(String message) {
+        System.out.println("watch: " + message);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * WorkScheduler
+ *
+ * A pool whose queue is ordered by size rather than arrival, so that work from
+ * every file in a run is one pool. Work is ranked by the bytes it has to move:
+ * the I/O pool runs the largest first, which keeps a big file's slices from
+ * being left for last, and the small-file pool runs the smallest first, so most
+ * files finish early. Work that is not ranked, such as planning and compose
+ * stages, is short and frees more work, so it goes ahead of all ranked work, in
+ * order of arrival.
+ *
+ * When the queue runs dry while fewer transfers are running than it takes to
+ * fill the link, workers as they finish split the running transfer with the
+ * most left to send, and run the part split off. The tail of a batch is then
+ * spread over every connection instead of waiting on the slowest slice.
+ */
+public class WorkScheduler extends ThreadPoolExecutor {
+
+    /**
+     * A transfer under way that can give up the unsent rest of its work.
+     */
+    public interface Splittable {
+
+        /**
+         * Bytes left that another worker could take.
+         */
+        long remaining();
+
+        /**
+         * Splits off part of what is left and schedules it as new work, returning
+         * whether it did.
+         */
+        boolean split();
+    }
+
+    private static final long UNRANKED = -1;
+
+    private final boolean largestFirst;
+    private final AtomicLong arrivals = new AtomicLong();
+    private final Set<Splittable> running = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Long> taskStart = new ThreadLocal<Long>();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private IntSupplier wantedTransfers = () -> 0;
+
+    /**
+     * @param threads      pool size.
+     * @param nameFormat   thread names, with %d for a number.
+     * @param largestFirst whether ranked work runs largest first, or smallest first.
+     */
+    public WorkScheduler(int threads, String nameFormat, boolean largestFirst) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+        this.largestFirst = largestFirst;
+    }
+
+    /**
+     * How many transfers it takes to fill the link. Running ones are split only
+     * while there are fewer than this; with none set, they are never split.
+     */
+    public void setWantedTransfers(IntSupplier wantedTransfers) {
+        this.wantedTransfers = wantedTransfers;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(command instanceof Ranked ? command : new Ranked(command, UNRANKED));
+    }
+
+    /**
+     * An executor that queues work ranked by the bytes it moves.
+     */
+    public Executor ranked(long bytes) {
+        return command -> execute(new Ranked(command, Math.max(0, bytes)));
+    }
+
+    /**
+     * Offers a running transfer for splitting until done() is called for it.
+     */
+    public void running(Splittable transfer) {
+        this.running.add(transfer);
+    }
+
+    public void done(Splittable transfer) {
+        this.running.remove(transfer);
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        this.taskStart.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable error) {
+        this.busyNanos.add(System.nanoTime() - this.taskStart.get());
+        if (!this.running.isEmpty() && getQueue().isEmpty()) {
+            steal();
+        }
+    }
+
+    /**
+     * Splits the transfers with the most left while workers are idle and the
+     * link wants more transfers.
+     */
+    private synchronized void steal() {
+        // this worker is still counted as active until it returns
+        int busy = getActiveCount() - 1;
+        int idle = getMaximumPoolSize() - busy;
+        int wanted = this.wantedTransfers.getAsInt() - busy;
+        for (int idx = 0; idx < Math.min(idle, wanted) && getQueue().size() < idle; idx++) {
+            Splittable largest = null;
+            long most = 0;
+            for (Splittable transfer : this.running) {
+                long remaining = transfer.remaining();
+                if (remaining > most) {
+                    largest = transfer;
+                    most = remaining;
+                }
+            }
+            if (largest == null || !largest.split()) {
+                return;
+            }
+            this.splits.increment();
+        }
+    }
+
+    /**
+     * Transfers split so far.
+     */
+    public long getSplits() {
+        return this.splits.sum();
+    }
+
+    /**
+     * Time workers have spent running work, across every worker.
+     */
+    public long getBusyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.busyNanos.sum());
+    }
+
+    /**
+     * Work in the queue, with its rank and its place in arrival order.
+     */
+    private class Ranked implements Runnable, Comparable<Ranked> {
+        private final Runnable command;
+        private final long bytes;
+        private final long arrival;
+
+        Ranked(Runnable command, long bytes) {
+            this.command = command;
+            this.bytes = bytes;
+            this.arrival = arrivals.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            this.command.run();
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            if (this.bytes != other.bytes) {
+                if (this.bytes == UNRANKED || other.bytes == UNRANKED) {
+                    return this.bytes == UNRANKED ? -1 : 1;
+                }
+                int bySize = Long.compare(this.bytes, other.bytes);
+                return largestFirst ? -bySize : bySize;
+            }
+            return Long.compare(this.arrival, other.arrival);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.dedup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.solutions.gcsuploader.RecordFile;
+
+/**
+ * ChunkIndex
+ *
+ * The content-addressed chunks known to be in the bucket, under a prefix, each
+ * an object named by the SHA-256 of its bytes. A chunk listed here is not sent
+ * again, nor looked up in the bucket. Chunks are only listed once a file made
+ * of them has been composed and its checksum matched, or once found in the
+ * bucket with the size and CRC32C expected.
+ *
+ * On disk it is a RecordFile, read in one sequential pass and replaced
+ * atomically on save.
+ */
+public class ChunkIndex {
+
+    private static final int MAGIC = 0x4743534b; // "GCSK"
+    private static final int VERSION = 1;
+    private static final RecordFile.Format<Record> FORMAT = new RecordFile.Format<Record>() {
+        @Override
+        public Record read(DataInputStream in) throws IOException {
+            return new Record(in.readLong(), in.readInt());
+        }
+
+        @Override
+        public void write(DataOutputStream out, Record record) throws IOException {
+            out.writeLong(record.bytes);
+            out.writeInt(record.crc32c);
+        }
+    };
+
+    /**
+     * What a chunk's object holds.
+     */
+    public static class Record {
+        public final long bytes;
+        public final int crc32c;
+
+        public Record(long bytes, int crc32c) {
+            this.bytes = bytes;
+            this.crc32c = crc32c;
+        }
+
+        public boolean matches(long bytes, int crc32c) {
+            return this.bytes == bytes && this.crc32c == crc32c;
+        }
+    }
+
+    private final RecordFile<Record> file;
+    private final String prefix;
+    private final Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+    private ChunkIndex(Path path, String bucketName, String prefix) {
+        this.file = new RecordFile<Record>(path, MAGIC, VERSION, FORMAT, bucketName, prefix);
+        this.prefix = prefix;
+    }
+
+    /**
+     * Loads the index at path, or starts an empty one if there is none. An index
+     * written for another bucket or prefix is not used.
+     */
+    public static ChunkIndex load(Path path, String bucketName, String prefix) throws IOException {
+        ChunkIndex index = new ChunkIndex(path, bucketName, prefix);
+        if (!index.file.read(index.records)) {
+            System.out.println("dedup: Index " + path + " is not for this bucket and prefix, starting a new one.");
+        }
+        return index;
+    }
+
+    /**
+     * The object a chunk with this SHA-256, in hex, is stored as.
+     */
+    public String objectName(String sha256) {
+        return this.prefix + sha256;
+    }
+
+    public Record get(String sha256) {
+        return this.records.get(sha256);
+    }
+
+    public void put(String sha256, long bytes, int crc32c) {
+        this.records.put(sha256, new Record(bytes, crc32c));
+    }
+
+    /**
+     * Forgets a chunk, which will be looked up in the bucket again when next needed.
+     */
+    public void remove(String sha256) {
+        this.records.remove(sha256);
+    }
+
+    public int size() {
+        return this.records.size();
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it into place.
+     */
+    public synchronized void save() throws IOException {
+        // uploads may still be recording; the file writes a snapshot
+        this.file.write(this.records);
+    }
+}
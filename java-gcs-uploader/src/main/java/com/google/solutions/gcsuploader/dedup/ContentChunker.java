@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.dedup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import com.google.common.io.BaseEncoding;
+
+import com.google.solutions.gcsuploader.Constants;
+
+/**
+ * ContentChunker
+ *
+ * Cuts a file into chunks where its content says to, rather than at fixed
+ * offsets, so that bytes inserted or removed in one place move the boundaries
+ * near there and nowhere else. A gear hash rolls over the bytes, and a chunk
+ * ends where its high-order bits, the ones that depend on all of the last 64
+ * bytes, are all zero. As in FastCDC, the first quarter of the average size is
+ * skipped without hashing, and the test takes more bits before the average
+ * size and fewer after, which keeps chunk sizes close to the average. Each
+ * chunk is named by its SHA-256 and carries its CRC32C, both computed in the
+ * same pass. A chunker scans one file at a time.
+ */
+public class ContentChunker {
+
+    // java.util.Random's sequence is fixed by its specification, so every JVM
+    // builds the same table and cuts the same file in the same places
+    private static final long GEAR_SEED = 0x6763737570646564L;
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Told of each chunk, in file order.
+     */
+    public interface Consumer {
+        void chunk(long start, long length, String sha256, int crc32c) throws IOException;
+    }
+
+    private final long averageBytes;
+    private final long minBytes;
+    private final long maxBytes;
+    // more bits, so fewer cuts, until a chunk reaches the average size; fewer after
+    private final long smallMask;
+    private final long largeMask;
+    private long fingerprint;
+
+    /**
+     * @param averageBytes the size chunks average out to, a power of two.
+     */
+    public ContentChunker(long averageBytes) {
+        if (Long.bitCount(averageBytes) != 1 || averageBytes < 1024) {
+            throw new IllegalArgumentException("Average chunk size must be a power of two of at least 1024");
+        }
+        int bits = Long.numberOfTrailingZeros(averageBytes);
+        this.averageBytes = averageBytes;
+        this.minBytes = averageBytes / 4;
+        this.maxBytes = averageBytes * 4;
+        // the top bits of a left-shifting hash are the ones all of the window has reached
+        this.smallMask = -1L << (64 - (bits + 2));
+        this.largeMask = -1L << (64 - (bits - 2));
+    }
+
+    /**
+     * The average chunk size for a file: DEDUP_CHUNK_BYTES, or more for a file so
+     * big its chunks would not fit in a composite object. A power of two, so that
+     * a file that grows or shrinks a little keeps the size, and its boundaries.
+     */
+    public static long averageFor(long fileBytes) {
+        long wanted = (fileBytes + Constants.DEDUP_CHUNKS_PER_FILE - 1) / Constants.DEDUP_CHUNKS_PER_FILE;
+        long average = Constants.DEDUP_CHUNK_BYTES;
+        while (average < wanted) {
+            average *= 2;
+        }
+        return average;
+    }
+
+    public long getAverageBytes() {
+        return this.averageBytes;
+    }
+
+    /**
+     * Reads length bytes of input from the start, in one sequential pass, and
+     * passes on each chunk as it ends. At most maxChunks are cut; the last takes
+     * whatever is left. Returns how many there were.
+     */
+    public int scan(FileChannel input, long length, int maxChunks, Consumer consumer) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        CRC32C crc32c = new CRC32C();
+        byte[] bytes = new byte[Constants.IO_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int chunks = 0;
+        long chunkStart = 0;
+        long position = 0;
+        this.fingerprint = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(bytes.length, length - position));
+            int read = input.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File ended at " + position + ", expected " + length);
+            }
+            // bytes from, up to the next cut, belong to the chunk being built
+            int from = 0;
+            int next = 0;
+            while (next < read) {
+                long inChunk = position + next - chunkStart;
+                int cut;
+                if (chunks == maxChunks - 1) {
+                    // the last chunk allowed takes the rest
+                    cut = -1;
+                    next = read;
+                } else if (inChunk < this.minBytes) {
+                    // no cut this early, so no need to hash
+                    cut = -1;
+                    next += (int) Math.min(read - next, this.minBytes - inChunk);
+                } else if (inChunk < this.averageBytes) {
+                    int to = next + (int) Math.min(read - next, this.averageBytes - inChunk);
+                    cut = findCut(bytes, next, to, this.smallMask);
+                    next = cut > 0 ? cut : to;
+                } else {
+                    int to = next + (int) Math.min(read - next, this.maxBytes - inChunk);
+                    cut = findCut(bytes, next, to, this.largeMask);
+                    if (cut < 0 && position + to - chunkStart == this.maxBytes) {
+                        cut = to;
+                    }
+                    next = cut > 0 ? cut : to;
+                }
+                if (cut > 0) {
+                    sha256.update(bytes, from, cut - from);
+                    crc32c.update(bytes, from, cut - from);
+                    long end = position + cut;
+                    consumer.chunk(chunkStart, end - chunkStart, encode(sha256.digest()), (int) crc32c.getValue());
+                    crc32c.reset();
+                    chunks++;
+                    chunkStart = end;
+                    from = cut;
+                    this.fingerprint = 0;
+                }
+            }
+            sha256.update(bytes, from, read - from);
+            crc32c.update(bytes, from, read - from);
+            position += read;
+        }
+        if (chunkStart < length || chunks == 0) {
+            consumer.chunk(chunkStart, length - chunkStart, encode(sha256.digest()), (int) crc32c.getValue());
+            chunks++;
+        }
+        return chunks;
+    }
+
+    /**
+     * Rolls the hash over bytes from to to, returning the index just past the
+     * first byte where it matches mask, or -1 if it does not.
+     */
+    private int findCut(byte[] bytes, int from, int to, long mask) {
+        long fingerprint = this.fingerprint;
+        for (int i = from; i < to; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[bytes[i] & 0xff];
+            if ((fingerprint & mask) == 0) {
+                this.fingerprint = fingerprint;
+                return i + 1;
+            }
+        }
+        this.fingerprint = fingerprint;
+        return -1;
+    }
+
+    private static String encode(byte[] digest) {
+        return BaseEncoding.base16().lowerCase().encode(digest);
+    }
+}
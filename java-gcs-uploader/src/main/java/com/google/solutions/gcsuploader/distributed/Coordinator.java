@@ -0,0 +1,279 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.distributed;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+
+import com.google.solutions.gcsuploader.CRC32CFile;
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.FileFeed;
+import com.google.solutions.gcsuploader.FileSource;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.uploaders.ComposeTree;
+import com.google.solutions.gcsuploader.uploaders.CompositeUpload;
+import com.google.solutions.gcsuploader.uploaders.SimpleUpload;
+
+/**
+ * Coordinator
+ *
+ * Spreads an upload over workers on several hosts, which together have more
+ * network than one. It lays the files out as tasks in a manifest on a shared
+ * file system, whole for small files and in slices for large ones, planned as
+ * CompositeUpload plans them, and leaves the sending to the workers. As the
+ * last task of a file is recorded done, it composes the file's slices into its
+ * object and checks the object's CRC32C against the one combined from the
+ * workers' slice checksums, or for a file sent whole, against the worker's.
+ * With verify-file set, the file is also hashed where the coordinator reads it.
+ *
+ * A manifest left by a coordinator that stopped is picked up where it was, with
+ * the tasks already done kept.
+ */
+public class Coordinator {
+
+    private final String bucketName;
+    private final Path directory;
+    private final UploadContext context;
+    private final LongAdder filesSucceeded = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private long bytes = 0;
+    private int reassigned = 0;
+
+    public Coordinator(String bucketName, Path directory, UploadContext context) {
+        this.bucketName = bucketName;
+        this.directory = directory;
+        this.context = context;
+    }
+
+    /**
+     * Plans the files from feed, unless resuming, then waits for the workers,
+     * composing and verifying each file as its tasks are done. Returns whether
+     * every file was uploaded and verified.
+     */
+    public boolean run(FileFeed feed) throws IOException, InterruptedException {
+        WorkManifest manifest = WorkManifest.open(this.directory);
+        if (manifest != null) {
+            if (!manifest.getBucketName().equals(this.bucketName)) {
+                throw new IOException("The upload in " + this.directory + " is to " + manifest.getBucketName()
+                        + ", not " + this.bucketName);
+            }
+            if (manifest.isFinished()) {
+                throw new IOException("The upload in " + this.directory + " has finished; use a new directory");
+            }
+            print("Resuming the upload of " + manifest.getFiles().size() + " files in " + this.directory + ".");
+        } else {
+            manifest = plan(feed);
+        }
+
+        Map<WorkManifest.FileEntry, CompletableFuture<Boolean>> finishing =
+                new HashMap<WorkManifest.FileEntry, CompletableFuture<Boolean>>();
+        Map<Integer, WorkManifest.Result> results = new HashMap<Integer, WorkManifest.Result>();
+        // tasks of each file not yet done, so a file is finished as its last one is
+        Map<WorkManifest.FileEntry, Integer> tasksLeft = new HashMap<WorkManifest.FileEntry, Integer>();
+        for (WorkManifest.FileEntry file : manifest.getFiles()) {
+            tasksLeft.put(file, file.tasks.size());
+        }
+        int lastFailed = 0;
+        while (finishing.size() < manifest.getFiles().size()) {
+            boolean changed = false;
+            for (WorkManifest.Result result : manifest.newResults()) {
+                WorkManifest.Result known = results.get(result.taskId);
+                if (known != null) {
+                    // done as well by a worker that lost its lease; the same bytes
+                    if (result.lease > known.lease) {
+                        this.reassigned += result.lease - known.lease;
+                        results.put(result.taskId, result);
+                    }
+                    continue;
+                }
+                results.put(result.taskId, result);
+                this.reassigned += result.lease;
+                changed = true;
+                WorkManifest.FileEntry file = manifest.getTasks().get(result.taskId).file;
+                if (tasksLeft.merge(file, -1, Integer::sum) == 0 && !finishing.containsKey(file)) {
+                    finishing.put(file, finish(file, results));
+                }
+            }
+            Map<Integer, WorkManifest.Failure> failures = manifest.failures();
+            for (Map.Entry<Integer, WorkManifest.Failure> failure : failures.entrySet()) {
+                WorkManifest.FileEntry file = manifest.getTasks().get(failure.getKey()).file;
+                // a worker that lost its lease may fail a task another worker has done
+                if (finishing.containsKey(file) || results.containsKey(failure.getKey())) {
+                    continue;
+                }
+                print("Upload of " + file.fileName + " failed: " + failure.getValue().worker + ": "
+                        + failure.getValue().message);
+                abort(file);
+                finishing.put(file, CompletableFuture.completedFuture(false));
+            }
+            if (changed || failures.size() != lastFailed) {
+                lastFailed = failures.size();
+                print(results.size() + " of " + manifest.getTasks().size() + " tasks done, "
+                        + failures.size() + " failed, " + this.reassigned + " leases taken over.");
+            }
+            if (finishing.size() < manifest.getFiles().size()) {
+                Thread.sleep(Constants.MANIFEST_POLL_MILLIS);
+            }
+        }
+
+        for (Map.Entry<WorkManifest.FileEntry, CompletableFuture<Boolean>> file : finishing.entrySet()) {
+            boolean verified;
+            try {
+                verified = file.getValue().join();
+            } catch (CompletionException e) {
+                print("Upload of " + file.getKey().fileName + " failed: " + RetryPolicy.unwrap(e));
+                verified = false;
+            }
+            if (verified) {
+                this.filesSucceeded.increment();
+                this.bytes += file.getKey().bytes;
+            } else {
+                this.filesFailed.increment();
+            }
+        }
+        manifest.finish();
+        return this.filesFailed.sum() == 0;
+    }
+
+    /**
+     * Lays out every file from feed as tasks and writes the manifest.
+     */
+    private WorkManifest plan(FileFeed feed) throws IOException, InterruptedException {
+        WorkManifest manifest = WorkManifest.create(this.directory, this.bucketName);
+        int tasks = 0;
+        FileSource.Entry entry;
+        while ((entry = feed.next()) != null) {
+            String path = Paths.get(entry.fileName).toAbsolutePath().toString();
+            if (entry.bytes < Constants.SLICED_THRESHOLD) {
+                manifest.addWhole(entry.fileName, path, entry.bytes, entry.modifiedMillis);
+                tasks++;
+                continue;
+            }
+            int sliceCount = this.context.getSlices() > 0
+                    ? (int) Math.min(this.context.getSlices(), Math.min(Constants.MAX_SLICES, entry.bytes))
+                    : CompositeUpload.sliceCount(entry.bytes, this.context.getBandwidth(),
+                            this.context.getStreamBytesPerSecond());
+            List<Long> starts = new ArrayList<Long>();
+            long sliceBytes = entry.bytes / sliceCount;
+            for (int idx = 0; idx < sliceCount; idx++) {
+                starts.add(idx * sliceBytes);
+            }
+            manifest.addComposite(entry.fileName, path, entry.bytes, entry.modifiedMillis, starts);
+            tasks += sliceCount;
+        }
+        manifest.save();
+        print("Planned " + manifest.getFiles().size() + " files as " + tasks + " tasks in " + this.directory + ".");
+        return manifest;
+    }
+
+    /**
+     * Composes a file whose tasks are all done, if it was sliced, and checks its
+     * object's checksum against the workers'.
+     */
+    private CompletableFuture<Boolean> finish(WorkManifest.FileEntry file, Map<Integer, WorkManifest.Result> results) {
+        // fold each slice checksum into the whole-file checksum, in order
+        int expected = 0;
+        for (WorkManifest.Task task : file.tasks) {
+            WorkManifest.Result result = results.get(task.id);
+            expected = task.index == 0 ? result.crc32c : CRC32CMath.combine(expected, result.crc32c, result.bytes);
+        }
+        int workersCrc32c = expected;
+        CompletableFuture<Blob> object;
+        if (file.composite) {
+            List<String> sliceNames = new ArrayList<String>();
+            for (WorkManifest.Task task : file.tasks) {
+                sliceNames.add(task.objectName());
+            }
+            print("Composing " + file.fileName + " from " + sliceNames.size() + " slices.");
+            object = new ComposeTree(this.bucketName, file.fileName, this.context).compose(sliceNames)
+                    .whenComplete((blob, error) -> this.context.getCleaner().deleteLater(this.bucketName,
+                            sliceNames));
+        } else {
+            object = this.context.getRetryPolicy().retryAsync(
+                    () -> this.context.getStorage().get(BlobId.of(this.bucketName, file.fileName)),
+                    SimpleUpload::isRetryable,
+                    (failedAttempts, e) -> System.err.println(file.fileName + ": Get failed, retrying: " + e),
+                    this.context.getIoExecutor());
+        }
+        CompletableFuture<Integer> fileCrc32c = this.context.getVerifyFile()
+                ? new CRC32CFile(file.path).checksumAsync()
+                : CompletableFuture.completedFuture(workersCrc32c);
+        return object.thenCombine(fileCrc32c, (blob, fileChecksum) -> {
+            String blobChecksum = blob == null ? null : blob.getCrc32c();
+            print(file.fileName + ":\n\tChecksum for blob: " + blobChecksum + "\n\tChecksum from workers: "
+                    + CRC32CMath.encode(workersCrc32c)
+                    + (this.context.getVerifyFile() ? "\n\tChecksum for file: " + CRC32CMath.encode(fileChecksum)
+                            : ""));
+            return blobChecksum != null && CRC32CMath.decode(blobChecksum) == workersCrc32c
+                    && fileChecksum == workersCrc32c;
+        });
+    }
+
+    /**
+     * Deletes whatever slices of a failed file were written.
+     */
+    private void abort(WorkManifest.FileEntry file) {
+        if (!file.composite) {
+            return;
+        }
+        List<String> sliceNames = new ArrayList<String>();
+        for (WorkManifest.Task task : file.tasks) {
+            sliceNames.add(task.objectName());
+        }
+        this.context.getCleaner().deleteLater(this.bucketName, sliceNames);
+    }
+
+    public long getFilesSucceeded() {
+        return this.filesSucceeded.sum();
+    }
+
+    public long getFilesFailed() {
+        return this.filesFailed.sum();
+    }
+
+    /**
+     * Bytes in the files uploaded and verified.
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Leases taken over from workers that stopped renewing them, on the tasks
+     * done.
+     */
+    public int getReassigned() {
+        return this.reassigned;
+    }
+
+    private void print(String message) {
+        System.out.println("coordinator: " + message);
+    }
+}
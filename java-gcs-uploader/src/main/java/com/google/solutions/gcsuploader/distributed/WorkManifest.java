@@ -0,0 +1,493 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * WorkManifest
+ *
+ * The work of a distributed upload, kept in a directory that the coordinator
+ * and every worker share, such as one on NFS:
+ *
+ *   job          the files and their tasks, written once by the coordinator
+ *   leases/ID.N     the Nth lease on task ID, naming the worker that holds it;
+ *                   its modification time is when the worker last renewed it
+ *   results/WORKER  the tasks WORKER finished, with the bytes sent and CRC32C
+ *                   of each, appended as each is done
+ *   done/ID         marks task ID finished, for workers looking for tasks
+ *   failed/ID       why a task could not be done, and under which lease
+ *   finished        written by the coordinator once every file is composed
+ *
+ * Nothing that grows with the number of tasks is listed. The coordinator reads
+ * each worker's log on from where it last stopped, and a worker looks only at
+ * the done marker and leases of a task it is about to take. Tasks fail seldom,
+ * and their directory is read whole.
+ *
+ * A task is a whole small file, or a slice of a large one. A lease is taken by
+ * creating its file, which fails if the file exists, so only one worker gets
+ * it. A lease not renewed for the lease time has expired, and another worker
+ * takes the task over by creating the lease numbered one higher, so of several
+ * workers finding the same lease expired, only one gets the task. The hosts'
+ * clocks need to agree to well within the lease time.
+ *
+ * A worker whose lease expired while it was still sending may finish the task
+ * as well. Both send the same bytes of the same file to the same object, so the
+ * result and its record are the same whichever lands last. A failure counts
+ * only if the task was not done after all, and was recorded under its current
+ * lease; one from a lease since taken over is left to the new holder.
+ */
+public class WorkManifest {
+
+    private static final int MAGIC = 0x47435357; // "GCSW"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // task id, lease number, bytes, CRC32C
+    private static final int RESULT_BYTES = 4 + 4 + 8 + 4;
+
+    /**
+     * A file to upload, and the tasks it is sent in.
+     */
+    public static class FileEntry {
+        public final String fileName;
+        // where workers read the file, which does not depend on their directory
+        public final String path;
+        public final long bytes;
+        public final long modifiedMillis;
+        // sent as slices composed into its object, rather than straight to it
+        public final boolean composite;
+        public final List<Task> tasks = new ArrayList<Task>();
+
+        FileEntry(String fileName, String path, long bytes, long modifiedMillis, boolean composite) {
+            this.fileName = fileName;
+            this.path = path;
+            this.bytes = bytes;
+            this.modifiedMillis = modifiedMillis;
+            this.composite = composite;
+        }
+    }
+
+    /**
+     * Bytes start to end of a file, sent to an object of their own.
+     */
+    public static class Task {
+        public final int id;
+        public final FileEntry file;
+        public final int index;
+        public final long start;
+        public final long end;
+
+        Task(int id, FileEntry file, int index, long start, long end) {
+            this.id = id;
+            this.file = file;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * The file's object, or for a slice, the object composed into it, named as
+         * CompositeUpload names its slices.
+         */
+        public String objectName() {
+            return this.file.composite ? this.file.fileName + "_chunk_" + this.index : this.file.fileName;
+        }
+
+        public long getLength() {
+            return this.end - this.start;
+        }
+    }
+
+    /**
+     * A finished task, as its worker recorded it.
+     */
+    public static class Result {
+        public final String worker;
+        public final int taskId;
+        // the lease it was done under, above 0 if the task was taken over
+        public final int lease;
+        public final long bytes;
+        public final int crc32c;
+
+        Result(String worker, int taskId, int lease, long bytes, int crc32c) {
+            this.worker = worker;
+            this.taskId = taskId;
+            this.lease = lease;
+            this.bytes = bytes;
+            this.crc32c = crc32c;
+        }
+    }
+
+    /**
+     * Why a task could not be done, as its worker recorded it.
+     */
+    public static class Failure {
+        public final String worker;
+        public final int lease;
+        public final String message;
+
+        Failure(String worker, int lease, String message) {
+            this.worker = worker;
+            this.lease = lease;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A task's current lease.
+     */
+    public static class Lease {
+        public final int taskId;
+        public final int number;
+        public final String worker;
+        // by the clock of the worker that last renewed it
+        public final long renewedMillis;
+        private final Path path;
+
+        Lease(int taskId, int number, String worker, Path path, long renewedMillis) {
+            this.taskId = taskId;
+            this.number = number;
+            this.worker = worker;
+            this.path = path;
+            this.renewedMillis = renewedMillis;
+        }
+    }
+
+    private final Path directory;
+    private final String bucketName;
+    private final List<FileEntry> files = new ArrayList<FileEntry>();
+    private final List<Task> tasks = new ArrayList<Task>();
+    // the highest lease number seen on each task, where looking for its current one starts
+    private final Map<Integer, Integer> leaseNumbers = new HashMap<Integer, Integer>();
+    // how much of each worker's log has been read
+    private final Map<String, Long> logOffsets = new HashMap<String, Long>();
+
+    private WorkManifest(Path directory, String bucketName) {
+        this.directory = directory;
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Starts a new manifest in directory. Nothing is written until save().
+     */
+    public static WorkManifest create(Path directory, String bucketName) {
+        return new WorkManifest(directory, bucketName);
+    }
+
+    /**
+     * Opens the manifest in directory, or returns null if its job has not been
+     * written.
+     */
+    public static WorkManifest open(Path directory) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(directory.resolve("job")), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(directory + " does not hold a distributed upload");
+            }
+            WorkManifest manifest = new WorkManifest(directory, in.readUTF());
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                FileEntry file = manifest.addFile(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(),
+                        in.readBoolean());
+                int taskCount = in.readInt();
+                for (int t = 0; t < taskCount; t++) {
+                    manifest.addTask(file, in.readLong(), in.readLong());
+                }
+            }
+            return manifest;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds a file sent in one task.
+     */
+    public void addWhole(String fileName, String path, long bytes, long modifiedMillis) {
+        addTask(addFile(fileName, path, bytes, modifiedMillis, false), 0, bytes);
+    }
+
+    /**
+     * Adds a file sent in slices, each running from one of starts, in order, to
+     * the next, and the last to the end of the file.
+     */
+    public void addComposite(String fileName, String path, long bytes, long modifiedMillis, List<Long> starts) {
+        FileEntry file = addFile(fileName, path, bytes, modifiedMillis, true);
+        for (int idx = 0; idx < starts.size(); idx++) {
+            addTask(file, starts.get(idx), idx + 1 < starts.size() ? starts.get(idx + 1) : bytes);
+        }
+    }
+
+    private FileEntry addFile(String fileName, String path, long bytes, long modifiedMillis, boolean composite) {
+        FileEntry file = new FileEntry(fileName, path, bytes, modifiedMillis, composite);
+        this.files.add(file);
+        return file;
+    }
+
+    private void addTask(FileEntry file, long start, long end) {
+        Task task = new Task(this.tasks.size(), file, file.tasks.size(), start, end);
+        file.tasks.add(task);
+        this.tasks.add(task);
+    }
+
+    /**
+     * Writes the job, and the directories workers record their work in. The job
+     * is moved into place whole, so workers waiting for it never read part of it.
+     */
+    public void save() throws IOException {
+        Files.createDirectories(this.directory.resolve("leases"));
+        Files.createDirectories(this.directory.resolve("results"));
+        Files.createDirectories(this.directory.resolve("done"));
+        Files.createDirectories(this.directory.resolve("failed"));
+        Path job = this.directory.resolve("job");
+        Path temp = this.directory.resolve("job.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(this.bucketName);
+            out.writeInt(this.files.size());
+            for (FileEntry file : this.files) {
+                out.writeUTF(file.fileName);
+                out.writeUTF(file.path);
+                out.writeLong(file.bytes);
+                out.writeLong(file.modifiedMillis);
+                out.writeBoolean(file.composite);
+                out.writeInt(file.tasks.size());
+                for (Task task : file.tasks) {
+                    out.writeLong(task.start);
+                    out.writeLong(task.end);
+                }
+            }
+        }
+        Files.move(temp, job, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String getBucketName() {
+        return this.bucketName;
+    }
+
+    public List<FileEntry> getFiles() {
+        return Collections.unmodifiableList(this.files);
+    }
+
+    public List<Task> getTasks() {
+        return Collections.unmodifiableList(this.tasks);
+    }
+
+    // Leases
+
+    /**
+     * The task's current lease, or null if it has none. Only that task's lease
+     * files are looked at, starting from the highest number seen before.
+     */
+    public Lease lease(Task task) throws IOException {
+        Path leases = this.directory.resolve("leases");
+        int number;
+        synchronized (this) {
+            number = this.leaseNumbers.getOrDefault(task.id, -1);
+        }
+        while (Files.exists(leases.resolve(task.id + "." + (number + 1)))) {
+            number++;
+        }
+        if (number < 0) {
+            return null;
+        }
+        synchronized (this) {
+            this.leaseNumbers.merge(task.id, number, Math::max);
+        }
+        Path path = leases.resolve(task.id + "." + number);
+        String worker = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        return new Lease(task.id, number, worker, path, Files.getLastModifiedTime(path).toMillis());
+    }
+
+    /**
+     * Takes a lease on task for worker, if it has none, or the one it has expired,
+     * not renewed for leaseMillis. Returns the lease, or null if another worker
+     * holds it, or got it first.
+     */
+    public Lease tryLease(Task task, Lease current, String worker, long leaseMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.renewedMillis < leaseMillis) {
+            return null;
+        }
+        int number = current == null ? 0 : current.number + 1;
+        Path path = this.directory.resolve("leases").resolve(task.id + "." + number);
+        try {
+            Files.write(path, worker.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        }
+        // by the worker's clock, which is what other workers compare with theirs
+        Files.setLastModifiedTime(path, FileTime.fromMillis(now));
+        return new Lease(task.id, number, worker, path, now);
+    }
+
+    /**
+     * Renews a lease, returning whether it is still the task's current one.
+     */
+    public boolean renew(Lease lease) throws IOException {
+        if (Files.exists(this.directory.resolve("leases").resolve(lease.taskId + "." + (lease.number + 1)))) {
+            return false;
+        }
+        Files.setLastModifiedTime(lease.path, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+    }
+
+    // Results
+
+    /**
+     * Records task as done under lease: appends it to the lease holder's log,
+     * then marks the task done. A record is one write of a fixed size, so the
+     * coordinator reads only whole ones; a torn one left by a worker that stopped
+     * mid-write is written over.
+     */
+    public synchronized void complete(Task task, Lease lease, long bytes, int crc32c) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RESULT_BYTES);
+        record.putInt(task.id).putInt(lease.number).putLong(bytes).putInt(crc32c).flip();
+        try (FileChannel log = FileChannel.open(this.directory.resolve("results").resolve(lease.worker),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = log.size() / RESULT_BYTES * RESULT_BYTES;
+            while (record.hasRemaining()) {
+                position += log.write(record, position);
+            }
+        }
+        Path done = this.directory.resolve("done").resolve(String.valueOf(task.id));
+        try {
+            Files.createFile(done);
+        } catch (FileAlreadyExistsException e) {
+            // done by the worker it was taken from, or over from, as well
+        }
+    }
+
+    /**
+     * Whether task has been recorded done, by any worker.
+     */
+    public boolean isDone(Task task) {
+        return Files.exists(this.directory.resolve("done").resolve(String.valueOf(task.id)));
+    }
+
+    /**
+     * Tasks recorded done since the last call, read from where each worker's log
+     * was left. A task done twice, by a worker that lost its lease and the one
+     * that took it over, may be returned twice.
+     */
+    public synchronized List<Result> newResults() throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        // one log per worker, so this lists as many entries as there are workers
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(this.directory.resolve("results"))) {
+            for (Path log : logs) {
+                String worker = log.getFileName().toString();
+                long offset = this.logOffsets.getOrDefault(worker, 0L);
+                long end = Files.size(log) / RESULT_BYTES * RESULT_BYTES;
+                if (end <= offset) {
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                    DataInputStream data = new DataInputStream(
+                            new BufferedInputStream(Channels.newInputStream(channel.position(offset)), BUFFER_SIZE));
+                    for (long at = offset; at < end; at += RESULT_BYTES) {
+                        results.add(new Result(worker, data.readInt(), data.readInt(), data.readLong(),
+                                data.readInt()));
+                    }
+                }
+                this.logOffsets.put(worker, end);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Records that task could not be done under lease, and why, which fails its
+     * file.
+     */
+    public void fail(Task task, Lease lease, String message) throws IOException {
+        Path temp = this.directory.resolve("failed").resolve(task.id + "." + UUID.randomUUID() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeUTF(lease.worker);
+            out.writeInt(lease.number);
+            // writeUTF takes at most 64 KB
+            out.writeUTF(message.length() > 1000 ? message.substring(0, 1000) : message);
+        }
+        Files.move(temp, this.directory.resolve("failed").resolve(String.valueOf(task.id)),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Failed tasks by id. Tasks fail seldom, so the directory is read whole. A
+     * failure is left out if the task was done after all, or was taken over
+     * since.
+     */
+    public Map<Integer, Failure> failures() throws IOException {
+        Map<Integer, Failure> failures = new HashMap<Integer, Failure>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory.resolve("failed"))) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                // records being written end in .tmp
+                if (name.indexOf('.') >= 0) {
+                    continue;
+                }
+                Task task = this.tasks.get(Integer.parseInt(name));
+                Failure failure;
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(entry))) {
+                    failure = new Failure(in.readUTF(), in.readInt(), in.readUTF());
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                Lease current = lease(task);
+                if (!isDone(task) && (current == null || failure.lease >= current.number)) {
+                    failures.put(task.id, failure);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Marks the upload finished, which tells workers still waiting to stop.
+     */
+    public void finish() throws IOException {
+        Files.write(this.directory.resolve("finished"), new byte[0]);
+    }
+
+    public boolean isFinished() {
+        return Files.exists(this.directory.resolve("finished"));
+    }
+}
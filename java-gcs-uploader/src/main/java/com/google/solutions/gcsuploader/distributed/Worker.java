@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.distributed;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.uploaders.RangeUpload;
+
+/**
+ * Worker
+ *
+ * One process of a distributed upload. It leases tasks from the shared
+ * manifest, as many at once as it has connections, the largest first, uploads
+ * each as a RangeUpload, and records its CRC32C for the coordinator to check
+ * the composed object against. Held leases are renewed in the background, at a
+ * third of the lease time. A task whose lease expired, its worker gone, is
+ * taken over like any other. The worker stops once every task is done or
+ * failed, or the coordinator marks the upload finished.
+ */
+public class Worker {
+
+    private final Path directory;
+    private final String name;
+    private final UploadContext context;
+    private final long leaseMillis;
+    // every task being uploaded, counted against the connections whether or not
+    // its lease was since taken over
+    private final Map<Integer, WorkManifest.Lease> held = new ConcurrentHashMap<Integer, WorkManifest.Lease>();
+    private final Set<Integer> lost = ConcurrentHashMap.newKeySet();
+    // tasks known done, by this worker or another, which are not looked at again
+    private final Set<Integer> finished = ConcurrentHashMap.newKeySet();
+    // when the lease another worker holds on a task expires at the earliest, so
+    // the task is not looked at again before
+    private final Map<Integer, Long> busyUntil = new HashMap<Integer, Long>();
+    private final LongAdder tasksDone = new LongAdder();
+    private final LongAdder tasksFailed = new LongAdder();
+    private final LongAdder takenOver = new LongAdder();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private WorkManifest manifest = null;
+
+    /**
+     * @param name        names the worker in leases and records, and its log of
+     *                    results, so it is unique among the upload's workers and
+     *                    must do as a file name.
+     * @param leaseMillis how long a lease lasts without being renewed.
+     */
+    public Worker(Path directory, String name, UploadContext context, long leaseMillis) {
+        this.directory = directory;
+        this.name = name;
+        this.context = context;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Works on the upload in the manifest for bucketName, waiting for the
+     * coordinator to write it if need be, until there is nothing left to do.
+     * Returns whether every task this worker took was done.
+     */
+    public boolean run(String bucketName) throws IOException, InterruptedException {
+        if (this.name.isEmpty() || this.name.startsWith(".") || this.name.contains("/")
+                || this.name.contains("\\")) {
+            throw new IOException("Worker name " + this.name + " cannot be used as a file name");
+        }
+        while ((this.manifest = WorkManifest.open(this.directory)) == null) {
+            Thread.sleep(Constants.MANIFEST_POLL_MILLIS);
+        }
+        if (!this.manifest.getBucketName().equals(bucketName)) {
+            throw new IOException("The upload in " + this.directory + " is to " + this.manifest.getBucketName()
+                    + ", not " + bucketName);
+        }
+        print("Working on " + this.manifest.getTasks().size() + " tasks in " + this.directory + ".");
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("lease-renewer").setDaemon(true).build());
+        renewer.scheduleWithFixedDelay(this::renew, this.leaseMillis / 3, this.leaseMillis / 3,
+                TimeUnit.MILLISECONDS);
+        try {
+            work();
+        } finally {
+            renewer.shutdownNow();
+        }
+        print("Tasks done: " + this.tasksDone.sum() + ", failed: " + this.tasksFailed.sum() + ", taken over: "
+                + this.takenOver.sum() + ", bytes sent: " + this.bytesSent.get());
+        return this.tasksFailed.sum() == 0;
+    }
+
+    private void work() throws IOException, InterruptedException {
+        // the largest first, as the I/O pool takes them, so no big slice starts last
+        List<WorkManifest.Task> order = new ArrayList<WorkManifest.Task>(this.manifest.getTasks());
+        order.sort(Comparator.comparingLong(WorkManifest.Task::getLength).reversed());
+        while (!this.manifest.isFinished()) {
+            // a file with a failed task will not be composed, so its others are left
+            Set<WorkManifest.FileEntry> failedFiles = new HashSet<WorkManifest.FileEntry>();
+            for (int id : this.manifest.failures().keySet()) {
+                failedFiles.add(this.manifest.getTasks().get(id).file);
+            }
+            long now = System.currentTimeMillis();
+            boolean left = false;
+            for (WorkManifest.Task task : order) {
+                if (this.finished.contains(task.id) || failedFiles.contains(task.file)) {
+                    continue;
+                }
+                if (this.held.containsKey(task.id) || this.busyUntil.getOrDefault(task.id, 0L) > now) {
+                    left = true;
+                    continue;
+                }
+                if (this.held.size() >= this.context.getConnections()) {
+                    // the rest are looked at once a connection is free
+                    left = true;
+                    break;
+                }
+                if (this.manifest.isDone(task)) {
+                    this.finished.add(task.id);
+                    this.busyUntil.remove(task.id);
+                    continue;
+                }
+                left = true;
+                WorkManifest.Lease current = this.manifest.lease(task);
+                WorkManifest.Lease lease = this.manifest.tryLease(task, current, this.name, this.leaseMillis);
+                if (lease != null) {
+                    if (current != null) {
+                        print("Taking over task " + task.id + " from " + current.worker + ", whose lease expired.");
+                        this.takenOver.increment();
+                    }
+                    this.busyUntil.remove(task.id);
+                    this.held.put(task.id, lease);
+                    start(task);
+                } else if (current != null) {
+                    this.busyUntil.put(task.id, current.renewedMillis + this.leaseMillis);
+                }
+            }
+            if (!left && this.held.isEmpty()) {
+                return;
+            }
+            Thread.sleep(Constants.MANIFEST_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Uploads a leased task, if its file is as the coordinator found it, and
+     * records how it went.
+     */
+    private void start(WorkManifest.Task task) {
+        Path path = Paths.get(task.file.path);
+        try {
+            if (Files.size(path) != task.file.bytes
+                    || Files.getLastModifiedTime(path).toMillis() != task.file.modifiedMillis) {
+                finish(task, null, task.file.fileName + " changed since the upload was planned");
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            finish(task, null, task.file.fileName + " is gone");
+            return;
+        } catch (IOException e) {
+            finish(task, null, "Could not read " + task.file.fileName + ": " + e.getMessage());
+            return;
+        }
+        new RangeUpload(this.manifest.getBucketName(), task.file.path, task.objectName(), task.start, task.end,
+                task.file.composite, this.context).start()
+                .whenComplete((crc32c, error) -> finish(task, crc32c,
+                        error == null ? null : String.valueOf(RetryPolicy.unwrap(error))));
+    }
+
+    private void finish(WorkManifest.Task task, Integer crc32c, String error) {
+        try {
+            WorkManifest.Lease lease = this.held.get(task.id);
+            if (error == null) {
+                this.manifest.complete(task, lease, task.getLength(), crc32c);
+                this.finished.add(task.id);
+                this.tasksDone.increment();
+                this.bytesSent.addAndGet(task.getLength());
+            } else if (this.lost.contains(task.id) || !this.manifest.renew(lease)) {
+                // the worker that took it over decides how it goes
+                print("Task " + task.id + " failed after its lease was taken over: " + error);
+            } else {
+                print("Task " + task.id + " failed: " + error);
+                this.manifest.fail(task, lease, error);
+                this.tasksFailed.increment();
+            }
+        } catch (IOException e) {
+            // the lease expires, and the task is done again
+            print("Could not record task " + task.id + ": " + e.getMessage());
+            this.tasksFailed.increment();
+        } finally {
+            this.held.remove(task.id);
+            this.lost.remove(task.id);
+        }
+    }
+
+    private void renew() {
+        for (WorkManifest.Lease lease : this.held.values()) {
+            if (this.lost.contains(lease.taskId)) {
+                continue;
+            }
+            try {
+                if (!this.manifest.renew(lease)) {
+                    // the upload goes on, and if it succeeds records the same result as
+                    // the new worker's; if it fails, the new worker's result stands
+                    print("Lease on task " + lease.taskId + " was taken over by another worker.");
+                    this.lost.add(lease.taskId);
+                }
+            } catch (IOException e) {
+                print("Could not renew lease on task " + lease.taskId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void print(String message) {
+        System.out.println(this.name + ": " + message);
+    }
+}
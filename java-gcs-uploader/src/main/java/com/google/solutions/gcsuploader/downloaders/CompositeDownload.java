@@ -0,0 +1,485 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.downloaders;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.BufferPool;
+import com.google.solutions.gcsuploader.ByteBudget;
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.journal.FileJournal;
+import com.google.solutions.gcsuploader.journal.SliceCheckpoint;
+import com.google.solutions.gcsuploader.journal.UploadJournal;
+import com.google.solutions.gcsuploader.metrics.Histogram;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+import com.google.solutions.gcsuploader.uploaders.CompositeUpload;
+import com.google.solutions.gcsuploader.uploaders.SimpleUpload;
+
+/**
+ * CompositeDownload
+ *
+ * Downloads an object to a file in parallel byte ranges, the reverse of a
+ * CompositeUpload: the object is cut into as many slices as an upload of its
+ * size would be, and each slice is read with ranged reads of the generation
+ * first looked up, written with positional writes into the target, which is
+ * preallocated to the object's size, and hashed on the way through. The slice
+ * checksums are combined into one for the whole file and compared with the
+ * object's CRC32C.
+ *
+ * Slices record their progress in the journal, so a download that is stopped
+ * picks up where each slice got to, as long as the object's generation and the
+ * target's size are unchanged. A slice's bytes are forced to disk before its
+ * progress is recorded. Within a run, a failed slice retries from where it
+ * failed.
+ */
+public class CompositeDownload {
+
+    public String bucketName = null;
+    public String objectName = null;
+    public Path target = null;
+    public Boolean success = false;
+    public String crc32c = null;
+    public String computedCrc32c = null;
+    public long bytes = 0;
+    private UploadContext context = null;
+    private Storage storage = null;
+    private BufferPool pool = null;
+
+    public CompositeDownload(String bucketName, String objectName, Path target, UploadContext context) {
+        this.bucketName = bucketName;
+        this.objectName = objectName;
+        this.target = target;
+        this.context = context;
+        this.storage = context.getStorage();
+        // a range holds its buffer throughout, so there is one for each connection
+        // the I/O pool may be tuned up to; they are allocated as needed
+        this.pool = new BufferPool(Math.max(context.getConnections(), Constants.TUNE_MAX_CONNECTIONS),
+                Constants.IO_BUFFER_SIZE);
+    }
+
+    public String getCrc32c() {
+        return this.crc32c;
+    }
+
+    public String getComputedCrc32c() {
+        return this.computedCrc32c;
+    }
+
+    private void print(String message) {
+        System.out.println(this.objectName + ": " + message);
+    }
+
+    /**
+     * Looks the object up, then downloads it once its size fits in the in-flight
+     * byte budget, returning a future that completes when the file is written and
+     * verified.
+     */
+    public CompletableFuture<Void> start() {
+        Executor io = this.context.getIoExecutor();
+        BlobId blobId = BlobId.of(this.bucketName, this.objectName);
+        return this.context.getRetryPolicy().retryAsync(() -> this.storage.get(blobId),
+                SimpleUpload::isRetryable,
+                (failedAttempts, e) -> System.err.println(this.objectName + ": Lookup failed, retrying: " + e), io)
+                .thenCompose(blob -> {
+                    if (blob == null) {
+                        throw new CompletionException(new FileNotFoundException(
+                                "gs://" + this.bucketName + "/" + this.objectName + " not found"));
+                    }
+                    if (blob.getContentEncoding() != null && !blob.getContentEncoding().equals("identity")) {
+                        // ranged reads of an encoded object are not served as stored
+                        throw new CompletionException(new IOException(this.objectName + " has Content-Encoding "
+                                + blob.getContentEncoding() + ", which ranged downloads do not support"));
+                    }
+                    this.bytes = blob.getSize();
+                    ByteBudget inFlight = this.context.getInFlight();
+                    return inFlight.acquire(this.bytes).thenCompose(granted -> {
+                        long startNanos = System.nanoTime();
+                        return attempt(blob, 0).whenComplete((done, error) -> {
+                            inFlight.release(granted);
+                            if (error == null) {
+                                this.context.getMetrics().histogram("file.download").recordSince(startNanos);
+                            }
+                        });
+                    });
+                });
+    }
+
+    /**
+     * Downloads and verifies the object. Failed slices are retried on their own;
+     * a checksum mismatch starts the whole file over, after a backoff.
+     */
+    private CompletableFuture<Void> attempt(Blob blob, int failedAttempts) {
+        Executor io = this.context.getIoExecutor();
+        RetryPolicy retryPolicy = this.context.getRetryPolicy();
+        return CompletableFuture.supplyAsync(() -> plan(blob), io)
+                .thenCompose(plan -> downloadSlices(plan)
+                        .whenComplete((fileCrc32c, error) -> plan.close())
+                        .thenApply(fileCrc32c -> verify(plan, blob, fileCrc32c)))
+                .thenCompose(matched -> {
+                    if (matched) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    int failures = failedAttempts + 1;
+                    if (!retryPolicy.canRetry(failures)) {
+                        throw new CompletionException(new IOException(
+                                "Checksum mismatch on " + failures + " attempts, giving up on " + this.objectName));
+                    }
+                    print("Checksum mismatch! Waiting and retrying.");
+                    this.context.getMetrics().counter("checksum.mismatches").increment();
+                    Executor later = CompletableFuture.delayedExecutor(retryPolicy.delayMillis(failures),
+                            TimeUnit.MILLISECONDS, io);
+                    return CompletableFuture.runAsync(() -> { }, later).thenCompose(waited -> attempt(blob, failures));
+                });
+    }
+
+    /**
+     * Opens the target and lays out its slices, resuming an earlier layout from
+     * the journal if there is one and the target still looks like it.
+     */
+    private Plan plan(Blob blob) {
+        FileChannel output = null;
+        try {
+            long objectBytes = blob.getSize();
+            Path parent = this.target.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            output = FileChannel.open(this.target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+
+            // the generation stands in for the modification time, so a rewritten
+            // object starts over
+            UploadJournal journal = this.context.getJournal();
+            FileJournal fileJournal = journal == null ? null
+                    : journal.forDownload(this.bucketName, this.objectName, this.target.toString());
+            int sliceCount = fileJournal == null ? 0 : fileJournal.resumableSlices(objectBytes, blob.getGeneration());
+            if (sliceCount > 0 && output.size() == objectBytes) {
+                print("Resuming from journal.");
+            } else {
+                sliceCount = this.context.getSlices() > 0
+                        ? (int) Math.max(1, Math.min(this.context.getSlices(), Math.min(Constants.MAX_SLICES,
+                                objectBytes)))
+                        : CompositeUpload.sliceCount(objectBytes, this.context.getBandwidth(),
+                                this.context.getStreamBytesPerSecond());
+                // set the length up front, as a sparse file, so slices can write anywhere in it
+                output.truncate(0);
+                if (objectBytes > 0) {
+                    output.write(ByteBuffer.wrap(new byte[1]), objectBytes - 1);
+                }
+                if (fileJournal != null) {
+                    fileJournal.saveLayout(objectBytes, blob.getGeneration(), sliceCount);
+                }
+            }
+
+            print("Downloading " + objectBytes + " bytes in " + sliceCount + " slices to " + this.target + ".");
+            Plan plan = new Plan(output, fileJournal);
+            long sliceBytes = objectBytes / sliceCount;
+            BlobId source = BlobId.of(this.bucketName, this.objectName, blob.getGeneration());
+            for (int idx = 0; idx < sliceCount; idx++) {
+                long start = idx * sliceBytes;
+                // final slice takes the remainder
+                long length = idx < sliceCount - 1 ? sliceBytes : objectBytes - start;
+                plan.slices.add(new RangeDownload(source, output, start, length, fileJournal, idx, plan.aborted,
+                        this.pool, this.context));
+            }
+            return plan;
+        } catch (IOException e) {
+            closeQuietly(output);
+            throw new CompletionException(new IOException("Error while writing " + this.target, e));
+        }
+    }
+
+    /**
+     * Downloads every slice, each retrying on its own, and returns the whole-file
+     * CRC32C combined from the slice checksums. A slice that fails for good stops
+     * the rest, leaving their progress in the journal for the next run.
+     */
+    private CompletableFuture<Integer> downloadSlices(Plan plan) {
+        Executor io = this.context.getIoExecutor();
+        RetryPolicy retryPolicy = this.context.getRetryPolicy();
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        for (RangeDownload slice : plan.slices) {
+            CompletableFuture<Integer> result = retryPolicy.retryAsync(slice,
+                    SimpleUpload::isRetryable,
+                    (failedAttempts, e) -> System.err.println(this.objectName + ": Range " + slice.start + "+"
+                            + slice.length + " failed attempt " + failedAttempts + ", retrying: " + e),
+                    this.context.getIoExecutor().ranked(slice.length));
+            result.whenComplete((sliceCrc32c, error) -> {
+                if (error != null) {
+                    plan.aborted.set(true);
+                }
+            });
+            results.add(result);
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).handleAsync((done, error) -> {
+            if (error != null) {
+                print("Range failed, stopping download.");
+                throw new CompletionException(
+                        new IOException("Download of " + this.objectName + " stopped", RetryPolicy.unwrap(error)));
+            }
+            int fileCrc32c = results.get(0).join();
+            for (int idx = 1; idx < results.size(); idx++) {
+                fileCrc32c = CRC32CMath.combine(fileCrc32c, results.get(idx).join(), plan.slices.get(idx).length);
+            }
+            return fileCrc32c;
+        }, io);
+    }
+
+    /**
+     * Compares the file's checksum with the object's. Either way the journal is
+     * done with: a match needs nothing more, and a mismatch starts over.
+     */
+    private boolean verify(Plan plan, Blob blob, int fileCrc32c) {
+        this.computedCrc32c = CRC32CMath.encode(fileCrc32c);
+        this.crc32c = blob.getCrc32c();
+        print("\n\tChecksum for blob: " + this.crc32c + "\n\tChecksum for file: " + this.computedCrc32c);
+        deleteJournal(plan.journal);
+        if (!this.computedCrc32c.equals(this.crc32c)) {
+            return false;
+        }
+        print("Download complete.");
+        this.success = true;
+        return true;
+    }
+
+    private void deleteJournal(FileJournal fileJournal) {
+        if (fileJournal == null) {
+            return;
+        }
+        try {
+            fileJournal.delete();
+        } catch (IOException e) {
+            print("Could not delete journal: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to write
+        }
+    }
+
+    /**
+     * The open target and its slices.
+     */
+    private static class Plan {
+        private final FileChannel output;
+        private final FileJournal journal;
+        private final List<RangeDownload> slices = new ArrayList<RangeDownload>();
+        // set on the first slice that fails for good, so the others stop early
+        private final AtomicBoolean aborted = new AtomicBoolean();
+
+        Plan(FileChannel output, FileJournal journal) {
+            this.output = output;
+            this.journal = journal;
+        }
+
+        void close() {
+            closeQuietly(this.output);
+        }
+    }
+
+    private static class RangeDownload implements Callable<Integer> {
+
+        private final BlobId source;
+        private final FileChannel output;
+        private final long start;
+        private final long length;
+        private final FileJournal journal;
+        private final int index;
+        private final AtomicBoolean aborted;
+        private final BufferPool pool;
+        private final BandwidthGovernor governor;
+        private final Storage storage;
+        private final int chunkSize;
+        private final Metrics metrics;
+        // how far the slice has got, kept across attempts
+        private long offset = 0;
+        private int crc32c = 0;
+        private boolean done = false;
+        private boolean loaded = false;
+
+        RangeDownload(BlobId source, FileChannel output, long start, long length, FileJournal journal, int index,
+                AtomicBoolean aborted, BufferPool pool, UploadContext context) {
+            this.source = source;
+            this.output = output;
+            this.start = start;
+            this.length = length;
+            this.journal = journal;
+            this.index = index;
+            this.aborted = aborted;
+            this.pool = pool;
+            this.governor = context.getGovernor();
+            this.storage = context.getStorage();
+            this.chunkSize = context.getChunkSize();
+            this.metrics = context.getMetrics();
+        }
+
+        /**
+         * Makes one attempt at what is left of the slice, returning the CRC32C of
+         * the whole slice. Attempts are run one at a time by the caller.
+         */
+        @Override
+        public Integer call() throws IOException {
+            checkAborted();
+            if (!this.loaded && this.journal != null) {
+                SliceCheckpoint checkpoint = this.journal.loadSlice(this.index, this.storage.getOptions());
+                if (checkpoint != null) {
+                    this.offset = checkpoint.offset;
+                    this.crc32c = checkpoint.crc32c;
+                    this.done = checkpoint.done;
+                }
+            }
+            this.loaded = true;
+            if (this.done || this.offset == this.length) {
+                return this.crc32c;
+            }
+
+            // the reader buffers up to a chunk, or the rest of the slice if smaller
+            int reserved = this.governor.reserveBuffer(Math.min(this.length - this.offset, this.chunkSize));
+            long sliceStart = System.nanoTime();
+            ByteBuffer buffer;
+            try {
+                buffer = this.pool.acquire();
+            } catch (InterruptedException e) {
+                this.governor.releaseBuffer(reserved);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a buffer");
+            }
+            try {
+                copy(buffer);
+            } finally {
+                this.pool.release(buffer);
+                this.governor.releaseBuffer(reserved);
+            }
+            this.done = true;
+            if (this.journal != null) {
+                // the record vouches for the bytes, so they must be on disk first
+                this.output.force(false);
+                this.journal.complete(this.index, this.length, this.crc32c);
+            }
+            this.metrics.recordSlice(this.source.getName() + " range " + this.start, sliceStart);
+            return this.crc32c;
+        }
+
+        /**
+         * Reads the rest of the range into the target. Each fetch asks for no more
+         * than is left of the range, so nothing past it is downloaded.
+         */
+        private void copy(ByteBuffer buffer) throws IOException {
+            long resumedAt = this.offset;
+            int resumedCrc32c = this.crc32c;
+            CRC32C checksum = new CRC32C();
+            Histogram chunkReads = this.metrics.histogram("chunk.read");
+            long copied = 0;
+            long lastCheckpoint = resumedAt;
+            // bytes the reader holds from its last fetch
+            long buffered = 0;
+            try (ReadChannel reader = this.storage.reader(this.source)) {
+                reader.seek(this.start + resumedAt);
+                while (resumedAt + copied < this.length) {
+                    checkAborted();
+                    long remaining = this.length - resumedAt - copied;
+                    buffer.clear();
+                    if (remaining < buffer.capacity()) {
+                        buffer.limit((int) remaining);
+                    }
+                    long fetched = 0;
+                    if (buffered == 0) {
+                        int fetch = (int) Math.min(this.chunkSize, remaining);
+                        reader.setChunkSize(fetch);
+                        fetched = Math.max(fetch, buffer.remaining());
+                    }
+                    long readStart = System.nanoTime();
+                    int read = reader.read(buffer);
+                    if (read < 0) {
+                        throw new EOFException(this.source.getName() + " ended at " + (this.start + resumedAt + copied)
+                                + ", expected " + (this.start + this.length));
+                    }
+                    if (fetched > 0) {
+                        chunkReads.recordSince(readStart);
+                        buffered = fetched;
+                    }
+                    buffered -= read;
+
+                    buffer.flip();
+                    checksum.update(buffer);
+                    buffer.rewind();
+                    this.governor.acquire(read);
+                    long position = this.start + resumedAt + copied;
+                    while (buffer.hasRemaining()) {
+                        position += this.output.write(buffer, position);
+                    }
+                    copied += read;
+
+                    long sliceOffset = resumedAt + copied;
+                    if (this.journal != null && sliceOffset - lastCheckpoint >= Constants.CHECKPOINT_BYTES
+                            && sliceOffset < this.length) {
+                        // a crash must not leave the journal ahead of what reached the disk
+                        this.output.force(false);
+                        this.journal.checkpoint(this.index, sliceOffset,
+                                CRC32CMath.combine(resumedCrc32c, (int) checksum.getValue(), copied), null);
+                        lastCheckpoint = sliceOffset;
+                    }
+                }
+            } finally {
+                // whatever was written counts, for the next attempt to carry on from
+                this.offset = resumedAt + copied;
+                this.crc32c = CRC32CMath.combine(resumedCrc32c, (int) checksum.getValue(), copied);
+            }
+        }
+
+        private void checkAborted() {
+            if (this.aborted.get()) {
+                throw new CancellationException("Download of " + this.source.getName() + " stopped");
+            }
+        }
+    }
+}
@@ -0,0 +1,936 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.fake;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.util.Data;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.BucketAccessControl;
+import com.google.api.services.storage.model.Notification;
+import com.google.api.services.storage.model.ObjectAccessControl;
+import com.google.api.services.storage.model.Policy;
+import com.google.api.services.storage.model.ServiceAccount;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.api.services.storage.model.TestIamPermissionsResponse;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.Tuple;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.spi.v1.RpcBatch;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+import com.google.common.util.concurrent.RateLimiter;
+
+import com.google.solutions.gcsuploader.CRC32CMath;
+
+/**
+ * FakeStorageRpc
+ *
+ * An in-process stand-in for GCS behind the client library's RPC layer, so the
+ * real Storage client, writers and retry paths run unchanged against it. It
+ * supports what the uploader uses: single-request and resumable writes,
+ * compose, get, list, delete, batches and ranged reads, and checks CRC32C the
+ * way GCS does.
+ *
+ * The network is simulated: every call waits a fixed latency and may fail with
+ * a retryable 503 at a set rate, and bytes are paced by a shared link rate and
+ * a per-stream rate. Failures are drawn from a seeded generator so runs can be
+ * repeated. Object contents are kept only if asked, since large benchmarks
+ * need only sizes and checksums.
+ *
+ * Objects are kept in memory, or, if given a directory, in a file each under it,
+ * so that fakes in several processes share one bucket, as the workers of a
+ * distributed upload do. Upload sessions stay in the process that opened them,
+ * and generation preconditions are not atomic across processes.
+ */
+public class FakeStorageRpc implements StorageRpc {
+
+    /**
+     * An object as the fake holds it.
+     */
+    private static class FakeObject {
+        final StorageObject metadata;
+        final int crc32c;
+        final byte[] data;
+
+        FakeObject(StorageObject metadata, int crc32c, byte[] data) {
+            this.metadata = metadata;
+            this.crc32c = crc32c;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A resumable upload in progress. Checksums are kept at every write
+     * boundary, so a writer restored from an earlier checkpoint can rewind.
+     */
+    private static class Session {
+        final StorageObject metadata;
+        final Map<Option, ?> options;
+        final NavigableMap<Long, Integer> crcAt = new TreeMap<Long, Integer>();
+        final ByteArrayOutputStream data;
+        long size = 0;
+
+        Session(StorageObject metadata, Map<Option, ?> options, boolean retainData) {
+            this.metadata = metadata;
+            this.options = options;
+            this.data = retainData ? new ByteArrayOutputStream() : null;
+            this.crcAt.put(0L, 0);
+        }
+    }
+
+    private final long latencyMillis;
+    private final long streamBytesPerSecond;
+    private final RateLimiter link;
+    private volatile double failureRate;
+    private final Random random;
+    private final boolean retainData;
+    private final Path directory;
+
+    private final Map<String, ConcurrentSkipListMap<String, FakeObject>> buckets =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<String, FakeObject>>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final AtomicLong generation;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private FakeStorageRpc(Builder builder) {
+        this.latencyMillis = builder.latencyMillis;
+        this.streamBytesPerSecond = builder.streamBytesPerSecond;
+        this.link = builder.bytesPerSecond > 0 ? RateLimiter.create(builder.bytesPerSecond) : null;
+        this.failureRate = builder.failureRate;
+        this.random = new Random(builder.seed);
+        this.retainData = builder.retainData;
+        this.directory = builder.directory;
+        // generations from processes sharing a directory should not collide, so they
+        // start, as in GCS, from the time in microseconds
+        this.generation = new AtomicLong(this.directory == null ? 1 : System.currentTimeMillis() * 1000);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Options for a Storage client backed by this fake. The library's own retries
+     * are turned off, so injected failures reach the uploader's retry policy.
+     */
+    public StorageOptions getOptions() {
+        return StorageOptions.newBuilder()
+                .setProjectId("fake")
+                .setCredentials(NoCredentials.getInstance())
+                .setRetrySettings(ServiceOptions.getNoRetrySettings())
+                .setServiceRpcFactory(options -> this)
+                .build();
+    }
+
+    /**
+     * Changes the rate at which requests fail, so a test can fail an upload
+     * partway through and then let its cleanup succeed.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    @Override
+    public String toString() {
+        return getRequests() + " requests, " + getFailures() + " injected failures, " + getBytesReceived()
+                + " bytes received";
+    }
+
+    // Simulated network
+
+    /**
+     * Waits out a request's latency, then fails it at the configured rate.
+     */
+    private void request() {
+        this.requests.increment();
+        sleep(this.latencyMillis);
+        boolean fail;
+        synchronized (this.random) {
+            fail = this.failureRate > 0 && this.random.nextDouble() < this.failureRate;
+        }
+        if (fail) {
+            this.failures.increment();
+            throw new StorageException(503, "Injected failure");
+        }
+    }
+
+    /**
+     * Paces a transfer of bytes over the shared link and one stream.
+     */
+    private void transfer(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        long linkWaitMillis = 0;
+        if (this.link != null) {
+            long remaining = bytes;
+            while (remaining > 0) {
+                int permits = (int) Math.min(remaining, Integer.MAX_VALUE);
+                linkWaitMillis += (long) (this.link.acquire(permits) * 1000);
+                remaining -= permits;
+            }
+        }
+        if (this.streamBytesPerSecond > 0) {
+            // a stream is held to its own rate even when the link is idle
+            sleep(bytes * 1000 / this.streamBytesPerSecond - linkWaitMillis);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(0, "Interrupted", e);
+        }
+    }
+
+    // Objects
+
+    private ConcurrentSkipListMap<String, FakeObject> bucket(String name) {
+        return this.buckets.computeIfAbsent(name, key -> new ConcurrentSkipListMap<String, FakeObject>());
+    }
+
+    private FakeObject find(StorageObject object) {
+        return find(object.getBucket(), object.getName());
+    }
+
+    private FakeObject find(String bucketName, String name) {
+        if (this.directory == null) {
+            return bucket(bucketName).get(name);
+        }
+        return readObject(objectPath(bucketName, name));
+    }
+
+    private boolean remove(String bucketName, String name) {
+        if (this.directory == null) {
+            return bucket(bucketName).remove(name) != null;
+        }
+        try {
+            return Files.deleteIfExists(objectPath(bucketName, name));
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * The bucket's objects by name: the bucket itself, or in a directory, what is
+     * in it now.
+     */
+    private NavigableMap<String, FakeObject> objects(String bucketName) {
+        if (this.directory == null) {
+            return bucket(bucketName);
+        }
+        NavigableMap<String, FakeObject> objects = new TreeMap<String, FakeObject>();
+        Path bucketPath = this.directory.resolve(bucketName);
+        if (!Files.isDirectory(bucketPath)) {
+            return objects;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(bucketPath, "*.obj")) {
+            for (Path file : files) {
+                FakeObject object = readObject(file);
+                if (object != null) {
+                    objects.put(object.metadata.getName(), object);
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+        return objects;
+    }
+
+    private static void checkGeneration(FakeObject existing, Map<Option, ?> options) {
+        Object expected = options.get(Option.IF_GENERATION_MATCH);
+        if (expected != null) {
+            long current = existing == null ? 0 : existing.metadata.getGeneration();
+            if (((Number) expected).longValue() != current) {
+                throw new StorageException(412, "Precondition failed");
+            }
+        }
+    }
+
+    private FakeObject store(StorageObject template, long size, int crc32c, byte[] data, Map<Option, ?> options) {
+        ConcurrentSkipListMap<String, FakeObject> bucket = bucket(template.getBucket());
+        synchronized (bucket) {
+            checkGeneration(find(template.getBucket(), template.getName()), options);
+            DateTime now = new DateTime(System.currentTimeMillis());
+            StorageObject metadata = new StorageObject()
+                    .setBucket(template.getBucket())
+                    .setName(template.getName())
+                    .setContentType(template.getContentType())
+                    .setContentEncoding(template.getContentEncoding())
+                    .setMetadata(template.getMetadata())
+                    .setSize(BigInteger.valueOf(size))
+                    .setCrc32c(CRC32CMath.encode(crc32c))
+                    .setGeneration(this.generation.getAndIncrement())
+                    .setMetageneration(1L)
+                    .setTimeCreated(now)
+                    .setUpdated(now)
+                    .setComponentCount(template.getComponentCount());
+            FakeObject object = new FakeObject(metadata, crc32c, data);
+            if (this.directory == null) {
+                bucket.put(metadata.getName(), object);
+            } else {
+                writeObject(objectPath(metadata.getBucket(), metadata.getName()), object);
+            }
+            return object;
+        }
+    }
+
+    private static void checkCrc32c(StorageObject declared, int actual) {
+        // the library sends its JSON null marker when it is not asking for a check
+        String expected = declared.getCrc32c();
+        if (expected != null && !Data.isNull(expected) && CRC32CMath.decode(expected) != actual) {
+            throw new StorageException(400, "Provided CRC32C \"" + declared.getCrc32c()
+                    + "\" doesn't match calculated CRC32C \"" + CRC32CMath.encode(actual) + "\".");
+        }
+    }
+
+    @Override
+    public StorageObject create(StorageObject object, InputStream content, Map<Option, ?> options) {
+        request();
+        ByteArrayOutputStream data = this.retainData ? new ByteArrayOutputStream() : null;
+        CRC32C crc = new CRC32C();
+        long size = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                if (data != null) {
+                    data.write(buffer, 0, read);
+                }
+                transfer(read);
+                size += read;
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+        this.bytesReceived.add(size);
+        int crc32c = (int) crc.getValue();
+        checkCrc32c(object, crc32c);
+        return store(object, size, crc32c, data == null ? null : data.toByteArray(), options).metadata;
+    }
+
+    @Override
+    public StorageObject get(StorageObject object, Map<Option, ?> options) {
+        request();
+        FakeObject found = find(object);
+        return found == null ? null : found.metadata;
+    }
+
+    @Override
+    public boolean delete(StorageObject object, Map<Option, ?> options) {
+        request();
+        return remove(object.getBucket(), object.getName());
+    }
+
+    @Override
+    public Tuple<String, Iterable<StorageObject>> list(String bucketName, Map<Option, ?> options) {
+        request();
+        String prefix = (String) options.get(Option.PREFIX);
+        String pageToken = (String) options.get(Option.PAGE_TOKEN);
+        Object maxResultsOption = options.get(Option.MAX_RESULTS);
+        long maxResults = maxResultsOption == null ? 1000 : ((Number) maxResultsOption).longValue();
+
+        NavigableMap<String, FakeObject> objects = objects(bucketName);
+        if (pageToken != null) {
+            objects = objects.tailMap(pageToken, false);
+        } else if (prefix != null) {
+            objects = objects.tailMap(prefix, true);
+        }
+        List<StorageObject> page = new ArrayList<StorageObject>();
+        String nextPageToken = null;
+        for (FakeObject object : objects.values()) {
+            String name = object.metadata.getName();
+            if (prefix != null && !name.startsWith(prefix)) {
+                break;
+            }
+            if (page.size() == maxResults) {
+                nextPageToken = page.get(page.size() - 1).getName();
+                break;
+            }
+            page.add(object.metadata);
+        }
+        return Tuple.<String, Iterable<StorageObject>>of(nextPageToken, page);
+    }
+
+    @Override
+    public StorageObject compose(Iterable<StorageObject> sources, StorageObject target, Map<Option, ?> options) {
+        request();
+        List<FakeObject> components = new ArrayList<FakeObject>();
+        for (StorageObject source : sources) {
+            FakeObject component = find(target.getBucket(), source.getName());
+            if (component == null) {
+                throw new StorageException(404, "Source object " + source.getName() + " not found");
+            }
+            components.add(component);
+        }
+        if (components.size() > 32) {
+            throw new StorageException(400, "Too many source objects");
+        }
+        long size = 0;
+        int crc32c = 0;
+        int componentCount = 0;
+        ByteArrayOutputStream data = this.retainData ? new ByteArrayOutputStream() : null;
+        for (FakeObject component : components) {
+            long length = component.metadata.getSize().longValue();
+            crc32c = size == 0 ? component.crc32c : CRC32CMath.combine(crc32c, component.crc32c, length);
+            size += length;
+            Integer count = component.metadata.getComponentCount();
+            componentCount += count == null ? 1 : count;
+            if (data != null && component.data != null) {
+                data.write(component.data, 0, component.data.length);
+            }
+        }
+        if (componentCount > 1024) {
+            throw new StorageException(400, "Component count exceeds 1024");
+        }
+        StorageObject composed = target.clone().setComponentCount(componentCount);
+        return store(composed, size, crc32c, data == null ? null : data.toByteArray(), options).metadata;
+    }
+
+    @Override
+    public byte[] load(StorageObject object, Map<Option, ?> options) {
+        request();
+        FakeObject found = contents(object);
+        transfer(found.data.length);
+        return found.data.clone();
+    }
+
+    @Override
+    public Tuple<String, byte[]> read(StorageObject object, Map<Option, ?> options, long position, int bytes) {
+        request();
+        FakeObject found = contents(object);
+        int from = (int) Math.min(position, found.data.length);
+        int to = (int) Math.min(position + bytes, found.data.length);
+        transfer(to - from);
+        return Tuple.of(String.valueOf(found.metadata.getGeneration()), Arrays.copyOfRange(found.data, from, to));
+    }
+
+    private FakeObject contents(StorageObject object) {
+        FakeObject found = find(object);
+        if (found == null) {
+            throw new StorageException(404, "Object " + object.getName() + " not found");
+        }
+        if (found.data == null) {
+            throw new StorageException(501, "The fake was not asked to retain object data");
+        }
+        return found;
+    }
+
+    // Objects on disk
+
+    private Path objectPath(String bucketName, String name) {
+        try {
+            return this.directory.resolve(bucketName).resolve(URLEncoder.encode(name, "UTF-8") + ".obj");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes an object to a temporary file and moves it into place, so that other
+     * processes see all of it or none.
+     */
+    private static void writeObject(Path path, FakeObject object) {
+        StorageObject metadata = object.metadata;
+        Path temp = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeUTF(metadata.getName());
+                writeNullable(out, metadata.getContentType());
+                writeNullable(out, metadata.getContentEncoding());
+                Map<String, String> custom = metadata.getMetadata();
+                out.writeInt(custom == null ? -1 : custom.size());
+                if (custom != null) {
+                    for (Map.Entry<String, String> entry : custom.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(entry.getValue());
+                    }
+                }
+                out.writeLong(metadata.getSize().longValue());
+                out.writeInt(object.crc32c);
+                out.writeLong(metadata.getGeneration());
+                out.writeLong(metadata.getTimeCreated().getValue());
+                Integer componentCount = metadata.getComponentCount();
+                out.writeInt(componentCount == null ? -1 : componentCount);
+                out.writeInt(object.data == null ? -1 : object.data.length);
+                if (object.data != null) {
+                    out.write(object.data);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * Reads an object written by writeObject, or returns null if there is none.
+     */
+    private static FakeObject readObject(Path path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            String name = in.readUTF();
+            String contentType = readNullable(in);
+            String contentEncoding = readNullable(in);
+            int customCount = in.readInt();
+            Map<String, String> custom = customCount < 0 ? null : new HashMap<String, String>();
+            for (int i = 0; i < customCount; i++) {
+                custom.put(in.readUTF(), in.readUTF());
+            }
+            long size = in.readLong();
+            int crc32c = in.readInt();
+            long generation = in.readLong();
+            DateTime created = new DateTime(in.readLong());
+            int componentCount = in.readInt();
+            int dataLength = in.readInt();
+            byte[] data = null;
+            if (dataLength >= 0) {
+                data = new byte[dataLength];
+                in.readFully(data);
+            }
+            String bucketName = path.getParent().getFileName().toString();
+            StorageObject metadata = new StorageObject()
+                    .setBucket(bucketName)
+                    .setName(name)
+                    .setContentType(contentType)
+                    .setContentEncoding(contentEncoding)
+                    .setMetadata(custom)
+                    .setSize(BigInteger.valueOf(size))
+                    .setCrc32c(CRC32CMath.encode(crc32c))
+                    .setGeneration(generation)
+                    .setMetageneration(1L)
+                    .setTimeCreated(created)
+                    .setUpdated(created)
+                    .setComponentCount(componentCount < 0 ? null : componentCount);
+            return new FakeObject(metadata, crc32c, data);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null && !Data.isNull(value));
+        if (value != null && !Data.isNull(value)) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // Resumable uploads
+
+    @Override
+    public String open(StorageObject object, Map<Option, ?> options) {
+        request();
+        String uploadId = "fake://" + object.getBucket() + "/" + object.getName() + "?upload_id=" + UUID.randomUUID();
+        this.sessions.put(uploadId, new Session(object, options, this.retainData));
+        return uploadId;
+    }
+
+    @Override
+    public void write(String uploadId, byte[] toWrite, int toWriteOffset, long destOffset, int length, boolean last) {
+        request();
+        Session session = this.sessions.get(uploadId);
+        if (session == null) {
+            throw new StorageException(404, "No such upload session");
+        }
+        transfer(length);
+        synchronized (session) {
+            if (destOffset > session.size) {
+                throw new StorageException(400, "Write at " + destOffset + " is past the " + session.size
+                        + " bytes received");
+            }
+            if (destOffset < session.size) {
+                // a writer restored from a checkpoint sends again from where it was captured
+                Integer crcAtOffset = session.crcAt.get(destOffset);
+                if (crcAtOffset == null) {
+                    throw new StorageException(400, "Write at " + destOffset + " does not resume a chunk boundary");
+                }
+                session.crcAt.tailMap(destOffset, false).clear();
+                session.size = destOffset;
+                if (session.data != null) {
+                    byte[] kept = Arrays.copyOf(session.data.toByteArray(), (int) destOffset);
+                    session.data.reset();
+                    session.data.write(kept, 0, kept.length);
+                }
+            }
+            CRC32C chunk = new CRC32C();
+            chunk.update(toWrite, toWriteOffset, length);
+            int crc32c = CRC32CMath.combine(session.crcAt.get(session.size), (int) chunk.getValue(), length);
+            session.size += length;
+            session.crcAt.put(session.size, crc32c);
+            if (session.data != null) {
+                session.data.write(toWrite, toWriteOffset, length);
+            }
+            this.bytesReceived.add(length);
+            if (last) {
+                checkCrc32c(session.metadata, crc32c);
+                store(session.metadata, session.size, crc32c,
+                        session.data == null ? null : session.data.toByteArray(), session.options);
+                this.sessions.remove(uploadId);
+            }
+        }
+    }
+
+    // Batches
+
+    @Override
+    public RpcBatch createBatch() {
+        return new FakeBatch();
+    }
+
+    /**
+     * Runs its calls in order on submit, as one request.
+     */
+    private class FakeBatch implements RpcBatch {
+        private final List<Runnable> calls = new ArrayList<Runnable>();
+
+        @Override
+        public void addDelete(StorageObject object, Callback<Void> callback, Map<Option, ?> options) {
+            this.calls.add(() -> {
+                if (remove(object.getBucket(), object.getName())) {
+                    callback.onSuccess(null);
+                } else {
+                    callback.onFailure(error(404, "Not Found"));
+                }
+            });
+        }
+
+        @Override
+        public void addPatch(StorageObject object, Callback<StorageObject> callback, Map<Option, ?> options) {
+            this.calls.add(() -> callback.onFailure(error(501, "Patch is not supported by the fake")));
+        }
+
+        @Override
+        public void addGet(StorageObject object, Callback<StorageObject> callback, Map<Option, ?> options) {
+            this.calls.add(() -> {
+                FakeObject found = find(object);
+                if (found != null) {
+                    callback.onSuccess(found.metadata);
+                } else {
+                    callback.onFailure(error(404, "Not Found"));
+                }
+            });
+        }
+
+        @Override
+        public void submit() {
+            request();
+            for (Runnable call : this.calls) {
+                call.run();
+            }
+            this.calls.clear();
+        }
+    }
+
+    private static GoogleJsonError error(int code, String message) {
+        GoogleJsonError error = new GoogleJsonError();
+        error.setCode(code);
+        error.setMessage(message);
+        return error;
+    }
+
+    // Not used by the uploader
+
+    private static StorageException unsupported() {
+        return new StorageException(501, "Not supported by the fake");
+    }
+
+    @Override
+    public Bucket create(Bucket bucket, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public Tuple<String, Iterable<Bucket>> list(Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public Bucket get(Bucket bucket, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public Bucket patch(Bucket bucket, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public StorageObject patch(StorageObject storageObject, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean delete(Bucket bucket, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public RewriteResponse openRewrite(RewriteRequest rewriteRequest) {
+        throw unsupported();
+    }
+
+    @Override
+    public RewriteResponse continueRewrite(RewriteResponse previousResponse) {
+        throw unsupported();
+    }
+
+    @Override
+    public BucketAccessControl getAcl(String bucket, String entity, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean deleteAcl(String bucket, String entity, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public BucketAccessControl createAcl(BucketAccessControl acl, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public BucketAccessControl patchAcl(BucketAccessControl acl, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public List<BucketAccessControl> listAcls(String bucket, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectAccessControl getDefaultAcl(String bucket, String entity) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean deleteDefaultAcl(String bucket, String entity) {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectAccessControl createDefaultAcl(ObjectAccessControl acl) {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectAccessControl patchDefaultAcl(ObjectAccessControl acl) {
+        throw unsupported();
+    }
+
+    @Override
+    public List<ObjectAccessControl> listDefaultAcls(String bucket) {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectAccessControl getAcl(String bucket, String object, Long generation, String entity) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean deleteAcl(String bucket, String object, Long generation, String entity) {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectAccessControl createAcl(ObjectAccessControl acl) {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectAccessControl patchAcl(ObjectAccessControl acl) {
+        throw unsupported();
+    }
+
+    @Override
+    public List<ObjectAccessControl> listAcls(String bucket, String object, Long generation) {
+        throw unsupported();
+    }
+
+    @Override
+    public Policy getIamPolicy(String bucket, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public Policy setIamPolicy(String bucket, Policy policy, Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public TestIamPermissionsResponse testIamPermissions(String bucket, List<String> permissions,
+            Map<Option, ?> options) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean deleteNotification(String bucket, String notification) {
+        throw unsupported();
+    }
+
+    @Override
+    public List<Notification> listNotifications(String bucket) {
+        throw unsupported();
+    }
+
+    @Override
+    public Notification createNotification(String bucket, Notification notification) {
+        throw unsupported();
+    }
+
+    @Override
+    public ServiceAccount getServiceAccount(String projectId) {
+        throw unsupported();
+    }
+
+    /**
+     * Builder for FakeStorageRpc. By default the fake is instant, never fails,
+     * and keeps no object data.
+     */
+    public static class Builder {
+        private long latencyMillis = 0;
+        private long bytesPerSecond = 0;
+        private long streamBytesPerSecond = 0;
+        private double failureRate = 0;
+        private long seed = 0;
+        private boolean retainData = false;
+        private Path directory = null;
+
+        private Builder() {
+        }
+
+        /**
+         * Delay added to every request.
+         */
+        public Builder setLatencyMillis(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        /**
+         * Rate shared by all transfers, or 0 for unlimited.
+         */
+        public Builder setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Rate of any one transfer, or 0 for unlimited.
+         */
+        public Builder setStreamBytesPerSecond(long streamBytesPerSecond) {
+            this.streamBytesPerSecond = streamBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Fraction of requests that fail with a 503.
+         */
+        public Builder setFailureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Keep object contents, so objects can be read back.
+         */
+        public Builder setRetainData(boolean retainData) {
+            this.retainData = retainData;
+            return this;
+        }
+
+        /**
+         * Keep objects in files under this directory, shared with any other fake
+         * given the same one, rather than in memory.
+         */
+        public Builder setDirectory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public FakeStorageRpc build() {
+            return new FakeStorageRpc(this);
+        }
+    }
+}
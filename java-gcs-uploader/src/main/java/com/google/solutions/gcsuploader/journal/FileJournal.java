@@ -0,0 +1,267 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.journal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import com.google.cloud.RestorableState;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.StorageOptions;
+
+/**
+ * FileJournal
+ *
+ * The checkpoint journal for one file. layout.properties records what the file
+ * looked like and how it was sliced; slice-N files record each slice's
+ * progress, and split-N files where slices split off while running start.
+ * Every write goes to a temporary file that is then renamed into place, so a
+ * crash leaves either the old record or the new one.
+ *
+ * Resumable sessions are saved as the client library's captured WriteChannel
+ * state. The StorageOptions inside it, which hold credentials, are left out
+ * and replaced with the current client's options on restore.
+ */
+public class FileJournal {
+
+    private static final String LAYOUT = "layout.properties";
+
+    private final Path directory;
+    private final String bucketName;
+    private final String fileName;
+
+    FileJournal(Path directory, String bucketName, String fileName) {
+        this.directory = directory;
+        this.bucketName = bucketName;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Returns the slice count of a previous upload of this file, if the journal
+     * has one and the file has not changed since. A journal for an older version
+     * of the file is deleted.
+     */
+    public int resumableSlices(long fileBytes, long lastModified) throws IOException {
+        Properties layout = new Properties();
+        try (InputStream in = Files.newInputStream(this.directory.resolve(LAYOUT))) {
+            layout.load(in);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        if (this.bucketName.equals(layout.getProperty("bucket")) && this.fileName.equals(layout.getProperty("file"))
+                && Long.toString(fileBytes).equals(layout.getProperty("size"))
+                && Long.toString(lastModified).equals(layout.getProperty("mtime"))) {
+            return Integer.parseInt(layout.getProperty("slices", "0"));
+        }
+        delete();
+        return 0;
+    }
+
+    /**
+     * Whether an upload of this file has recorded a layout that has not yet been
+     * completed or discarded.
+     */
+    public boolean exists() {
+        return Files.exists(this.directory.resolve(LAYOUT));
+    }
+
+    /**
+     * Records the file and how it is being sliced, starting a fresh journal.
+     */
+    public void saveLayout(long fileBytes, long lastModified, int sliceCount) throws IOException {
+        delete();
+        Files.createDirectories(this.directory);
+        Properties layout = new Properties();
+        layout.setProperty("bucket", this.bucketName);
+        layout.setProperty("file", this.fileName);
+        layout.setProperty("size", Long.toString(fileBytes));
+        layout.setProperty("mtime", Long.toString(lastModified));
+        layout.setProperty("slices", Integer.toString(sliceCount));
+        Path temp = Files.createTempFile(this.directory, LAYOUT, ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            layout.store(out, "gcsuploader journal");
+        }
+        Files.move(temp, this.directory.resolve(LAYOUT), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns a slice's last checkpoint, or null if it has none or the checkpoint
+     * cannot be read.
+     */
+    public SliceCheckpoint loadSlice(int index, StorageOptions options) {
+        Path slice = this.directory.resolve("slice-" + index);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(slice))) {
+            long offset = in.readLong();
+            int crc32c = in.readInt();
+            boolean done = in.readBoolean();
+            RestorableState<WriteChannel> state = null;
+            if (!done) {
+                state = readState(in, options);
+            }
+            return new SliceCheckpoint(offset, crc32c, done, state);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.err.println(this.fileName + ": Ignoring unreadable checkpoint for slice " + index + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Records that offset bytes of a slice, with the given CRC32C, have been
+     * handed to the resumable session captured in state.
+     */
+    public void checkpoint(int index, long offset, int crc32c, RestorableState<WriteChannel> state)
+            throws IOException {
+        writeSlice(index, offset, crc32c, false, state);
+    }
+
+    /**
+     * Records that a slice is uploaded in full.
+     */
+    public void complete(int index, long length, int crc32c) throws IOException {
+        writeSlice(index, length, crc32c, true, null);
+    }
+
+    /**
+     * Records that slice index was split off another slice, and starts at byte
+     * start of the file. The slice it was split from ends there from now on.
+     */
+    public void saveSplit(int index, long start) throws IOException {
+        Path temp = Files.createTempFile(this.directory, "split-" + index, ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeLong(start);
+        }
+        Files.move(temp, this.directory.resolve("split-" + index), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the start of every slice split off while running, by slice index.
+     */
+    public Map<Integer, Long> loadSplits() throws IOException {
+        Map<Integer, Long> splits = new TreeMap<Integer, Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "split-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    continue;
+                }
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                    splits.put(Integer.parseInt(name.substring("split-".length())), in.readLong());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // no journal, so no splits
+        }
+        return splits;
+    }
+
+    /**
+     * Forgets a slice's progress, so it starts over.
+     */
+    public void clear(int index) throws IOException {
+        Files.deleteIfExists(this.directory.resolve("slice-" + index));
+    }
+
+    /**
+     * Removes the whole journal for this file.
+     */
+    public void delete() throws IOException {
+        if (!Files.exists(this.directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void writeSlice(int index, long offset, int crc32c, boolean done, RestorableState<WriteChannel> state)
+            throws IOException {
+        Path temp = Files.createTempFile(this.directory, "slice-" + index, ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeLong(offset);
+            out.writeInt(crc32c);
+            out.writeBoolean(done);
+            if (!done) {
+                writeState(out, state);
+            }
+        }
+        Files.move(temp, this.directory.resolve("slice-" + index), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeState(OutputStream out, RestorableState<WriteChannel> state) throws IOException {
+        try (ObjectOutputStream objects = new OptionsStrippingOutputStream(out)) {
+            objects.writeObject(state);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RestorableState<WriteChannel> readState(InputStream in, StorageOptions options)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objects = new OptionsRestoringInputStream(in, options)) {
+            return (RestorableState<WriteChannel>) objects.readObject();
+        }
+    }
+
+    // Stands in for the StorageOptions in a serialized session.
+    private static class OptionsPlaceholder implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class OptionsStrippingOutputStream extends ObjectOutputStream {
+        OptionsStrippingOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            return obj instanceof StorageOptions ? new OptionsPlaceholder() : obj;
+        }
+    }
+
+    private static class OptionsRestoringInputStream extends ObjectInputStream {
+        private final StorageOptions options;
+
+        OptionsRestoringInputStream(InputStream in, StorageOptions options) throws IOException {
+            super(in);
+            this.options = options;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            return obj instanceof OptionsPlaceholder ? this.options : obj;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.journal;
+
+import com.google.cloud.RestorableState;
+import com.google.cloud.WriteChannel;
+
+/**
+ * SliceCheckpoint
+ *
+ * How far one slice got: the bytes of the slice handed to its resumable
+ * session, their CRC32C, and the captured session to resume from. A finished
+ * slice has no session, and its checksum covers the whole slice.
+ */
+public class SliceCheckpoint {
+
+    public final long offset;
+    public final int crc32c;
+    public final boolean done;
+    public final RestorableState<WriteChannel> state;
+
+    SliceCheckpoint(long offset, int crc32c, boolean done, RestorableState<WriteChannel> state) {
+        this.offset = offset;
+        this.crc32c = crc32c;
+        this.done = done;
+        this.state = state;
+    }
+}
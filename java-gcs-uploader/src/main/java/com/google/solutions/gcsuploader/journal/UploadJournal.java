@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.journal;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * UploadJournal
+ *
+ * The root of the on-disk checkpoint journal. Each file being uploaded, or
+ * downloaded, gets its own directory underneath, named for a hash of its bucket
+ * and path.
+ */
+public class UploadJournal {
+
+    private final Path root;
+
+    public UploadJournal(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the journal for one file's upload. Nothing is written until the
+     * upload records its layout.
+     */
+    public FileJournal forFile(String bucketName, String fileName) {
+        String key = Hashing.sha256().hashString(bucketName + "/" + fileName, StandardCharsets.UTF_8).toString();
+        return new FileJournal(this.root.resolve(key), bucketName, fileName);
+    }
+
+    /**
+     * Returns the journal for one object's download to target. It is kept apart
+     * from any upload of a file at the same path.
+     */
+    public FileJournal forDownload(String bucketName, String objectName, String target) {
+        String key = Hashing.sha256().hashString("download:" + bucketName + "/" + objectName + ">" + target,
+                StandardCharsets.UTF_8).toString();
+        return new FileJournal(this.root.resolve(key), bucketName, target);
+    }
+
+    public Path getRoot() {
+        return this.root;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics
+ *
+ * Named counters and latency histograms shared by every upload in a run, and
+ * the slowest slices seen, so tail latency can be traced to the slices behind
+ * it. Histograms hold microseconds. Names are dotted, stage first, such as
+ * "chunk.write" or "file.composite".
+ */
+public class Metrics {
+
+    private static final int SLOWEST_KEPT = 10;
+
+    /**
+     * A slice and how long it took.
+     */
+    public static class Timing implements Comparable<Timing> {
+        public final String name;
+        public final long micros;
+
+        Timing(String name, long micros) {
+            this.name = name;
+            this.micros = micros;
+        }
+
+        @Override
+        public int compareTo(Timing other) {
+            return Long.compare(this.micros, other.micros);
+        }
+    }
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    // least slow first, so the head is the one to drop
+    private final PriorityQueue<Timing> slowest = new PriorityQueue<Timing>();
+
+    public LongAdder counter(String name) {
+        return this.counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Histogram histogram(String name) {
+        return this.histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Records a slice's duration in the "slice" histogram, and keeps it if it is
+     * among the slowest.
+     */
+    public void recordSlice(String name, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        histogram("slice").record(micros);
+        synchronized (this.slowest) {
+            if (this.slowest.size() < SLOWEST_KEPT) {
+                this.slowest.add(new Timing(name, micros));
+            } else if (this.slowest.peek().micros < micros) {
+                this.slowest.poll();
+                this.slowest.add(new Timing(name, micros));
+            }
+        }
+    }
+
+    /**
+     * Counter values by name, sorted.
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : this.counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        return values;
+    }
+
+    /**
+     * Histograms by name, sorted.
+     */
+    public Map<String, Histogram> getHistograms() {
+        return new TreeMap<String, Histogram>(this.histograms);
+    }
+
+    /**
+     * The slowest slices, slowest first.
+     */
+    public List<Timing> getSlowestSlices() {
+        List<Timing> timings;
+        synchronized (this.slowest) {
+            timings = new ArrayList<Timing>(this.slowest);
+        }
+        Collections.sort(timings, Collections.reverseOrder());
+        return timings;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.metrics;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import com.google.solutions.gcsuploader.Constants;
+
+/**
+ * ProgressLine
+ *
+ * Prints a progress line to stderr at a steady interval while a run goes: bytes
+ * and files done against the total, the current rate, and the time left at that
+ * rate. On a terminal the line is redrawn in place. Until enumeration finishes
+ * the total is a lower bound, shown with a "+", and no estimate is given.
+ *
+ * The rate is smoothed over the last few intervals, so one slow chunk does not
+ * swing the estimate.
+ */
+public class ProgressLine implements Runnable {
+
+    private final LongSupplier bytesDone;
+    private final LongSupplier bytesTotal;
+    private final LongSupplier filesDone;
+    private final LongSupplier filesTotal;
+    private final BooleanSupplier totalFinal;
+    private final boolean terminal = System.console() != null;
+    private Thread thread = null;
+    private volatile boolean stopped = false;
+    private double rate = 0;
+
+    public ProgressLine(LongSupplier bytesDone, LongSupplier bytesTotal, LongSupplier filesDone,
+            LongSupplier filesTotal, BooleanSupplier totalFinal) {
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.filesDone = filesDone;
+        this.filesTotal = filesTotal;
+        this.totalFinal = totalFinal;
+    }
+
+    /**
+     * Starts printing on a daemon thread.
+     */
+    public ProgressLine start() {
+        this.thread = new Thread(this, "progress");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        return this;
+    }
+
+    /**
+     * Stops printing, after a last line.
+     */
+    public void stop() throws InterruptedException {
+        this.stopped = true;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        long lastBytes = this.bytesDone.getAsLong();
+        long lastNanos = System.nanoTime();
+        while (!this.stopped) {
+            try {
+                Thread.sleep(Constants.PROGRESS_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long bytes = this.bytesDone.getAsLong();
+            long nanos = System.nanoTime();
+            double instant = (bytes - lastBytes) * 1e9 / Math.max(nanos - lastNanos, 1);
+            this.rate = this.rate == 0 ? instant : this.rate * 0.8 + instant * 0.2;
+            lastBytes = bytes;
+            lastNanos = nanos;
+            print(bytes);
+        }
+        print(this.bytesDone.getAsLong());
+        if (this.terminal) {
+            System.err.println();
+        }
+    }
+
+    private void print(long bytes) {
+        boolean known = this.totalFinal.getAsBoolean();
+        long total = Math.max(this.bytesTotal.getAsLong(), 1);
+        // bytes sent again on retries count as done, so cap at the total
+        long done = Math.min(bytes, total);
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("%3d%% %s of %s%s, %s/s, %d of %d%s files", done * 100 / total, size(done),
+                size(total), known ? "" : "+", size((long) this.rate), this.filesDone.getAsLong(),
+                this.filesTotal.getAsLong(), known ? "" : "+"));
+        if (known && this.rate > 0) {
+            long seconds = (long) ((total - done) / this.rate);
+            line.append(String.format(", ETA %d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60));
+        } else {
+            line.append(", ETA ?");
+        }
+        if (this.terminal) {
+            // pad over whatever a longer previous line left behind
+            System.err.print("\r" + String.format("%-79s", line));
+        } else {
+            System.err.println(line);
+        }
+    }
+
+    private static String size(long bytes) {
+        if (bytes >= 1000L * 1000 * 1000) {
+            return String.format("%.2f GB", bytes / 1e9);
+        }
+        return String.format("%.1f MB", bytes / 1e6);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RunReport
+ *
+ * A machine-readable summary of a run, written as JSON at the end so runs can be
+ * compared and slow stages found: whatever totals the caller puts in, then the
+ * counters, a percentile summary of each histogram in microseconds, and the
+ * slowest slices.
+ */
+public class RunReport {
+
+    private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+    /**
+     * Adds a field. Values may be strings, numbers, booleans, maps and lists of those.
+     */
+    public RunReport put(String key, Object value) {
+        this.fields.put(key, value);
+        return this;
+    }
+
+    public RunReport putMetrics(Metrics metrics) {
+        put("counters", metrics.getCounters());
+        Map<String, Object> histograms = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Histogram> entry : metrics.getHistograms().entrySet()) {
+            histograms.put(entry.getKey(), summarize(entry.getValue()));
+        }
+        put("histograms", histograms);
+        List<Object> slowest = new ArrayList<Object>();
+        for (Metrics.Timing timing : metrics.getSlowestSlices()) {
+            Map<String, Object> slice = new LinkedHashMap<String, Object>();
+            slice.put("name", timing.name);
+            slice.put("micros", timing.micros);
+            slowest.add(slice);
+        }
+        put("slowestSlices", slowest);
+        return this;
+    }
+
+    private static Map<String, Object> summarize(Histogram histogram) {
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("count", histogram.getCount());
+        summary.put("mean", Math.round(histogram.getMean()));
+        summary.put("min", histogram.getMin());
+        summary.put("p50", histogram.getPercentile(0.5));
+        summary.put("p90", histogram.getPercentile(0.9));
+        summary.put("p99", histogram.getPercentile(0.99));
+        summary.put("p999", histogram.getPercentile(0.999));
+        summary.put("max", histogram.getMax());
+        return summary;
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        append(json, this.fields, "");
+        return json.append('\n').toString();
+    }
+
+    public void write(Path path) throws IOException {
+        Files.write(path, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void append(StringBuilder json, Object value, String indent) {
+        if (value instanceof Map) {
+            String inner = indent + "  ";
+            json.append('{');
+            String separator = "\n";
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                json.append(separator).append(inner);
+                appendString(json, String.valueOf(entry.getKey()));
+                json.append(": ");
+                append(json, entry.getValue(), inner);
+                separator = ",\n";
+            }
+            json.append(separator.equals("\n") ? "" : "\n" + indent).append('}');
+        } else if (value instanceof List) {
+            String inner = indent + "  ";
+            json.append('[');
+            String separator = "\n";
+            for (Object item : (List<?>) value) {
+                json.append(separator).append(inner);
+                append(json, item, inner);
+                separator = ",\n";
+            }
+            json.append(separator.equals("\n") ? "" : "\n" + indent).append(']');
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            json.append(Double.isFinite(number) ? String.valueOf(number) : "null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value == null) {
+            json.append("null");
+        } else {
+            appendString(json, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
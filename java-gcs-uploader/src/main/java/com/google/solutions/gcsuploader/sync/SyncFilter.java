@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import com.google.solutions.gcsuploader.CRC32CFile;
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.FileFeed;
+import com.google.solutions.gcsuploader.FileSource;
+
+/**
+ * SyncFilter
+ *
+ * Passes on only the files that differ from what is in the bucket. Files whose
+ * size and modification time match the index are taken as unchanged without
+ * any request. The rest are looked up in the bucket in batches of object gets.
+ * A file whose object is missing or of another size is passed on unread; the
+ * others are hashed, unless the index already holds their checksum, and those
+ * that match are recorded in the index and not uploaded.
+ *
+ * With checkRemote, every file is compared against the bucket, which catches
+ * objects changed or deleted since the last sync at the cost of a request per
+ * batch.
+ */
+public class SyncFilter implements FileFeed, Runnable {
+
+    private final FileFeed upstream;
+    private final Storage storage;
+    private final String bucketName;
+    private final SyncIndex index;
+    private final boolean checkRemote;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(Constants.FILE_QUEUE_SIZE);
+    // marks the end of filtering in the queue
+    private final Object end = new Object();
+
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder changed = new LongAdder();
+    private final LongAdder skippedBytes = new LongAdder();
+
+    public SyncFilter(FileFeed upstream, Storage storage, String bucketName, SyncIndex index, boolean checkRemote) {
+        this.upstream = upstream;
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.index = index;
+        this.checkRemote = checkRemote;
+    }
+
+    /**
+     * Starts filtering on a daemon thread.
+     */
+    public SyncFilter start() {
+        Thread filter = new Thread(this, "sync-filter");
+        filter.setDaemon(true);
+        filter.start();
+        return this;
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<FileSource.Entry> batch = new ArrayList<FileSource.Entry>(Constants.SYNC_BATCH_SIZE);
+            FileSource.Entry entry;
+            while ((entry = this.upstream.next()) != null) {
+                SyncIndex.Record record = this.index.get(entry.fileName);
+                if (!this.checkRemote && record != null && record.matches(entry.bytes, entry.modifiedMillis)) {
+                    this.unchanged.increment();
+                    this.skippedBytes.add(entry.bytes);
+                    continue;
+                }
+                batch.add(entry);
+                if (batch.size() == Constants.SYNC_BATCH_SIZE) {
+                    compare(batch);
+                    batch.clear();
+                }
+            }
+            compare(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                this.queue.put(this.end);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public FileSource.Entry next() throws InterruptedException {
+        Object next = this.queue.take();
+        if (next == this.end) {
+            // leave the marker for any other consumer
+            this.queue.put(this.end);
+            return null;
+        }
+        return (FileSource.Entry) next;
+    }
+
+    /**
+     * Compares a batch of files against the bucket, and passes on those that differ.
+     */
+    private void compare(List<FileSource.Entry> batch) throws InterruptedException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<BlobId> blobIds = new ArrayList<BlobId>(batch.size());
+        for (FileSource.Entry entry : batch) {
+            blobIds.add(BlobId.of(this.bucketName, entry.fileName));
+        }
+        List<Blob> blobs;
+        try {
+            blobs = this.storage.get(blobIds);
+        } catch (StorageException e) {
+            // without the bucket's view, upload the lot
+            System.out.println("sync: Could not get objects, uploading batch: " + e.getMessage());
+            for (FileSource.Entry entry : batch) {
+                send(entry);
+            }
+            return;
+        }
+
+        // only a file whose object exists at the same size can match; hash those
+        // the index cannot vouch for, in parallel
+        List<CompletableFuture<Integer>> checksums = new ArrayList<CompletableFuture<Integer>>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            FileSource.Entry entry = batch.get(i);
+            Blob blob = blobs.get(i);
+            if (blob == null || blob.getSize() != entry.bytes || blob.getCrc32c() == null) {
+                checksums.add(null);
+                continue;
+            }
+            SyncIndex.Record record = this.index.get(entry.fileName);
+            if (record != null && record.matches(entry.bytes, entry.modifiedMillis)) {
+                checksums.add(CompletableFuture.completedFuture(record.crc32c));
+            } else {
+                checksums.add(new CRC32CFile(entry.fileName).checksumAsync());
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            FileSource.Entry entry = batch.get(i);
+            if (checksums.get(i) == null) {
+                send(entry);
+                continue;
+            }
+            int local;
+            try {
+                local = checksums.get(i).join();
+            } catch (RuntimeException e) {
+                // unreadable now; the upload will report why
+                send(entry);
+                continue;
+            }
+            if (CRC32CMath.decode(blobs.get(i).getCrc32c()) == local) {
+                this.matched.increment();
+                this.skippedBytes.add(entry.bytes);
+                this.index.put(entry.fileName, entry.bytes, entry.modifiedMillis, local);
+            } else {
+                send(entry);
+            }
+        }
+    }
+
+    private void send(FileSource.Entry entry) throws InterruptedException {
+        this.changed.increment();
+        this.queue.put(entry);
+    }
+
+    /**
+     * Files skipped because the index shows them unchanged.
+     */
+    public long getUnchanged() {
+        return this.unchanged.sum();
+    }
+
+    /**
+     * Files skipped because the bucket already holds the same bytes.
+     */
+    public long getMatched() {
+        return this.matched.sum();
+    }
+
+    /**
+     * Files passed on for upload.
+     */
+    public long getChanged() {
+        return this.changed.sum();
+    }
+
+    /**
+     * Total size of the files not passed on, unchanged or already in the bucket.
+     */
+    public long getSkippedBytes() {
+        return this.skippedBytes.sum();
+    }
+}
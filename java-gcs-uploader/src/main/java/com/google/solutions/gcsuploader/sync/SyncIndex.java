@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.sync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.solutions.gcsuploader.RecordFile;
+
+/**
+ * SyncIndex
+ *
+ * What was last known to be in the bucket for each local file: its size and
+ * modification time when it was uploaded or matched, and its CRC32C. A file
+ * whose size and time are unchanged need not be read again to know its checksum.
+ *
+ * On disk it is a RecordFile, read in one sequential pass and replaced
+ * atomically on save.
+ */
+public class SyncIndex {
+
+    private static final int MAGIC = 0x47435349; // "GCSI"
+    private static final int VERSION = 1;
+    private static final RecordFile.Format<Record> FORMAT = new RecordFile.Format<Record>() {
+        @Override
+        public Record read(DataInputStream in) throws IOException {
+            return new Record(in.readLong(), in.readLong(), in.readInt());
+        }
+
+        @Override
+        public void write(DataOutputStream out, Record record) throws IOException {
+            out.writeLong(record.bytes);
+            out.writeLong(record.modifiedMillis);
+            out.writeInt(record.crc32c);
+        }
+    };
+
+    /**
+     * The state of one file as of its last sync.
+     */
+    public static class Record {
+        public final long bytes;
+        public final long modifiedMillis;
+        public final int crc32c;
+
+        public Record(long bytes, long modifiedMillis, int crc32c) {
+            this.bytes = bytes;
+            this.modifiedMillis = modifiedMillis;
+            this.crc32c = crc32c;
+        }
+
+        /**
+         * Whether the file still has the size and time it had when recorded.
+         */
+        public boolean matches(long bytes, long modifiedMillis) {
+            return this.bytes == bytes && this.modifiedMillis == modifiedMillis;
+        }
+    }
+
+    private final RecordFile<Record> file;
+    private final Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+    private SyncIndex(Path path, String bucketName) {
+        this.file = new RecordFile<Record>(path, MAGIC, VERSION, FORMAT, bucketName);
+    }
+
+    /**
+     * Loads the index at path, or starts an empty one if there is none. An index
+     * written for another bucket is not used.
+     */
+    public static SyncIndex load(Path path, String bucketName) throws IOException {
+        SyncIndex index = new SyncIndex(path, bucketName);
+        if (!index.file.read(index.records)) {
+            System.out.println("sync: Index " + path + " is not for this bucket, starting a new one.");
+        }
+        return index;
+    }
+
+    public Record get(String fileName) {
+        return this.records.get(fileName);
+    }
+
+    public void put(String fileName, long bytes, long modifiedMillis, int crc32c) {
+        this.records.put(fileName, new Record(bytes, modifiedMillis, crc32c));
+    }
+
+    public int size() {
+        return this.records.size();
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it into place.
+     */
+    public synchronized void save() throws IOException {
+        // uploads may still be recording; the file writes a snapshot
+        this.file.write(this.records);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.tuning;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * TunedSettings
+ *
+ * The chunk size, connection count and per-stream rate the tuner settled on for
+ * each destination, so that the next run to the same place starts from them.
+ * All destinations share one properties file, keyed by destination, which is
+ * replaced atomically on save.
+ */
+public class TunedSettings {
+
+    private final Path path;
+    private final String destination;
+    private int chunkSize = 0;
+    private int connections = 0;
+    private long streamBytesPerSecond = 0;
+
+    private TunedSettings(Path path, String destination) {
+        this.path = path;
+        this.destination = destination;
+    }
+
+    /**
+     * Loads the settings for destination from path. Settings that were never
+     * saved read as 0.
+     */
+    public static TunedSettings load(Path path, String destination) throws IOException {
+        TunedSettings settings = new TunedSettings(path, destination);
+        Properties all = read(path);
+        settings.chunkSize = Integer.parseInt(all.getProperty(destination + ".chunkSize", "0"));
+        settings.connections = Integer.parseInt(all.getProperty(destination + ".connections", "0"));
+        settings.streamBytesPerSecond = Long.parseLong(all.getProperty(destination + ".streamBytesPerSecond", "0"));
+        return settings;
+    }
+
+    private static Properties read(Path path) throws IOException {
+        Properties all = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            all.load(in);
+        } catch (NoSuchFileException e) {
+            // nothing tuned yet
+        }
+        return all;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public int getConnections() {
+        return this.connections;
+    }
+
+    public long getStreamBytesPerSecond() {
+        return this.streamBytesPerSecond;
+    }
+
+    /**
+     * Records new settings for this destination, keeping those of the others.
+     */
+    public synchronized void save(int chunkSize, int connections, long streamBytesPerSecond) throws IOException {
+        this.chunkSize = chunkSize;
+        this.connections = connections;
+        this.streamBytesPerSecond = streamBytesPerSecond;
+        // read again, in case another run has saved since we loaded
+        Properties all = read(this.path);
+        all.setProperty(this.destination + ".chunkSize", Integer.toString(chunkSize));
+        all.setProperty(this.destination + ".connections", Integer.toString(connections));
+        all.setProperty(this.destination + ".streamBytesPerSecond", Long.toString(streamBytesPerSecond));
+        Files.createDirectories(this.path.toAbsolutePath().getParent());
+        Path temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            all.store(out, "gcsuploader tuned settings");
+        }
+        Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
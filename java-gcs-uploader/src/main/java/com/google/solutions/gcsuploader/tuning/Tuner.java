@@ -0,0 +1,291 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.tuning;
+
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.UploadContext;
+
+/**
+ * Tuner
+ *
+ * Adjusts the chunk size and connection count while a run goes, by hill
+ * climbing on measured throughput. Each interval's bytes written are compared
+ * with the interval before the last change: a change that helped is taken again,
+ * one that hurt is undone and that knob turned the other way next time, and on a
+ * plateau a change that costs more (more connections, bigger buffers) is undone
+ * while one that costs less is kept. Each plateau or reversal hands over to the
+ * other knob. Retried requests mean the service or the path is overloaded, so
+ * they halve the connections, as in AIMD.
+ *
+ * Throughput divided by busy connections is what one stream carries; composite
+ * uploads divide the bandwidth by it to choose how many slices to run.
+ *
+ * Knobs set explicitly are left alone. The measuring and adjusting all happen on
+ * the tuner's own thread.
+ */
+public class Tuner implements Runnable {
+
+    private enum Knob {
+        CHUNK_SIZE, CONNECTIONS
+    }
+
+    /**
+     * A change to one knob, and the value it replaced.
+     */
+    private static class Step {
+        private final Knob knob;
+        private final int previous;
+        private final int next;
+
+        Step(Knob knob, int previous, int next) {
+            this.knob = knob;
+            this.previous = previous;
+            this.next = next;
+        }
+
+        @Override
+        public String toString() {
+            return this.knob == Knob.CHUNK_SIZE ? "chunk size " + this.previous + " -> " + this.next
+                    : "connections " + this.previous + " -> " + this.next;
+        }
+    }
+
+    private final UploadContext context;
+    private final boolean tuneChunkSize;
+    private final boolean tuneConnections;
+    private final boolean tuneStreams;
+    private Thread thread = null;
+    private volatile boolean stopped = false;
+    private volatile boolean measured = false;
+
+    private Knob knob;
+    private int chunkSizeDirection = 1;
+    private int connectionsDirection = 1;
+    private double baselineRate = 0;
+    private Step lastStep = null;
+
+    /**
+     * @param tuneChunkSize   whether to adjust the chunk size.
+     * @param tuneConnections whether to adjust the I/O pool size.
+     * @param tuneStreams     whether to measure the per-stream rate slice counts are planned from.
+     */
+    public Tuner(UploadContext context, boolean tuneChunkSize, boolean tuneConnections, boolean tuneStreams) {
+        this.context = context;
+        this.tuneChunkSize = tuneChunkSize;
+        this.tuneConnections = tuneConnections;
+        this.tuneStreams = tuneStreams;
+        this.knob = tuneConnections ? Knob.CONNECTIONS : Knob.CHUNK_SIZE;
+    }
+
+    /**
+     * Starts tuning on a daemon thread.
+     */
+    public Tuner start() {
+        this.thread = new Thread(this, "tuner");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        return this;
+    }
+
+    /**
+     * Stops tuning, going back on a change that was not yet measured, so the
+     * settings left are the last ones known to perform.
+     */
+    public void stop() throws InterruptedException {
+        this.stopped = true;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread.join();
+        }
+        if (this.lastStep != null) {
+            apply(this.lastStep.knob, this.lastStep.previous);
+            this.lastStep = null;
+        }
+    }
+
+    /**
+     * Whether any interval had uploads running, so the settings reflect a measurement.
+     */
+    public boolean hasMeasured() {
+        return this.measured;
+    }
+
+    @Override
+    public void run() {
+        long lastBytes = this.context.getGovernor().getBytesGranted();
+        long lastRetries = this.context.getRetryPolicy().getRetries();
+        long intervalStart = System.nanoTime();
+        long activeSum = 0;
+        int samples = 0;
+        while (!this.stopped) {
+            try {
+                Thread.sleep(Constants.TUNE_SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            activeSum += this.context.getActiveConnections();
+            samples++;
+            long elapsedMillis = (System.nanoTime() - intervalStart) / 1000 / 1000;
+            if (elapsedMillis < intervalMillis()) {
+                continue;
+            }
+            long bytes = this.context.getGovernor().getBytesGranted();
+            long retries = this.context.getRetryPolicy().getRetries();
+            adjust(bytes - lastBytes, retries - lastRetries, (double) activeSum / samples, elapsedMillis);
+            lastBytes = bytes;
+            lastRetries = retries;
+            intervalStart = System.nanoTime();
+            activeSum = 0;
+            samples = 0;
+        }
+    }
+
+    /**
+     * How long to measure for: long enough that a chunk more or less per stream
+     * does not look like a change in throughput.
+     */
+    private long intervalMillis() {
+        long chunkMillis = this.context.getChunkSize() * 1000L / this.context.getStreamBytesPerSecond();
+        return Math.max(Constants.TUNE_INTERVAL_MILLIS, Constants.TUNE_CHUNKS_PER_INTERVAL * chunkMillis);
+    }
+
+    private void adjust(long bytes, long retries, double activeStreams, long elapsedMillis) {
+        if (bytes == 0) {
+            // nothing running, nothing to learn
+            return;
+        }
+        this.measured = true;
+        double rate = bytes * 1000.0 / elapsedMillis;
+
+        if (this.tuneStreams && activeStreams >= 1) {
+            // smoothed, since the busy count is sampled
+            long perStream = (long) (rate / activeStreams);
+            this.context.setStreamBytesPerSecond((this.context.getStreamBytesPerSecond() * 3 + perStream) / 4);
+        }
+
+        if (retries > 0 && this.tuneConnections) {
+            int connections = this.context.getConnections();
+            int next = Math.max(Constants.TUNE_MIN_CONNECTIONS, connections / 2);
+            if (next != connections) {
+                print(retries + " retries in the last interval, connections " + connections + " -> " + next);
+                this.context.setConnections(next);
+            }
+            // measure afresh at the new level before climbing again
+            this.connectionsDirection = 1;
+            this.lastStep = null;
+            return;
+        }
+
+        if (this.lastStep != null) {
+            Step step = this.lastStep;
+            boolean worse = rate < this.baselineRate * (1 - Constants.TUNE_TOLERANCE);
+            boolean better = rate > this.baselineRate * (1 + Constants.TUNE_TOLERANCE);
+            if (!better) {
+                boolean costlier = step.next > step.previous;
+                if (worse || costlier) {
+                    print(String.format("%.1f MB/s against %.1f MB/s, undoing %s", rate / 1e6,
+                            this.baselineRate / 1e6, step));
+                    apply(step.knob, step.previous);
+                    reverse(step.knob);
+                }
+                this.knob = other(step.knob);
+                if (worse || costlier) {
+                    // measure the restored settings before the next change
+                    this.lastStep = null;
+                    return;
+                }
+            }
+        }
+
+        this.baselineRate = rate;
+        this.lastStep = step(this.knob);
+        if (this.lastStep == null) {
+            this.knob = other(this.knob);
+            this.lastStep = step(this.knob);
+        }
+        if (this.lastStep != null) {
+            print(String.format("%.1f MB/s, trying %s", rate / 1e6, this.lastStep));
+        }
+    }
+
+    /**
+     * Moves knob one step in its direction, or returns null if it cannot move.
+     */
+    private Step step(Knob knob) {
+        int current;
+        int next;
+        if (knob == Knob.CONNECTIONS) {
+            if (!this.tuneConnections) {
+                return null;
+            }
+            current = this.context.getConnections();
+            next = clamp(current + this.connectionsDirection * Constants.TUNE_CONNECTION_STEP,
+                    Constants.TUNE_MIN_CONNECTIONS, Constants.TUNE_MAX_CONNECTIONS);
+        } else {
+            if (!this.tuneChunkSize) {
+                return null;
+            }
+            current = this.context.getChunkSize();
+            long scaled = this.chunkSizeDirection > 0 ? current * 2L : current / 2;
+            next = (int) Math.max(Constants.TUNE_MIN_CHUNK_SIZE, Math.min(Constants.TUNE_MAX_CHUNK_SIZE, scaled));
+        }
+        if (next == current) {
+            // at a limit, so the next try goes the other way
+            reverse(knob);
+            return null;
+        }
+        apply(knob, next);
+        return new Step(knob, current, next);
+    }
+
+    private void apply(Knob knob, int value) {
+        if (knob == Knob.CONNECTIONS) {
+            this.context.setConnections(value);
+        } else {
+            this.context.setChunkSize(value);
+        }
+    }
+
+    private void reverse(Knob knob) {
+        if (knob == Knob.CONNECTIONS) {
+            this.connectionsDirection = -this.connectionsDirection;
+        } else {
+            this.chunkSizeDirection = -this.chunkSizeDirection;
+        }
+    }
+
+    private Knob other(Knob knob) {
+        if (knob == Knob.CONNECTIONS) {
+            return this.tuneChunkSize ? Knob.CHUNK_SIZE : Knob.CONNECTIONS;
+        }
+        return this.tuneConnections ? Knob.CONNECTIONS : Knob.CHUNK_SIZE;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString() {
+        return "chunk size " + this.context.getChunkSize() + ", connections " + this.context.getConnections()
+                + ", stream " + this.context.getStreamBytesPerSecond() + " B/s";
+    }
+
+    private static void print(String message) {
+        System.out.println("tuner: " + message);
+    }
+}
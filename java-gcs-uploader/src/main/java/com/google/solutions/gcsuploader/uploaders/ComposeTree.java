@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.ComposeRequest;
+import com.google.cloud.storage.StorageException;
+
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+
+/**
+ * ComposeTree
+ *
+ * Composes any number of source objects into a target, in a tree of compose
+ * requests with at most MAX_COMPOSE_SOURCES sources each. The groups of a level
+ * are composed in parallel, and each level of intermediate objects is deleted,
+ * in the background, once the level above it has been composed. Intermediate
+ * objects are tagged as slices of the target, for the sweeper to find if the
+ * upload never finishes. Compose requests are retried; composing the same
+ * sources into the same target again gives the same object.
+ */
+public class ComposeTree {
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String targetName;
+    private final Executor executor;
+    private final RetryPolicy retryPolicy;
+    private final Metrics metrics;
+    private final ObjectCleaner cleaner;
+    private String contentEncoding = null;
+
+    public ComposeTree(String bucketName, String targetName, UploadContext context) {
+        this.storage = context.getStorage();
+        this.bucketName = bucketName;
+        this.targetName = targetName;
+        this.executor = context.getIoExecutor();
+        this.retryPolicy = context.getRetryPolicy();
+        this.metrics = context.getMetrics();
+        this.cleaner = context.getCleaner();
+    }
+
+    /**
+     * Sets the Content-Encoding of the target, such as gzip for sources that are
+     * runs of gzip members.
+     */
+    void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Composes the sources, in order, into the target. The sources themselves are
+     * left in place.
+     */
+    public CompletableFuture<Blob> compose(List<String> sources) {
+        return composeFrom(sources, 0);
+    }
+
+    private CompletableFuture<Blob> composeFrom(List<String> level, int depth) {
+        if (level.size() <= Constants.MAX_COMPOSE_SOURCES) {
+            return composeAsync(level, this.targetName, false)
+                    .whenComplete((blob, error) -> deleteIntermediates(level, depth));
+        }
+        return composeLevel(level, depth)
+                .whenComplete((next, error) -> deleteIntermediates(level, depth))
+                .thenCompose(next -> composeFrom(next, depth + 1));
+    }
+
+    private CompletableFuture<List<String>> composeLevel(List<String> sources, int depth) {
+        List<CompletableFuture<Blob>> results = new ArrayList<CompletableFuture<Blob>>();
+        List<String> intermediates = new ArrayList<String>();
+        for (int group = 0; group * Constants.MAX_COMPOSE_SOURCES < sources.size(); group++) {
+            int from = group * Constants.MAX_COMPOSE_SOURCES;
+            int to = Math.min(from + Constants.MAX_COMPOSE_SOURCES, sources.size());
+            List<String> groupSources = sources.subList(from, to);
+            String intermediate = this.targetName + "_compose_" + depth + "_" + group;
+            intermediates.add(intermediate);
+            results.add(composeAsync(groupSources, intermediate, true));
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .handleAsync((done, error) -> {
+                    if (error != null) {
+                        this.cleaner.deleteLater(this.bucketName, intermediates);
+                        throw new CompletionException(
+                                "Error composing " + this.targetName + " at depth " + depth, error);
+                    }
+                    return intermediates;
+                }, this.executor);
+    }
+
+    private CompletableFuture<Blob> composeAsync(List<String> sources, String target, boolean intermediate) {
+        return this.retryPolicy.retryAsync(() -> compose(sources, target, intermediate), ComposeTree::isRetryable,
+                (failedAttempts, e) -> System.err.println(target + ": Compose failed, retrying: " + e), this.executor);
+    }
+
+    /**
+     * As for any request, except that a source not found stays not found.
+     */
+    private static boolean isRetryable(Throwable e) {
+        return SimpleUpload.isRetryable(e) && !(e instanceof StorageException && ((StorageException) e).getCode() == 404);
+    }
+
+    private Blob compose(List<String> sources, String target, boolean intermediate) {
+        ComposeRequest.Builder request = ComposeRequest.newBuilder();
+        BlobInfo.Builder targetInfo = BlobInfo.newBuilder(BlobId.of(this.bucketName, target));
+        if (intermediate) {
+            targetInfo.setMetadata(Collections.singletonMap(Constants.SLICE_METADATA_KEY, this.targetName));
+        } else if (this.contentEncoding != null) {
+            targetInfo.setContentEncoding(this.contentEncoding);
+        }
+        request.setTarget(targetInfo.build());
+        request.addSource(sources);
+        long start = System.nanoTime();
+        Blob blob = this.storage.compose(request.build());
+        this.metrics.histogram("compose").recordSince(start);
+        return blob;
+    }
+
+    // Sources at depth 0 are the caller's; deeper ones are ours to remove.
+    private void deleteIntermediates(List<String> level, int depth) {
+        if (depth > 0) {
+            this.cleaner.deleteLater(this.bucketName, level);
+        }
+    }
+}
@@ -16,29 +16,44 @@
 
 package com.google.solutions.gcsuploader.uploaders;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.LinkedList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
-import com.google.cloud.storage.Storage.ComposeRequest;
-import com.google.common.io.ByteStreams;
 
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.BlockCompressor;
+import com.google.solutions.gcsuploader.CRC32CMath;
 import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.WorkScheduler;
+import com.google.solutions.gcsuploader.journal.FileJournal;
+import com.google.solutions.gcsuploader.journal.SliceCheckpoint;
+import com.google.solutions.gcsuploader.journal.UploadJournal;
+import com.google.solutions.gcsuploader.metrics.Metrics;
 
 /**
  * CompositeUpload
@@ -50,22 +65,46 @@ public class CompositeUpload implements Uploader {
     public Boolean success = false;
     public BlobInfo blobInfo = null;
     public String crc32c = null;
-    private ThreadPoolExecutor executor = null;
-    private static Storage storage = null;
+    public String computedCrc32c = null;
+    private UploadContext context = null;
+    // set on the first slice that fails for good, so the others stop early
+    private final AtomicBoolean aborted = new AtomicBoolean();
+    private Storage storage = null;
 
-    static {
-        storage = StorageOptions.getDefaultInstance().getService();
-    }
-
-    public CompositeUpload(String bucketName, String fileName, ThreadPoolExecutor executor) {
+    public CompositeUpload(String bucketName, String fileName, UploadContext context) {
         this.bucketName = bucketName;
         this.fileName = fileName;
-        this.executor = executor;
+        this.context = context;
+        this.storage = context.getStorage();
+    }
+
+    /**
+     * Decides how many slices to upload a file in. Enough streams are used to fill
+     * the available bandwidth, and big files are split further so no slice is
+     * larger than MAX_SLICE_BYTES, but no slice is smaller than MIN_SLICE_BYTES.
+     */
+    public static int sliceCount(long fileBytes, long bandwidth) {
+        return sliceCount(fileBytes, bandwidth, Constants.STREAM_BYTES_PER_SECOND);
+    }
+
+    /**
+     * As sliceCount(fileBytes, bandwidth), given what one stream carries.
+     */
+    public static int sliceCount(long fileBytes, long bandwidth, long streamBytesPerSecond) {
+        long byBandwidth = (bandwidth + streamBytesPerSecond - 1) / streamBytesPerSecond;
+        long bySize = (fileBytes + Constants.MAX_SLICE_BYTES - 1) / Constants.MAX_SLICE_BYTES;
+        long count = Math.min(Math.max(byBandwidth, bySize), fileBytes / Constants.MIN_SLICE_BYTES);
+        return (int) Math.max(1, Math.min(Constants.MAX_SLICES, count));
     }
 
-    private BlobInfo createBlobInfo(String key) {
+    /**
+     * Slices are tagged with the file they belong to, so that the sweeper can tell
+     * leftovers of an interrupted upload from objects that only share the name.
+     */
+    private BlobInfo createSliceInfo(String key) {
         BlobId blobId = BlobId.of(this.bucketName, key);
         BlobInfo.Builder builder = BlobInfo.newBuilder(blobId);
+        builder.setMetadata(Collections.singletonMap(Constants.SLICE_METADATA_KEY, this.fileName));
         return builder.build();
     }
 
@@ -73,107 +112,472 @@ public class CompositeUpload implements Uploader {
         return this.crc32c;
     }
 
+    public String getComputedCrc32c() {
+        return this.computedCrc32c;
+    }
+
     private void print(String message) {
         System.out.println(this.fileName + ": " + message);
     }
 
-    public void run() {
-        File inputFile = new File(this.fileName);
-
-        // first decide how many slices to upload, maxing out at 8
-        long minimumSliceBytes = Constants.SLICED_THRESHOLD;
-        int sliceCount = (int) Math.min(Constants.MAX_SLICES, Math.ceil(inputFile.length() / minimumSliceBytes));
-        int sliceBytes = (int) inputFile.length() / sliceCount;
-        LinkedList<BlobInfo> slices = new LinkedList<BlobInfo>();
-        int idx = 0;
-        Path inputPath = FileSystems.getDefault().getPath(inputFile.getPath());
+    /**
+     * Slices the file, uploads the slices in parallel, and composes them once the
+     * last one lands. Each step is a dependent stage, so nothing waits on a slice.
+     */
+    public CompletableFuture<Void> start() {
+        Executor io = this.context.getIoExecutor();
+        return CompletableFuture.supplyAsync(this::plan, io).thenCompose(plan -> uploadSlices(plan)
+                .thenCompose(fileCrc32c -> compose(plan, fileCrc32c))
+                .whenComplete((done, error) -> plan.close()));
+    }
 
-        // save results
-        LinkedList<Future<?>> results = new LinkedList<Future<?>>();
+    /**
+     * Opens the file and lays out its slices, resuming an earlier layout from the
+     * journal if there is one.
+     */
+    private Plan plan() {
+        Path inputPath = FileSystems.getDefault().getPath(this.fileName);
+        FileChannel input = null;
+        try {
+            // all slices share one channel, reading with positional reads
+            input = FileChannel.open(inputPath, StandardOpenOption.READ);
+            long fileBytes = input.size();
+            long lastModified = Files.getLastModifiedTime(inputPath).toMillis();
 
-        print("Slicing for composite upload.");
-        while (idx < sliceCount) {
-            // create and store the chunk for later composition
-            BlobInfo chunkBlob = createBlobInfo(inputFile.toString() + "_chunk_" + idx);
-            slices.add(chunkBlob);
+            // first decide how many slices to upload, unless resuming an earlier run
+            // compressed slices do not line up with offsets in the file, so they are
+            // not checkpointed
+            UploadJournal journal = this.context.getCompressor() == null ? this.context.getJournal() : null;
+            FileJournal fileJournal = journal == null ? null : journal.forFile(this.bucketName, this.fileName);
+            int sliceCount = fileJournal == null ? 0 : fileJournal.resumableSlices(fileBytes, lastModified);
+            boolean resuming = sliceCount > 0;
+            if (resuming) {
+                print("Resuming from journal.");
+            } else {
+                sliceCount = this.context.getSlices() > 0
+                        ? (int) Math.min(this.context.getSlices(), Math.min(Constants.MAX_SLICES, fileBytes))
+                        : sliceCount(fileBytes, this.context.getBandwidth(),
+                                this.context.getStreamBytesPerSecond());
+                if (fileJournal != null) {
+                    fileJournal.saveLayout(fileBytes, lastModified, sliceCount);
+                }
+            }
 
-            int start = idx * sliceBytes;
-            // limit to chunk end, unless final slice
-            int limit = -1;
-            if (idx < sliceCount - 1) {
-                limit = sliceBytes;
+            // each slice runs to where the next starts; slices split off in an earlier
+            // run start inside the one they were split from, which ends there
+            TreeMap<Long, Integer> starts = new TreeMap<Long, Integer>();
+            long sliceBytes = fileBytes / sliceCount;
+            for (int idx = 0; idx < sliceCount; idx++) {
+                starts.put(idx * sliceBytes, idx);
+            }
+            if (resuming) {
+                for (Map.Entry<Integer, Long> split : fileJournal.loadSplits().entrySet()) {
+                    starts.put(split.getValue(), split.getKey());
+                }
             }
+            print("Slicing for composite upload into " + starts.size() + " slices.");
+            Plan plan = new Plan(input, this.context.getReadAhead().deviceOf(inputPath), fileJournal);
+            for (Map.Entry<Long, Integer> slice : starts.entrySet()) {
+                Long next = starts.higherKey(slice.getKey());
+                plan.add(slice.getValue(), slice.getKey(), next != null ? next : fileBytes);
+            }
+            return plan;
+        } catch (IOException e) {
+            closeQuietly(input);
+            throw new CompletionException(new IOException("Error while reading " + this.fileName, e));
+        }
+    }
 
-            // submit async slice upload
-            AsyncBlobUpload uploader = new AsyncBlobUpload(inputPath, chunkBlob, start, limit);
-            results.add(executor.submit(uploader));
-            idx++;
+    /**
+     * Uploads every slice, each retrying on its own, and returns the whole-file
+     * CRC32C combined from the slice checksums. Slices split off while running
+     * are uploaded and combined along with the rest.
+     */
+    private CompletableFuture<Integer> uploadSlices(Plan plan) {
+        Executor io = this.context.getIoExecutor();
+        for (AsyncBlobUpload slice : plan.slices) {
+            submit(plan, slice);
         }
 
         print("Waiting for slices to complete.");
-        for (Future<?> result : results) {
-            try {
-                result.get();
-            } catch (InterruptedException | ExecutionException e) {
-                System.err.println("Error writing slice of " + this.fileName);
-                e.printStackTrace();
+        return allSlices(plan).handleAsync((done, error) -> {
+            if (error != null) {
+                print("Slice failed, aborting upload.");
+                abort(plan);
+                throw new CompletionException(
+                        new IOException("Upload of " + this.fileName + " aborted", RetryPolicy.unwrap(error)));
             }
-        }
+            // fold each slice checksum into the whole-file checksum, in order
+            List<AsyncBlobUpload> slices = plan.inOrder();
+            int fileCrc32c = slices.get(0).crc32c;
+            for (int idx = 1; idx < slices.size(); idx++) {
+                fileCrc32c = CRC32CMath.combine(fileCrc32c, slices.get(idx).crc32c, slices.get(idx).sentBytes);
+            }
+            return fileCrc32c;
+        }, io);
+    }
+
+    /**
+     * Starts a slice on the I/O pool, ranked by its size, retrying on its own.
+     */
+    private void submit(Plan plan, AsyncBlobUpload slice) {
+        WorkScheduler io = this.context.getIoExecutor();
+        CompletableFuture<Integer> result = this.context.getRetryPolicy().retryAsync(slice,
+                SimpleUpload::isRetryable,
+                (failedAttempts, e) -> {
+                    System.err.println(this.fileName + ": Slice " + slice.chunkBlob.getName() + " failed attempt "
+                            + failedAttempts + ", retrying: " + e);
+                    slice.forgetCheckpoint();
+                }, io.ranked(slice.range.getLength()));
+        // slices retry on their own, so a failure here is final
+        result.whenComplete((sliceCrc32c, error) -> {
+            if (error != null) {
+                this.aborted.set(true);
+            }
+        });
+        plan.results.add(result);
+    }
 
+    /**
+     * Completes once every slice has, failed or not. A slice is split off before
+     * the one it came from can finish, so once every slice seen so far is done,
+     * any split off them are already listed.
+     */
+    private CompletableFuture<Void> allSlices(Plan plan) {
+        List<CompletableFuture<Integer>> seen = new ArrayList<CompletableFuture<Integer>>(plan.results);
+        return CompletableFuture.allOf(seen.toArray(new CompletableFuture<?>[0]))
+                .handle((done, error) -> error)
+                .thenCompose(error -> {
+                    if (plan.results.size() > seen.size()) {
+                        return allSlices(plan);
+                    }
+                    return error == null ? CompletableFuture.<Void>completedFuture(null)
+                            : CompletableFuture.<Void>failedFuture(error);
+                });
+    }
+
+    /**
+     * Composes the slices into the file's object. The object's checksum comes back
+     * in the compose response, and the slices are deleted in the background once
+     * the upload is done, so neither costs the upload a round trip. If compose
+     * fails, the slices and journal are kept so that a rerun only composes.
+     */
+    private CompletableFuture<Void> compose(Plan plan, int fileCrc32c) {
         print("Composing.");
-        ComposeRequest.Builder finalCompose = ComposeRequest.newBuilder();
         // final target is a blob the same as the filename passed in
-        finalCompose.setTarget(createBlobInfo(this.fileName));
-        for (BlobInfo slice : slices) {
-            finalCompose.addSource(slice.getName());
+        List<String> sliceNames = new ArrayList<String>();
+        for (AsyncBlobUpload slice : plan.inOrder()) {
+            sliceNames.add(slice.chunkBlob.getName());
+        }
+        ComposeTree tree = new ComposeTree(this.bucketName, this.fileName, this.context);
+        if (this.context.getCompressor() != null) {
+            tree.setContentEncoding(BlockCompressor.CONTENT_ENCODING);
         }
-        Blob finalBlob = storage.compose(finalCompose.build());
+        return tree.compose(sliceNames)
+                .whenComplete((finalBlob, error) -> {
+                    if (error == null) {
+                        deleteJournal(plan.journal);
+                        this.context.getCleaner().deleteLater(this.bucketName, sliceNames);
+                    } else if (plan.journal != null) {
+                        // the slices are done, so a rerun resumes straight to compose
+                        print("Compose failed, keeping slices and journal for a rerun.");
+                    } else {
+                        // nothing can resume them, so they are abandoned
+                        this.context.getCleaner().deleteLater(this.bucketName, sliceNames);
+                    }
+                })
+                .thenAccept(finalBlob -> {
+                    print("Composite upload complete.");
+                    this.blobInfo = finalBlob;
+                    this.crc32c = finalBlob.getCrc32c();
+                    this.computedCrc32c = CRC32CMath.encode(fileCrc32c);
+                    this.success = true;
+                });
+    }
 
-        print("Deleting slices.");
-        for (BlobInfo slice : slices) {
-            storage.delete(slice.getBlobId());
+    private void deleteJournal(FileJournal fileJournal) {
+        if (fileJournal == null) {
+            return;
+        }
+        try {
+            fileJournal.delete();
+        } catch (IOException e) {
+            print("Could not delete journal: " + e.getMessage());
         }
+    }
 
-        print("Composite upload complete.");
+    /**
+     * Removes whatever slices were written, once every slice has stopped.
+     */
+    private void abort(Plan plan) {
+        List<String> sliceNames = new ArrayList<String>();
+        for (AsyncBlobUpload slice : plan.slices) {
+            sliceNames.add(slice.chunkBlob.getName());
+        }
+        this.context.getCleaner().deleteLater(this.bucketName, sliceNames);
+        deleteJournal(plan.journal);
+    }
 
-        this.blobInfo = finalBlob;
-        this.crc32c = storage.get(this.blobInfo.getBlobId()).getCrc32c();
-        this.success = true;
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to read
+        }
     }
 
-    private static class AsyncBlobUpload implements Runnable {
+    /**
+     * The open file and its slices, which may grow in number as running slices
+     * are split.
+     */
+    private class Plan {
+        private final FileChannel input;
+        private final ReadAhead.Device device;
+        private final FileJournal journal;
+        private final List<AsyncBlobUpload> slices = new CopyOnWriteArrayList<AsyncBlobUpload>();
+        private final List<CompletableFuture<Integer>> results = new CopyOnWriteArrayList<CompletableFuture<Integer>>();
+        private final AtomicInteger nextIndex = new AtomicInteger();
+
+        Plan(FileChannel input, ReadAhead.Device device, FileJournal journal) {
+            this.input = input;
+            this.device = device;
+            this.journal = journal;
+        }
+
+        /**
+         * Lays out slice index over bytes start to end of the file.
+         */
+        AsyncBlobUpload add(int index, long start, long end) {
+            // create and store the chunk for later composition
+            BlobInfo chunkBlob = createSliceInfo(fileName + "_chunk_" + index);
+            AsyncBlobUpload slice = new AsyncBlobUpload(fileName, this.input, this.device, chunkBlob, new SliceRange(start, end),
+                    this.journal, index, aborted, this, context);
+            this.slices.add(slice);
+            this.nextIndex.accumulateAndGet(index + 1, Math::max);
+            return slice;
+        }
 
-        private final Path inputPath;
+        /**
+         * Splits off the second half of what a running slice has not yet read, as
+         * a slice of its own, and starts it. The split is journaled, and the new
+         * slice submitted, before the old one is cut short, so the old one cannot
+         * finish without its successor being listed.
+         */
+        boolean split(AsyncBlobUpload slice) {
+            if (aborted.get() || this.slices.size() >= Constants.MAX_SLICES) {
+                return false;
+            }
+            AsyncBlobUpload successor;
+            synchronized (slice.range) {
+                long at = slice.range.splitPoint(Constants.MIN_SPLIT_BYTES);
+                if (at < 0) {
+                    return false;
+                }
+                int index = this.nextIndex.getAndIncrement();
+                if (this.journal != null) {
+                    try {
+                        this.journal.saveSplit(index, at);
+                    } catch (IOException e) {
+                        print("Could not journal split, not splitting: " + e.getMessage());
+                        return false;
+                    }
+                }
+                successor = add(index, at, slice.range.getEnd());
+                submit(this, successor);
+                slice.range.cut(at);
+            }
+            context.getMetrics().counter("slices.split").increment();
+            print("Split " + slice.chunkBlob.getName() + " at byte " + successor.range.getStart() + ", the rest goes to "
+                    + successor.chunkBlob.getName() + ".");
+            return true;
+        }
+
+        /**
+         * The slices in file order, which is the order they are composed in.
+         */
+        List<AsyncBlobUpload> inOrder() {
+            List<AsyncBlobUpload> ordered = new ArrayList<AsyncBlobUpload>(this.slices);
+            ordered.sort(Comparator.comparingLong(slice -> slice.range.getStart()));
+            return ordered;
+        }
+
+        void close() {
+            closeQuietly(this.input);
+        }
+    }
+
+    private static class AsyncBlobUpload implements Callable<Integer>, WorkScheduler.Splittable {
+
+        private final String fileName;
+        private final FileChannel input;
+        private final ReadAhead.Device device;
         private final BlobInfo chunkBlob;
-        private final int start;
-        private final int limit;
+        private final SliceRange range;
+        private final FileJournal journal;
+        private final int index;
+        private final AtomicBoolean aborted;
+        private final Plan plan;
+        private final WorkScheduler scheduler;
+        private final BandwidthGovernor governor;
+        private final Storage storage;
+        private final int chunkSize;
+        private final Metrics metrics;
+        private final BlockCompressor compressor;
+        // bytes the slice's object holds, which differ from its range when compressed
+        private volatile long sentBytes;
+        private volatile int crc32c;
 
-        public AsyncBlobUpload(Path inputPath, BlobInfo chunkBlob, int start, int limit) {
-            this.inputPath = inputPath;
+        public AsyncBlobUpload(String fileName, FileChannel input, ReadAhead.Device device, BlobInfo chunkBlob,
+                SliceRange range, FileJournal journal, int index, AtomicBoolean aborted, Plan plan,
+                UploadContext context) {
+            this.fileName = fileName;
+            this.input = input;
+            this.device = device;
             this.chunkBlob = chunkBlob;
-            this.start = start;
-            this.limit = limit;
+            this.range = range;
+            this.journal = journal;
+            this.index = index;
+            this.aborted = aborted;
+            this.plan = plan;
+            this.scheduler = context.getIoExecutor();
+            this.governor = context.getGovernor();
+            this.storage = context.getStorage();
+            this.chunkSize = context.getChunkSize();
+            this.metrics = context.getMetrics();
+            this.compressor = context.getCompressor();
         }
 
+        /**
+         * Makes one attempt at the slice, or whatever the journal says is left of
+         * it, returning the CRC32C of the whole slice. Failed attempts are retried
+         * by the caller; within an attempt, the client library already retries
+         * individual chunks.
+         */
         @Override
-        public void run() {
-            System.out.println(inputPath.toString() + ": Uploading slice bytes " + this.start + "->"
-                    + (this.limit > -1 ? this.start + this.limit - 1 : "end") + " to " + chunkBlob.getName() + ".");
-            try (WriteChannel writer = storage.writer(chunkBlob);
-                    InputStream is = Files.newInputStream(inputPath);
-                    OutputStream os = Channels.newOutputStream(writer);) {
-                writer.setChunkSize(Constants.CHUNK_SIZE);
-                // skip to chunk start
-                ByteStreams.skipFully(is, this.start);
-                // limit to chunk end, unless -1
-                if (limit > -1) {
-                    ByteStreams.copy(ByteStreams.limit(is, limit), os);
-                } else {
-                    ByteStreams.copy(is, os);
+        public Integer call() throws IOException {
+            checkAborted();
+            SliceCheckpoint checkpoint = null;
+            if (this.journal != null) {
+                checkpoint = this.journal.loadSlice(this.index, this.storage.getOptions());
+            }
+            if (checkpoint != null && checkpoint.done) {
+                System.out.println(this.fileName + ": Slice " + chunkBlob.getName() + " already uploaded.");
+                this.sentBytes = checkpoint.offset;
+                this.crc32c = checkpoint.crc32c;
+                return checkpoint.crc32c;
+            }
+
+            // the writer buffers up to a chunk, or the whole slice if smaller
+            int reserved = this.governor.reserveBuffer(Math.min(this.range.getLength(), this.chunkSize));
+            long sliceStart = System.nanoTime();
+            try {
+                this.crc32c = upload(checkpoint);
+                this.metrics.recordSlice(this.chunkBlob.getName(), sliceStart);
+                return this.crc32c;
+            } finally {
+                this.governor.releaseBuffer(reserved);
+            }
+        }
+
+        private int upload(SliceCheckpoint checkpoint) throws IOException {
+            long start = this.range.getStart();
+            System.out.println(this.fileName + ": Uploading slice bytes " + start + "->"
+                    + (this.range.getEnd() - 1) + " to " + chunkBlob.getName() + ".");
+            long offset = 0;
+            int prefixCrc32c = 0;
+            WriteChannel writer;
+            if (checkpoint != null) {
+                System.out.println(this.fileName + ": Resuming slice " + chunkBlob.getName() + " at byte "
+                        + checkpoint.offset + ".");
+                offset = checkpoint.offset;
+                prefixCrc32c = checkpoint.crc32c;
+                writer = checkpoint.state.restore();
+            } else {
+                writer = this.storage.writer(chunkBlob);
+                writer.setChunkSize(this.chunkSize);
+            }
+
+            long resumedAt = offset;
+            int resumedCrc32c = prefixCrc32c;
+            long[] lastCheckpoint = { resumedAt };
+            SliceReader.Progress progress = (bytes, bytesCrc32c) -> {
+                checkAborted();
+                long sliceOffset = resumedAt + bytes;
+                if (this.journal != null && sliceOffset - lastCheckpoint[0] >= Constants.CHECKPOINT_BYTES) {
+                    this.journal.checkpoint(this.index, sliceOffset,
+                            CRC32CMath.combine(resumedCrc32c, bytesCrc32c, bytes), writer.capture());
+                    lastCheckpoint[0] = sliceOffset;
                 }
+            };
+
+            int crc32c;
+            // what is not yet read may be split off from here on
+            this.range.claim(start + offset, 0);
+            this.scheduler.running(this);
+            // closing the writer creates the slice, so it is left open if the copy
+            // fails, and a checkpointed session can still be resumed
+            TimedWriteChannel timed = new TimedWriteChannel(writer, this.chunkSize,
+                    this.metrics.histogram("chunk.write"));
+            try {
+                if (this.compressor != null) {
+                    // no journal, so always the whole slice
+                    CompressingChannel compressing = new CompressingChannel(timed, this.compressor, this.metrics);
+                    boolean copied = false;
+                    try {
+                        SliceReader.copy(this.input, this.device, this.range, start, compressing, this.governor, progress);
+                        copied = true;
+                    } finally {
+                        if (!copied) {
+                            compressing.abandon();
+                        }
+                    }
+                    compressing.close();
+                    this.sentBytes = compressing.getWritten();
+                    return compressing.getCrc32c();
+                }
+                int restCrc32c = SliceReader.copy(this.input, this.device, this.range, start + offset, timed, this.governor,
+                        progress);
+                timed.close();
+                // copying stopped at the end, so it can no longer move
+                long length = this.range.getLength();
+                crc32c = offset > 0 ? CRC32CMath.combine(prefixCrc32c, restCrc32c, length - offset) : restCrc32c;
+                this.sentBytes = length;
+            } finally {
+                this.scheduler.done(this);
+            }
+            if (this.journal != null) {
+                this.journal.complete(this.index, this.sentBytes, crc32c);
+            }
+            return crc32c;
+        }
+
+        @Override
+        public long remaining() {
+            return this.range.remaining();
+        }
+
+        @Override
+        public boolean split() {
+            return this.plan.split(this);
+        }
+
+        private void checkAborted() {
+            if (this.aborted.get()) {
+                throw new CancellationException("Upload of " + this.fileName + " aborted");
+            }
+        }
+
+        void forgetCheckpoint() {
+            if (this.journal == null) {
+                return;
+            }
+            try {
+                this.journal.clear(this.index);
             } catch (IOException e) {
-                e.printStackTrace();
-                throw new RuntimeException("Error while uploading slice " + chunkBlob.getName());
+                System.err.println(this.fileName + ": Could not clear checkpoint: " + e.getMessage());
             }
         }
     }
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import com.google.solutions.gcsuploader.BlockCompressor;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+
+/**
+ * CompressingChannel
+ *
+ * Sits between a reader and a writer, cutting what is written to it into blocks
+ * that are compressed in parallel by a BlockCompressor, and passing the gzip
+ * members on to the writer in order. The CRC32C and length it reports are of
+ * the compressed bytes, which are what GCS stores. Empty input still gives one
+ * empty member, so the object is a valid gzip stream.
+ *
+ * Closing it finishes the stream and closes the writer, which creates the
+ * object, so it is closed only once everything was written to it; after a
+ * failure it is abandoned instead, leaving the writer open.
+ */
+class CompressingChannel implements WritableByteChannel {
+
+    private final WritableByteChannel target;
+    private final BlockCompressor compressor;
+    private final Metrics metrics;
+    private final ArrayDeque<Block> pending = new ArrayDeque<Block>();
+    private final ArrayDeque<byte[]> spare = new ArrayDeque<byte[]>();
+    private final CRC32C checksum = new CRC32C();
+    private byte[] block = null;
+    private int filled = 0;
+    private boolean submitted = false;
+    private boolean open = true;
+    private long read = 0;
+    private long written = 0;
+
+    CompressingChannel(WritableByteChannel target, BlockCompressor compressor, Metrics metrics) {
+        this.target = target;
+        this.compressor = compressor;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int bytes = source.remaining();
+        while (source.hasRemaining()) {
+            if (this.block == null) {
+                this.block = this.spare.isEmpty() ? new byte[Constants.COMPRESS_BLOCK_SIZE] : this.spare.poll();
+            }
+            int length = Math.min(source.remaining(), this.block.length - this.filled);
+            source.get(this.block, this.filled, length);
+            this.filled += length;
+            if (this.filled == this.block.length) {
+                submit();
+            }
+        }
+        this.read += bytes;
+        return bytes;
+    }
+
+    /**
+     * Hands the current block to the compressor. While there is no room for it,
+     * finished members are passed on, which frees room held by this channel.
+     */
+    private void submit() throws IOException {
+        while (!this.compressor.tryReserve()) {
+            if (this.pending.isEmpty()) {
+                this.compressor.reserve();
+                break;
+            }
+            drainOne();
+        }
+        byte[] input = this.block != null ? this.block : new byte[0];
+        this.pending.add(new Block(input, this.compressor.submit(input, this.filled), System.nanoTime()));
+        this.block = null;
+        this.filled = 0;
+        this.submitted = true;
+    }
+
+    /**
+     * Waits for the oldest block and writes its member.
+     */
+    private void drainOne() throws IOException {
+        Block next = this.pending.poll();
+        byte[] member;
+        try {
+            member = next.member.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for compression");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        } finally {
+            this.compressor.release();
+        }
+        this.metrics.histogram("compress").recordSince(next.startNanos);
+        if (next.input.length == Constants.COMPRESS_BLOCK_SIZE) {
+            this.spare.add(next.input);
+        }
+        this.checksum.update(member, 0, member.length);
+        this.written += member.length;
+        ByteBuffer buffer = ByteBuffer.wrap(member);
+        while (buffer.hasRemaining()) {
+            this.target.write(buffer);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * Compresses what is left, writes every member, and closes the writer. If a
+     * member cannot be written, the channel is abandoned and the writer is left
+     * open, so no object is created from part of the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!this.open) {
+            return;
+        }
+        boolean finished = false;
+        try {
+            if (this.filled > 0 || !this.submitted) {
+                submit();
+            }
+            while (!this.pending.isEmpty()) {
+                drainOne();
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                abandon();
+            }
+        }
+        this.open = false;
+        this.metrics.counter("compress.bytes.in").add(this.read);
+        this.metrics.counter("compress.bytes.out").add(this.written);
+        this.target.close();
+    }
+
+    /**
+     * Stops without finishing the stream or closing the writer, after a failed
+     * write. Members not written are dropped, but their room is given back.
+     */
+    void abandon() {
+        this.open = false;
+        for (Block abandoned : this.pending) {
+            abandoned.member.cancel(false);
+            this.compressor.release();
+        }
+        this.pending.clear();
+    }
+
+    /**
+     * CRC32C of the compressed bytes written so far.
+     */
+    int getCrc32c() {
+        return (int) this.checksum.getValue();
+    }
+
+    /**
+     * Count of compressed bytes written so far.
+     */
+    long getWritten() {
+        return this.written;
+    }
+
+    private static class Block {
+        private final byte[] input;
+        private final Future<byte[]> member;
+        private final long startNanos;
+
+        Block(byte[] input, Future<byte[]> member, long startNanos) {
+            this.input = input;
+            this.member = member;
+            this.startNanos = startNanos;
+        }
+    }
+}
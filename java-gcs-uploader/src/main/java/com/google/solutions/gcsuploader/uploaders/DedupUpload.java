@@ -0,0 +1,337 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.WorkScheduler;
+import com.google.solutions.gcsuploader.dedup.ChunkIndex;
+import com.google.solutions.gcsuploader.dedup.ContentChunker;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+
+/**
+ * DedupUpload
+ *
+ * Uploads a file as content-defined chunks, each kept in the bucket as an object
+ * named by its SHA-256, and composes the file's object from them. Chunks the
+ * chunk index lists, or found in the bucket with the size and CRC32C expected,
+ * are not sent, so a file that differs a little from one uploaded before sends
+ * only the chunks around the differences. Chunks are sent as the scan finds
+ * them, so sending overlaps the scan; each is read again to send it, which the
+ * page cache usually serves.
+ *
+ * Chunks are shared between files and kept after composing, and so are never
+ * deleted here. Nor is an upload journaled: after a failure, chunks already sent
+ * are found in the bucket and not sent again.
+ */
+public class DedupUpload implements Uploader {
+
+    public String bucketName = null;
+    public String fileName = null;
+    public Boolean success = false;
+    public BlobInfo blobInfo = null;
+    public String crc32c = null;
+    public String computedCrc32c = null;
+    private UploadContext context = null;
+    private ChunkIndex index = null;
+    private Storage storage = null;
+    private long bytes = 0;
+
+    public DedupUpload(String bucketName, String fileName, long bytes, UploadContext context) {
+        this.bucketName = bucketName;
+        this.fileName = fileName;
+        this.bytes = bytes;
+        this.context = context;
+        this.index = context.getChunkIndex();
+        this.storage = context.getStorage();
+    }
+
+    public String getCrc32c() {
+        return this.crc32c;
+    }
+
+    public String getComputedCrc32c() {
+        return this.computedCrc32c;
+    }
+
+    private void print(String message) {
+        System.out.println(this.fileName + ": " + message);
+    }
+
+    /**
+     * Scans and stores the file's chunks, then composes them. If a chunk the index
+     * lists has gone from the bucket, the compose fails; the index is then not
+     * trusted for this file, and every chunk is looked up in the bucket again.
+     */
+    public CompletableFuture<Void> start() {
+        return attempt(false).handle((done, error) -> error).thenCompose(error -> {
+            if (error == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (!isMissingSource(error)) {
+                return CompletableFuture.<Void>failedFuture(error);
+            }
+            print("A chunk listed in the chunk index is gone from the bucket, checking every chunk.");
+            return attempt(true);
+        });
+    }
+
+    private CompletableFuture<Void> attempt(boolean lookUpAll) {
+        WorkScheduler io = this.context.getIoExecutor();
+        return CompletableFuture.supplyAsync(() -> scan(lookUpAll), io.ranked(this.bytes))
+                .thenCompose(scan -> scan.stored()
+                        .thenCompose(stored -> compose(scan))
+                        .whenComplete((done, error) -> scan.close()));
+    }
+
+    /**
+     * Cuts the file into chunks in one pass, starting each chunk's store as soon
+     * as its end is found.
+     */
+    private Scan scan(boolean lookUpAll) {
+        FileChannel input = null;
+        try {
+            Path inputPath = FileSystems.getDefault().getPath(this.fileName);
+            input = FileChannel.open(inputPath, StandardOpenOption.READ);
+            long fileBytes = input.size();
+            ContentChunker chunker = new ContentChunker(ContentChunker.averageFor(fileBytes));
+            Scan scan = new Scan(input, this.context.getReadAhead().deviceOf(inputPath), lookUpAll);
+            try {
+                chunker.scan(input, fileBytes, Constants.MAX_SLICES, scan::add);
+            } catch (IOException e) {
+                // the chunks started must stop reading before the file is closed
+                scan.aborted.set(true);
+                scan.stored().whenComplete((done, error) -> scan.close());
+                throw new CompletionException(new IOException("Error while reading " + this.fileName, e));
+            }
+            print("Cut into " + scan.chunks.size() + " chunks averaging " + chunker.getAverageBytes()
+                    + " bytes; " + (scan.chunks.size() - scan.lookingUp) + " known, " + scan.lookingUp
+                    + " to look up or send.");
+            return scan;
+        } catch (IOException e) {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException closeError) {
+                    // nothing left to read
+                }
+            }
+            throw new CompletionException(new IOException("Error while reading " + this.fileName, e));
+        }
+    }
+
+    /**
+     * Composes the chunks, in order, into the file's object. Once its checksum
+     * matches the one combined from the chunks, the chunks sent are known to hold
+     * what they are named for, and are added to the index.
+     */
+    private CompletableFuture<Void> compose(Scan scan) {
+        List<String> sources = new ArrayList<String>(scan.chunks.size());
+        for (Chunk chunk : scan.chunks) {
+            sources.add(this.index.objectName(chunk.sha256));
+        }
+        int fileCrc32c = scan.chunks.get(0).crc32c;
+        for (int idx = 1; idx < scan.chunks.size(); idx++) {
+            Chunk chunk = scan.chunks.get(idx);
+            fileCrc32c = CRC32CMath.combine(fileCrc32c, chunk.crc32c, chunk.length);
+        }
+        int expected = fileCrc32c;
+        print("Composing from " + sources.size() + " chunks.");
+        return new ComposeTree(this.bucketName, this.fileName, this.context).compose(sources)
+                .thenAccept(finalBlob -> {
+                    this.blobInfo = finalBlob;
+                    this.crc32c = finalBlob.getCrc32c();
+                    this.computedCrc32c = CRC32CMath.encode(expected);
+                    if (this.computedCrc32c.equals(this.crc32c)) {
+                        Metrics metrics = this.context.getMetrics();
+                        metrics.counter("dedup.chunks").add(scan.chunks.size());
+                        metrics.counter("dedup.chunks.sent").add(scan.sentChunks.get());
+                        metrics.counter("dedup.bytes.sent").add(scan.sentBytes.get());
+                        metrics.counter("dedup.bytes.skipped").add(this.bytes - scan.sentBytes.get());
+                        for (Chunk chunk : scan.chunks) {
+                            this.index.put(chunk.sha256, chunk.length, chunk.crc32c);
+                        }
+                    } else {
+                        // one of the chunks does not hold what it is named for, so
+                        // look them all up again next time
+                        for (Chunk chunk : scan.chunks) {
+                            this.index.remove(chunk.sha256);
+                        }
+                    }
+                    print("Deduplicated upload complete.");
+                    this.success = true;
+                });
+    }
+
+    private static boolean isMissingSource(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof StorageException && ((StorageException) cause).getCode() == 404) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A chunk of the file, by where it is and what it holds.
+     */
+    private static class Chunk {
+        private final long start;
+        private final long length;
+        private final String sha256;
+        private final int crc32c;
+
+        Chunk(long start, long length, String sha256, int crc32c) {
+            this.start = start;
+            this.length = length;
+            this.sha256 = sha256;
+            this.crc32c = crc32c;
+        }
+    }
+
+    /**
+     * The open file, its chunks in order, and the store of each distinct chunk.
+     */
+    private class Scan {
+        private final FileChannel input;
+        private final ReadAhead.Device device;
+        private final boolean lookUpAll;
+        private final List<Chunk> chunks = new ArrayList<Chunk>();
+        // only touched on the scanning thread, one store for each distinct chunk
+        private final Map<String, CompletableFuture<Boolean>> stores = new HashMap<String, CompletableFuture<Boolean>>();
+        // set on the first chunk that fails for good, so the others stop early
+        private final AtomicBoolean aborted = new AtomicBoolean();
+        private final AtomicInteger sentChunks = new AtomicInteger();
+        private final AtomicLong sentBytes = new AtomicLong();
+        private int lookingUp = 0;
+
+        Scan(FileChannel input, ReadAhead.Device device, boolean lookUpAll) {
+            this.input = input;
+            this.device = device;
+            this.lookUpAll = lookUpAll;
+        }
+
+        void add(long start, long length, String sha256, int crc32c) {
+            Chunk chunk = new Chunk(start, length, sha256, crc32c);
+            this.chunks.add(chunk);
+            if (this.stores.containsKey(sha256)) {
+                // the same bytes earlier in the file
+                return;
+            }
+            ChunkIndex.Record known = this.lookUpAll ? null : index.get(sha256);
+            if (known != null && known.matches(length, crc32c)) {
+                this.stores.put(sha256, CompletableFuture.completedFuture(false));
+                return;
+            }
+            this.lookingUp++;
+            CompletableFuture<Boolean> stored = context.getRetryPolicy().retryAsync(() -> store(chunk),
+                    SimpleUpload::isRetryable,
+                    (failedAttempts, e) -> System.err.println(fileName + ": Chunk " + sha256 + " failed attempt "
+                            + failedAttempts + ", retrying: " + e),
+                    context.getIoExecutor().ranked(length));
+            stored.whenComplete((sent, error) -> {
+                if (error != null) {
+                    this.aborted.set(true);
+                }
+            });
+            this.stores.put(sha256, stored);
+        }
+
+        /**
+         * Looks the chunk up in the bucket, and sends it if it is not there,
+         * returning whether it was sent.
+         */
+        private boolean store(Chunk chunk) throws IOException {
+            if (this.aborted.get()) {
+                throw new CancellationException("Upload of " + fileName + " aborted");
+            }
+            Metrics metrics = context.getMetrics();
+            BlobId blobId = BlobId.of(bucketName, index.objectName(chunk.sha256));
+            long getStart = System.nanoTime();
+            Blob existing = storage.get(blobId);
+            metrics.histogram("get").recordSince(getStart);
+            if (existing != null && existing.getSize() == chunk.length
+                    && CRC32CMath.decode(existing.getCrc32c()) == chunk.crc32c) {
+                metrics.counter("dedup.chunks.found").increment();
+                index.put(chunk.sha256, chunk.length, chunk.crc32c);
+                return false;
+            }
+
+            BandwidthGovernor governor = context.getGovernor();
+            int chunkSize = context.getChunkSize();
+            int reserved = governor.reserveBuffer(Math.min(chunk.length, chunkSize));
+            try {
+                WriteChannel writer = storage.writer(BlobInfo.newBuilder(blobId).build());
+                writer.setChunkSize(chunkSize);
+                TimedWriteChannel timed = new TimedWriteChannel(writer, chunkSize, metrics.histogram("chunk.write"));
+                int sentCrc32c = SliceReader.copy(this.input, this.device, chunk.start, chunk.length, timed, governor);
+                if (sentCrc32c != chunk.crc32c) {
+                    // left unclosed, the object is never created under a name its
+                    // bytes do not match
+                    throw new IllegalStateException(fileName + " changed while uploading, at byte " + chunk.start);
+                }
+                timed.close();
+            } finally {
+                governor.releaseBuffer(reserved);
+            }
+            this.sentChunks.incrementAndGet();
+            this.sentBytes.addAndGet(chunk.length);
+            return true;
+        }
+
+        /**
+         * Completes once every chunk is stored, or fails once one has failed for
+         * good and the rest have stopped.
+         */
+        CompletableFuture<Void> stored() {
+            return CompletableFuture.allOf(this.stores.values().toArray(new CompletableFuture<?>[0]));
+        }
+
+        void close() {
+            try {
+                this.input.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageBatch;
+import com.google.cloud.storage.StorageBatchResult;
+import com.google.cloud.storage.StorageException;
+
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+
+/**
+ * ObjectCleaner
+ *
+ * Deletes objects that uploads no longer need, such as slices once composed,
+ * in batch requests of up to DELETE_BATCH_SIZE deletes. Deletes can be left to
+ * run in the background, off the upload's critical path; await waits for those
+ * still going, before the process exits. An object already gone counts as
+ * deleted. Failed deletes are retried, and only those, under the run's policy.
+ */
+public class ObjectCleaner {
+
+    private final Storage storage;
+    private final Executor executor;
+    private final RetryPolicy retryPolicy;
+    private final Metrics metrics;
+    private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public ObjectCleaner(Storage storage, Executor executor, RetryPolicy retryPolicy, Metrics metrics) {
+        this.storage = storage;
+        this.executor = executor;
+        this.retryPolicy = retryPolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Deletes the objects in the background. Failures are reported and counted,
+     * not thrown.
+     */
+    public void deleteLater(String bucketName, List<String> objectNames) {
+        CompletableFuture<Void> deletion = delete(bucketName, objectNames);
+        this.pending.add(deletion);
+        deletion.whenComplete((done, error) -> {
+            if (error != null) {
+                print("Could not delete objects in " + bucketName + ": " + RetryPolicy.unwrap(error).getMessage());
+            }
+            this.pending.remove(deletion);
+        });
+    }
+
+    /**
+     * Deletes the objects, returning a future that completes when all are gone,
+     * or fails when the retries for those left run out.
+     */
+    public CompletableFuture<Void> delete(String bucketName, List<String> objectNames) {
+        // each attempt leaves in here only the objects it could not delete
+        List<BlobId> remaining = new ArrayList<BlobId>(objectNames.size());
+        for (String objectName : objectNames) {
+            remaining.add(BlobId.of(bucketName, objectName));
+        }
+        return this.retryPolicy.<Void>retryAsync(() -> {
+            deleteBatches(remaining);
+            return null;
+        }, SimpleUpload::isRetryable, null, this.executor).whenComplete((done, error) -> {
+            if (error != null) {
+                this.failed.add(remaining.size());
+            }
+        });
+    }
+
+    private void deleteBatches(List<BlobId> remaining) {
+        List<BlobId> failures = new ArrayList<BlobId>();
+        StorageException lastError = null;
+        for (int from = 0; from < remaining.size(); from += Constants.DELETE_BATCH_SIZE) {
+            List<BlobId> group = remaining.subList(from, Math.min(from + Constants.DELETE_BATCH_SIZE, remaining.size()));
+            StorageBatch batch = this.storage.batch();
+            List<StorageBatchResult<Boolean>> results = new ArrayList<StorageBatchResult<Boolean>>(group.size());
+            for (BlobId blobId : group) {
+                results.add(batch.delete(blobId));
+            }
+            long start = System.nanoTime();
+            try {
+                batch.submit();
+            } catch (StorageException e) {
+                failures.addAll(group);
+                lastError = e;
+                continue;
+            }
+            this.metrics.histogram("delete.batch").recordSince(start);
+            for (int i = 0; i < group.size(); i++) {
+                try {
+                    results.get(i).get();
+                    this.deleted.increment();
+                } catch (StorageException e) {
+                    if (e.getCode() == 404) {
+                        this.deleted.increment();
+                    } else {
+                        failures.add(group.get(i));
+                        lastError = e;
+                    }
+                }
+            }
+        }
+        remaining.clear();
+        remaining.addAll(failures);
+        if (lastError != null) {
+            throw lastError;
+        }
+    }
+
+    /**
+     * Waits for every background delete to finish.
+     */
+    public void await() {
+        while (!this.pending.isEmpty()) {
+            CompletableFuture.allOf(this.pending.toArray(new CompletableFuture<?>[0])).exceptionally(error -> null)
+                    .join();
+        }
+    }
+
+    public long getDeleted() {
+        return this.deleted.sum();
+    }
+
+    public long getFailed() {
+        return this.failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return getDeleted() + " objects deleted, " + getFailed() + " could not be";
+    }
+
+    private static void print(String message) {
+        System.err.println("cleaner: " + message);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage.BlobListOption;
+
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.journal.UploadJournal;
+
+/**
+ * OrphanSweeper
+ *
+ * Finds slices and intermediate compose objects left in a bucket by composite
+ * uploads that never finished, such as runs that crashed, and deletes them. They
+ * are known by the metadata tag naming the file they belong to. A leftover is
+ * kept while it is younger than the minimum age, since a run elsewhere may still
+ * be composing it, and while the journal holds a checkpoint for its file, since
+ * resuming that upload will compose it.
+ */
+public class OrphanSweeper {
+
+    private final String bucketName;
+    private final UploadContext context;
+    private long found = 0;
+    private long kept = 0;
+
+    public OrphanSweeper(String bucketName, UploadContext context) {
+        this.bucketName = bucketName;
+        this.context = context;
+    }
+
+    /**
+     * Deletes the leftovers under prefix (all of the bucket if null) that are at
+     * least minAgeMillis old, and returns how many were deleted.
+     */
+    public long sweep(String prefix, long minAgeMillis) {
+        ObjectCleaner cleaner = this.context.getCleaner();
+        UploadJournal journal = this.context.getJournal();
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+        long deletedBefore = cleaner.getDeleted();
+        List<String> batch = new ArrayList<String>(Constants.DELETE_BATCH_SIZE);
+
+        Page<Blob> page = prefix == null ? this.context.getStorage().list(this.bucketName)
+                : this.context.getStorage().list(this.bucketName, BlobListOption.prefix(prefix));
+        for (Blob blob : page.iterateAll()) {
+            Map<String, String> metadata = blob.getMetadata();
+            String sliceOf = metadata == null ? null : metadata.get(Constants.SLICE_METADATA_KEY);
+            if (sliceOf == null) {
+                continue;
+            }
+            this.found++;
+            Long created = blob.getCreateTime();
+            if ((created != null && created > cutoff)
+                    || (journal != null && journal.forFile(this.bucketName, sliceOf).exists())) {
+                this.kept++;
+                continue;
+            }
+            batch.add(blob.getName());
+            if (batch.size() == Constants.DELETE_BATCH_SIZE) {
+                cleaner.delete(this.bucketName, batch).join();
+                batch = new ArrayList<String>(Constants.DELETE_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            cleaner.delete(this.bucketName, batch).join();
+        }
+        return cleaner.getDeleted() - deletedBefore;
+    }
+
+    /**
+     * Leftovers seen by the last sweep, deleted or not.
+     */
+    public long getFound() {
+        return this.found;
+    }
+
+    /**
+     * Leftovers the last sweep left alone, as too recent or resumable.
+     */
+    public long getKept() {
+        return this.kept;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.UploadContext;
+
+/**
+ * RangeUpload
+ *
+ * Uploads a range of a file to an object of its own, retrying as a whole, and
+ * returns the CRC32C of the bytes sent. This is a slice of a composite upload
+ * taken out of its file's upload, for the workers of a distributed one, which
+ * upload slices planned elsewhere and leave composing them to the coordinator.
+ * A slice is tagged as part of its file, as CompositeUpload tags its own, so the
+ * sweeper finds it if the upload never finishes. There is no journal: a range
+ * that is not finished is sent again from the start.
+ */
+public class RangeUpload {
+
+    private final String fileName;
+    private final BlobInfo target;
+    private final long start;
+    private final long end;
+    private final UploadContext context;
+
+    /**
+     * @param objectName where bytes start to end of the file go.
+     * @param slice      whether the object is a slice of the file's object, rather
+     *                   than the whole of it.
+     */
+    public RangeUpload(String bucketName, String fileName, String objectName, long start, long end, boolean slice,
+            UploadContext context) {
+        this.fileName = fileName;
+        BlobInfo.Builder target = BlobInfo.newBuilder(BlobId.of(bucketName, objectName));
+        if (slice) {
+            target.setMetadata(Collections.singletonMap(Constants.SLICE_METADATA_KEY, fileName));
+        }
+        this.target = target.build();
+        this.start = start;
+        this.end = end;
+        this.context = context;
+    }
+
+    /**
+     * Starts the upload on the I/O pool, ranked by its size, returning the CRC32C
+     * of the range once its object is written.
+     */
+    public CompletableFuture<Integer> start() {
+        return this.context.getRetryPolicy().retryAsync(this::upload, SimpleUpload::isRetryable,
+                (failedAttempts, e) -> System.err.println(this.fileName + ": Range " + this.target.getName()
+                        + " failed attempt " + failedAttempts + ", retrying: " + e),
+                this.context.getIoExecutor().ranked(this.end - this.start));
+    }
+
+    private int upload() throws IOException {
+        Path inputPath = FileSystems.getDefault().getPath(this.fileName);
+        BandwidthGovernor governor = this.context.getGovernor();
+        int chunkSize = this.context.getChunkSize();
+        // the writer buffers up to a chunk, or the whole range if smaller
+        int reserved = governor.reserveBuffer(Math.min(this.end - this.start, chunkSize));
+        long rangeStart = System.nanoTime();
+        try (FileChannel input = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+            System.out.println(this.fileName + ": Uploading bytes " + this.start + "->" + (this.end - 1) + " to "
+                    + this.target.getName() + ".");
+            WriteChannel writer = this.context.getStorage().writer(this.target);
+            writer.setChunkSize(chunkSize);
+            int crc32c;
+            // closing the writer creates the object, so it is left open if the copy fails
+            TimedWriteChannel timed = new TimedWriteChannel(writer, chunkSize,
+                    this.context.getMetrics().histogram("chunk.write"));
+            crc32c = SliceReader.copy(input, this.context.getReadAhead().deviceOf(inputPath), this.start,
+                    this.end - this.start, timed, governor);
+            timed.close();
+            this.context.getMetrics().recordSlice(this.target.getName(), rangeStart);
+            return crc32c;
+        } finally {
+            governor.releaseBuffer(reserved);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.solutions.gcsuploader.BufferPool;
+import com.google.solutions.gcsuploader.Constants;
+
+/**
+ * ReadAhead
+ *
+ * Reads files ahead of the transfers that send them, so that within a transfer
+ * the disk and the network work at once rather than in turn. Each device files
+ * are read from has readers of its own, one unless set otherwise, which fill
+ * pooled buffers for every transfer on that device and hand them over through
+ * a queue per transfer. A transfer's reads run up to READ_AHEAD_BUFFERS ahead of
+ * its writes. A reader stays with one transfer for READ_AHEAD_EXTENT_BYTES before
+ * moving on to the next, so that the concurrent slices of a file on a spinning
+ * disk or NFS are read in long sequential runs rather than seeking between
+ * slices on every buffer.
+ *
+ * Readers count the time they spend reading, and transfers the time they wait
+ * for reads and the time they spend writing, which tells whether the disk or
+ * the network holds a run back.
+ */
+public class ReadAhead {
+
+    // mark the end of a transfer's reads in its queue
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer FAILED = ByteBuffer.allocate(0);
+
+    private final BufferPool pool;
+    private final int readersPerDevice;
+    private final Map<String, Device> devices = new ConcurrentHashMap<String, Device>();
+    // looking up a file's device reads the mount table, so it is done once per directory
+    private final Map<Path, Device> directories = new ConcurrentHashMap<Path, Device>();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param poolBuffers buffers shared by every device's readers, allocated as
+     *                    needed.
+     */
+    public ReadAhead(int readersPerDevice, int poolBuffers) {
+        this.readersPerDevice = readersPerDevice;
+        this.pool = new BufferPool(poolBuffers, Constants.IO_BUFFER_SIZE);
+    }
+
+    /**
+     * The device a file is on, whose readers read it.
+     */
+    public Device deviceOf(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        return this.directories.computeIfAbsent(directory, key -> {
+            String name;
+            try {
+                name = Files.getFileStore(file).name();
+            } catch (IOException e) {
+                name = "unknown";
+            }
+            return this.devices.computeIfAbsent(name, Device::new);
+        });
+    }
+
+    /**
+     * Devices read from so far.
+     */
+    public Collection<Device> getDevices() {
+        return new ArrayList<Device>(this.devices.values());
+    }
+
+    /**
+     * Time transfers have spent waiting for reads, across every transfer.
+     */
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.sum());
+    }
+
+    /**
+     * Time transfers have spent writing, including waiting for the rate limit,
+     * across every transfer.
+     */
+    public long getWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.writeNanos.sum());
+    }
+
+    /**
+     * Stops the readers. Transfers still reading fail.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        for (Device device : this.devices.values()) {
+            for (Thread reader : device.readers) {
+                reader.interrupt();
+            }
+        }
+    }
+
+    /**
+     * A device and its readers, which take turns among the transfers on it that
+     * have room for more buffers.
+     */
+    public class Device {
+        private final String name;
+        private final List<Thread> readers = new ArrayList<Thread>();
+        private final BlockingQueue<Stream> ready = new LinkedBlockingQueue<Stream>();
+        private final LongAdder readNanos = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+
+        private Device(String name) {
+            this.name = name;
+            int number = devices.size();
+            for (int idx = 0; idx < readersPerDevice; idx++) {
+                Thread reader = new Thread(this::read, "read-" + number + "-" + idx);
+                reader.setDaemon(true);
+                reader.start();
+                this.readers.add(reader);
+            }
+        }
+
+        /**
+         * Starts reading range from position, for one transfer.
+         */
+        Stream open(FileChannel source, SliceRange range, long position) {
+            Stream stream = new Stream(this, source, range, position);
+            this.ready.add(stream);
+            return stream;
+        }
+
+        private void read() {
+            try {
+                while (!shutdown) {
+                    this.ready.take().readExtent();
+                }
+            } catch (InterruptedException e) {
+                // shut down
+            }
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public int getReaders() {
+            return this.readers.size();
+        }
+
+        /**
+         * Time readers have spent reading, across every reader.
+         */
+        public long getBusyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.readNanos.sum());
+        }
+
+        public long getBytesRead() {
+            return this.bytesRead.sum();
+        }
+    }
+
+    /**
+     * One transfer's reads: buffers filled in order, waiting to be written. While
+     * it is queued for a reader, or being read, no other reader takes it, so its
+     * buffers come in file order.
+     */
+    class Stream {
+        private final Device device;
+        private final FileChannel source;
+        private final SliceRange range;
+        private final BlockingQueue<ByteBuffer> filled = new LinkedBlockingQueue<ByteBuffer>();
+        // only used by the reader that has the stream
+        private long position;
+        // guarded by this: buffers filled and not yet recycled, or being read into
+        private int held = 0;
+        private boolean queued = true;
+        private boolean finished = false;
+        private boolean closed = false;
+        private IOException error = null;
+
+        private Stream(Device device, FileChannel source, SliceRange range, long position) {
+            this.device = device;
+            this.source = source;
+            this.range = range;
+            this.position = position;
+        }
+
+        /**
+         * Reads up to an extent's worth of buffers, then goes to the back of the
+         * queue if it still has room for more.
+         */
+        private void readExtent() throws InterruptedException {
+            long extent = 0;
+            while (extent < Constants.READ_AHEAD_EXTENT_BYTES) {
+                synchronized (this) {
+                    if (this.closed || this.finished || this.held >= Constants.READ_AHEAD_BUFFERS) {
+                        this.queued = false;
+                        return;
+                    }
+                    this.held++;
+                }
+                ByteBuffer buffer;
+                try {
+                    buffer = pool.acquire();
+                } catch (InterruptedException e) {
+                    finish(FAILED, new InterruptedIOException("Reader stopped"));
+                    throw e;
+                }
+                try {
+                    // the bytes read ahead are claimed, so a split cannot take them
+                    int claimed = this.range.claim(this.position, buffer.capacity());
+                    if (claimed == 0) {
+                        pool.release(buffer);
+                        finish(END, null);
+                        return;
+                    }
+                    buffer.limit(claimed);
+                    long start = System.nanoTime();
+                    int read = this.source.read(buffer, this.position);
+                    this.device.readNanos.add(System.nanoTime() - start);
+                    if (read < 0) {
+                        throw new EOFException("File ended at " + this.position + ", expected " + this.range.getEnd());
+                    }
+                    this.device.bytesRead.add(read);
+                    this.position += read;
+                    extent += read;
+                    buffer.flip();
+                } catch (IOException e) {
+                    pool.release(buffer);
+                    finish(FAILED, e);
+                    return;
+                }
+                synchronized (this) {
+                    if (this.closed) {
+                        this.held--;
+                        this.queued = false;
+                        pool.release(buffer);
+                        return;
+                    }
+                    this.filled.add(buffer);
+                }
+            }
+            synchronized (this) {
+                if (wantsRead()) {
+                    this.device.ready.add(this);
+                } else {
+                    this.queued = false;
+                }
+            }
+        }
+
+        private synchronized void finish(ByteBuffer marker, IOException error) {
+            this.held--;
+            this.queued = false;
+            this.finished = true;
+            this.error = error;
+            this.filled.add(marker);
+        }
+
+        private boolean wantsRead() {
+            return !this.closed && !this.finished && this.held < Constants.READ_AHEAD_BUFFERS;
+        }
+
+        /**
+         * The next buffer read, waiting for it if need be, or null at the end of
+         * the range. Each buffer taken goes back through written().
+         */
+        ByteBuffer take() throws IOException {
+            long start = System.nanoTime();
+            ByteBuffer buffer;
+            try {
+                buffer = this.filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a read");
+            }
+            waitNanos.add(System.nanoTime() - start);
+            if (buffer == END || buffer == FAILED) {
+                // leave the marker for any later take
+                this.filled.add(buffer);
+                if (buffer == FAILED) {
+                    throw new IOException("Error reading", this.error);
+                }
+                return null;
+            }
+            return buffer;
+        }
+
+        /**
+         * Returns a buffer once written, which was being written since startNanos,
+         * and lets the stream read another in its place.
+         */
+        void written(ByteBuffer buffer, long startNanos) {
+            writeNanos.add(System.nanoTime() - startNanos);
+            pool.release(buffer);
+            synchronized (this) {
+                this.held--;
+                if (!this.queued && wantsRead()) {
+                    this.queued = true;
+                    this.device.ready.add(this);
+                }
+            }
+        }
+
+        /**
+         * Stops reading, and returns the buffers read and not taken.
+         */
+        void close() {
+            synchronized (this) {
+                this.closed = true;
+            }
+            ByteBuffer buffer;
+            while ((buffer = this.filled.poll()) != null) {
+                if (buffer != END && buffer != FAILED) {
+                    pool.release(buffer);
+                }
+            }
+        }
+    }
+}
@@ -16,22 +16,27 @@
 
 package com.google.solutions.gcsuploader.uploaders;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
-import com.google.common.io.ByteStreams;
+import com.google.cloud.storage.StorageException;
 
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.BlockCompressor;
+import com.google.solutions.gcsuploader.CRC32CMath;
 import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.UploadContext;
 
 /**
  * SimpleUpload
@@ -43,41 +48,106 @@ public class SimpleUpload implements Uploader {
     public Boolean success = false;
     public BlobInfo blobInfo = null;
     public String crc32c = null;
-    private static Storage storage = null;
+    public String computedCrc32c = null;
+    private UploadContext context = null;
+    private Storage storage = null;
+    private long bytes = 0;
 
-    static {
-        storage = StorageOptions.getDefaultInstance().getService();
+    public SimpleUpload(String bucketName, String fileName, UploadContext context) {
+        this(bucketName, fileName, new File(fileName).length(), context);
     }
 
-    public SimpleUpload(String bucketName, String fileName){
+    /**
+     * For callers that already know the file's size, which ranks it in the pool.
+     */
+    public SimpleUpload(String bucketName, String fileName, long bytes, UploadContext context) {
         this.bucketName = bucketName;
         this.fileName = fileName;
+        this.bytes = bytes;
+        this.context = context;
+        this.storage = context.getStorage();
     }
 
-    public void run() {
-        Path inputPath = FileSystems.getDefault().getPath(this.fileName);
+    public CompletableFuture<Void> start() {
         BlobInfo blobInfo = createBlobInfo(this.fileName);
-        
-        try (WriteChannel writer = storage.writer(blobInfo);
-                OutputStream os = Channels.newOutputStream(writer);
-                InputStream is = Files.newInputStream(inputPath)) {
-            writer.setChunkSize(Constants.CHUNK_SIZE);
-            ByteStreams.copy(is, os);
-        } catch (IOException e) {
-            throw new RuntimeException("Error while loading " + fileName + " to GCS", e);
+        Executor io = this.context.getIoExecutor();
+        return this.context.getRetryPolicy().retryAsync(() -> upload(blobInfo), SimpleUpload::isRetryable,
+                (failedAttempts, e) -> System.err.println(this.fileName + ": Upload failed, retrying: " + e),
+                this.context.getIoExecutor().ranked(this.bytes))
+                .thenAcceptAsync(checksum -> {
+                    this.blobInfo = blobInfo;
+                    this.computedCrc32c = CRC32CMath.encode(checksum);
+                    long getStart = System.nanoTime();
+                    this.crc32c = this.storage.get(blobInfo.getBlobId()).getCrc32c();
+                    this.context.getMetrics().histogram("get").recordSince(getStart);
+                    this.success = true;
+                }, io);
+    }
+
+    /**
+     * Whether a failed request is worth trying again: I/O errors other than
+     * interruption, and errors from GCS.
+     */
+    public static boolean isRetryable(Throwable e) {
+        return (e instanceof IOException && !(e instanceof InterruptedIOException)) || e instanceof StorageException;
+    }
+
+    private int upload(BlobInfo blobInfo) throws IOException {
+        Path inputPath = FileSystems.getDefault().getPath(this.fileName);
+        BandwidthGovernor governor = this.context.getGovernor();
+        // hash the bytes on their way to the writer, rather than reading the file twice
+        try (FileChannel input = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+            // the writer buffers up to a chunk, or the whole file if smaller
+            int chunkSize = this.context.getChunkSize();
+            int reserved = governor.reserveBuffer(Math.min(input.size(), chunkSize));
+            try {
+                ReadAhead.Device device = this.context.getReadAhead().deviceOf(inputPath);
+                WriteChannel writer = this.storage.writer(blobInfo);
+                writer.setChunkSize(chunkSize);
+                // closing the writer creates the object, so after a failure it is left
+                // open, and the object's last good version stands
+                TimedWriteChannel timed = new TimedWriteChannel(writer, chunkSize,
+                        this.context.getMetrics().histogram("chunk.write"));
+                BlockCompressor compressor = this.context.getCompressor();
+                if (compressor == null) {
+                    int crc32c = SliceReader.copy(input, device, 0, input.size(), timed, governor);
+                    timed.close();
+                    return crc32c;
+                }
+                // the object holds the compressed bytes, so that is what is hashed
+                CompressingChannel compressing = new CompressingChannel(timed, compressor,
+                        this.context.getMetrics());
+                boolean copied = false;
+                try {
+                    SliceReader.copy(input, device, 0, input.size(), compressing, governor);
+                    copied = true;
+                } finally {
+                    if (!copied) {
+                        compressing.abandon();
+                    }
+                }
+                compressing.close();
+                return compressing.getCrc32c();
+            } finally {
+                governor.releaseBuffer(reserved);
+            }
         }
-        this.blobInfo = blobInfo;
-        this.crc32c = storage.get(blobInfo.getBlobId()).getCrc32c();
-        this.success = true;
     }
 
     private BlobInfo createBlobInfo(String key) {
         BlobId blobId = BlobId.of(this.bucketName, key);
         BlobInfo.Builder builder = BlobInfo.newBuilder(blobId);
+        if (this.context.getCompressor() != null) {
+            builder.setContentEncoding(BlockCompressor.CONTENT_ENCODING);
+        }
         return builder.build();
     }
 
     public String getCrc32c() {
         return this.crc32c;
     }
+
+    public String getComputedCrc32c() {
+        return this.computedCrc32c;
+    }
 }
\ No newline at end of file
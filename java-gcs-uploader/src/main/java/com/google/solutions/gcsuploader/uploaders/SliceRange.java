@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+/**
+ * SliceRange
+ *
+ * The bytes of a file that a slice uploads, whose end can move in while the
+ * slice runs. The reader claims each buffer's worth before reading it, and a
+ * split only gives away bytes not yet claimed, so no byte is sent by both the
+ * slice and the one split off it. Callers that must do more while the end is
+ * fixed, such as recording a split, hold the range's lock.
+ */
+class SliceRange {
+
+    private final long start;
+    private long claimed;
+    private long end;
+
+    SliceRange(long start, long end) {
+        this.start = start;
+        this.claimed = start;
+        this.end = end;
+    }
+
+    long getStart() {
+        return this.start;
+    }
+
+    synchronized long getEnd() {
+        return this.end;
+    }
+
+    synchronized long getLength() {
+        return this.end - this.start;
+    }
+
+    /**
+     * Claims up to max bytes from position, where the reader has got to, and
+     * returns how many it may read; 0 once it is at the end.
+     */
+    synchronized int claim(long position, int max) {
+        int bytes = (int) Math.min(max, Math.max(0, this.end - position));
+        this.claimed = position + bytes;
+        return bytes;
+    }
+
+    /**
+     * Bytes not yet claimed.
+     */
+    synchronized long remaining() {
+        return this.end - this.claimed;
+    }
+
+    /**
+     * Where to split what is not yet claimed in half, or -1 if either half
+     * would be smaller than minBytes.
+     */
+    synchronized long splitPoint(long minBytes) {
+        long unclaimed = this.end - this.claimed;
+        if (unclaimed < minBytes * 2) {
+            return -1;
+        }
+        return this.claimed + unclaimed / 2;
+    }
+
+    /**
+     * Ends the range at a split point.
+     */
+    synchronized void cut(long at) {
+        if (at < this.claimed || at > this.end) {
+            throw new IllegalArgumentException("Cannot cut at " + at + ", claimed to " + this.claimed);
+        }
+        this.end = at;
+    }
+}
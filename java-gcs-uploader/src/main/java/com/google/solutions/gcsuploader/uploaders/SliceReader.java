@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+
+/**
+ * SliceReader
+ *
+ * Copies a range of a file to a channel from buffers filled ahead by the file's
+ * device readers, hashing the bytes on the way through. Reads are positional
+ * and do not move the channel position, so one FileChannel can serve every
+ * slice of a file.
+ */
+class SliceReader {
+
+    /**
+     * Told how far a copy has got after each buffer is written.
+     */
+    interface Progress {
+        void copied(long bytes, int crc32c) throws IOException;
+    }
+
+    private SliceReader() {
+    }
+
+    /**
+     * Copies length bytes at start of source, read by device's readers, to
+     * target, and returns their CRC32C.
+     */
+    static int copy(FileChannel source, ReadAhead.Device device, long start, long length,
+            WritableByteChannel target, BandwidthGovernor governor) throws IOException {
+        return copy(source, device, start, length, target, governor, null);
+    }
+
+    /**
+     * Copies length bytes at start of source to target, and returns their CRC32C.
+     * Each write first takes its bytes from the governor's rate limiter.
+     * progress, if not null, is given the running byte count and checksum.
+     */
+    static int copy(FileChannel source, ReadAhead.Device device, long start, long length,
+            WritableByteChannel target, BandwidthGovernor governor, Progress progress) throws IOException {
+        return copy(source, device, new SliceRange(start, start + length), start, target, governor, progress);
+    }
+
+    /**
+     * Copies range from position to its end, which may move in while copying,
+     * and returns the CRC32C of the bytes copied.
+     */
+    static int copy(FileChannel source, ReadAhead.Device device, SliceRange range, long position,
+            WritableByteChannel target, BandwidthGovernor governor, Progress progress) throws IOException {
+        CRC32C checksum = new CRC32C();
+        ReadAhead.Stream reads = device.open(source, range, position);
+        try {
+            long copied = 0;
+            ByteBuffer buffer;
+            while ((buffer = reads.take()) != null) {
+                long writeStart = System.nanoTime();
+                try {
+                    int read = buffer.remaining();
+                    // hash, then rewind and send the same bytes
+                    checksum.update(buffer);
+                    buffer.rewind();
+                    governor.acquire(read);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    copied += read;
+                } finally {
+                    reads.written(buffer, writeStart);
+                }
+                if (progress != null) {
+                    progress.copied(copied, (int) checksum.getValue());
+                }
+            }
+        } finally {
+            reads.close();
+        }
+        return (int) checksum.getValue();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobWriteOption;
+
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.BlockCompressor;
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.UploadContext;
+
+/**
+ * SmallUpload
+ *
+ * Uploads a small file in one multipart request. A resumable session costs a
+ * round trip to open and SimpleUpload needs another to fetch the checksum; for
+ * files of a few hundred KB those round trips are most of the time. Here the
+ * file is read into memory and hashed, the checksum is sent with the object so
+ * GCS rejects a corrupted body, and the stored checksum comes back in the create
+ * response. With compression on, the file goes as a single gzip member.
+ */
+public class SmallUpload implements Uploader {
+
+    public String bucketName = null;
+    public String fileName = null;
+    public Boolean success = false;
+    public BlobInfo blobInfo = null;
+    public String crc32c = null;
+    public String computedCrc32c = null;
+    private UploadContext context = null;
+    private Storage storage = null;
+    private long bytes = 0;
+
+    public SmallUpload(String bucketName, String fileName, UploadContext context) {
+        this(bucketName, fileName, new File(fileName).length(), context);
+    }
+
+    /**
+     * For callers that already know the file's size, which ranks it in the pool.
+     */
+    public SmallUpload(String bucketName, String fileName, long bytes, UploadContext context) {
+        this.bucketName = bucketName;
+        this.fileName = fileName;
+        this.bytes = bytes;
+        this.context = context;
+        this.storage = context.getStorage();
+    }
+
+    public CompletableFuture<Void> start() {
+        return this.context.getRetryPolicy().retryAsync(this::upload, SimpleUpload::isRetryable,
+                (failedAttempts, e) -> System.err.println(this.fileName + ": Upload failed, retrying: " + e),
+                this.context.getSmallFileExecutor().ranked(this.bytes))
+                .thenAccept(blob -> {
+                    this.blobInfo = blob;
+                    this.crc32c = blob.getCrc32c();
+                    this.success = true;
+                });
+    }
+
+    @SuppressWarnings("deprecation")
+    private Blob upload() throws IOException {
+        BandwidthGovernor governor = this.context.getGovernor();
+        try (FileChannel input = FileChannel.open(Paths.get(this.fileName), StandardOpenOption.READ)) {
+            int size = (int) input.size();
+            int reserved = governor.reserveBuffer(size);
+            try {
+                byte[] content = new byte[size];
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    if (input.read(buffer, buffer.position()) < 0) {
+                        throw new EOFException(this.fileName + " shrank while being read");
+                    }
+                }
+                BlobInfo.Builder blobInfoBuilder = BlobInfo.newBuilder(BlobId.of(this.bucketName, this.fileName));
+                // a small file is one block, compressed here rather than on the pool
+                BlockCompressor compressor = this.context.getCompressor();
+                if (compressor != null) {
+                    long compressStart = System.nanoTime();
+                    content = BlockCompressor.gzip(content, size, compressor.getLevel());
+                    this.context.getMetrics().histogram("compress").recordSince(compressStart);
+                    this.context.getMetrics().counter("compress.bytes.in").add(size);
+                    this.context.getMetrics().counter("compress.bytes.out").add(content.length);
+                    blobInfoBuilder.setContentEncoding(BlockCompressor.CONTENT_ENCODING);
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(content, 0, content.length);
+                this.computedCrc32c = CRC32CMath.encode((int) crc.getValue());
+
+                BlobInfo blobInfo = blobInfoBuilder.setCrc32c(this.computedCrc32c).build();
+                governor.acquire(content.length);
+                // The stream create is the one that sends our checksum as given; the
+                // byte[] create hashes the content again itself. It is deprecated only
+                // because the library does not retry it, and retryAsync does.
+                long createStart = System.nanoTime();
+                Blob blob = this.storage.create(blobInfo, new ByteArrayInputStream(content),
+                        BlobWriteOption.crc32cMatch());
+                this.context.getMetrics().histogram("create").recordSince(createStart);
+                return blob;
+            } finally {
+                governor.releaseBuffer(reserved);
+            }
+        }
+    }
+
+    public String getCrc32c() {
+        return this.crc32c;
+    }
+
+    public String getComputedCrc32c() {
+        return this.computedCrc32c;
+    }
+}
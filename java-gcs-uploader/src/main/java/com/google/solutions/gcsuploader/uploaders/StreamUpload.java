@@ -0,0 +1,452 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.BandwidthGovernor;
+import com.google.solutions.gcsuploader.BlockCompressor;
+import com.google.solutions.gcsuploader.BufferPool;
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+
+/**
+ * StreamUpload
+ *
+ * Uploads input of unknown length, such as stdin or a named pipe, as a composite
+ * object. A reader thread fills a bounded ring of pooled buffers; each run of
+ * filled buffers is a segment, uploaded as a slice while the reader goes on to
+ * the next, and the slices are composed once the input ends. A segment keeps its
+ * buffers until its slice is uploaded, so a failed attempt is sent again from
+ * memory, and the reader waits for buffers when the ring is full, so memory use
+ * does not grow with the input. Segments double in size every
+ * STREAM_SEGMENTS_PER_SIZE segments, up to half the ring, so that long input
+ * still fits in MAX_SLICES slices. Input that ends within the first segment is
+ * written straight to the object. Checksums are taken per segment as it is read
+ * and combined in order; with compression on, they are taken of each segment's
+ * gzip members as they are sent.
+ */
+public class StreamUpload implements Uploader {
+
+    public String bucketName = null;
+    public String objectName = null;
+    public Boolean success = false;
+    public BlobInfo blobInfo = null;
+    public String crc32c = null;
+    public String computedCrc32c = null;
+    public long bytes = 0;
+    private final ReadableByteChannel input;
+    private final UploadContext context;
+    private final Storage storage;
+    private final BufferPool ring;
+    private final int ringBuffers;
+    private final int maxSegmentBuffers;
+    // set when a segment fails for good or the input cannot be read, so the rest stop early
+    private final AtomicBoolean aborted = new AtomicBoolean();
+    // added to by the reader only, and read once it is done
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    public StreamUpload(String bucketName, String objectName, ReadableByteChannel input, UploadContext context) {
+        this.bucketName = bucketName;
+        this.objectName = objectName;
+        this.input = input;
+        this.context = context;
+        this.storage = context.getStorage();
+        long ringBytes = context.getGovernor().getMaxBufferedBytes() / 2;
+        this.ringBuffers = (int) Math.max(2, ringBytes / Constants.STREAM_BUFFER_SIZE);
+        this.maxSegmentBuffers = Math.max(1, this.ringBuffers / 2);
+        this.ring = new BufferPool(this.ringBuffers, Constants.STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * How many ring buffers make up the segment at index, given the most one may
+     * take.
+     */
+    public static int segmentBuffers(int index, int maxSegmentBuffers) {
+        int doublings = Math.min(30, index / Constants.STREAM_SEGMENTS_PER_SIZE);
+        return (int) Math.min(1L << doublings, maxSegmentBuffers);
+    }
+
+    public String getCrc32c() {
+        return this.crc32c;
+    }
+
+    public String getComputedCrc32c() {
+        return this.computedCrc32c;
+    }
+
+    private void print(String message) {
+        System.out.println(this.objectName + ": " + message);
+    }
+
+    /**
+     * Reads the input on a thread of its own, since reads from a pipe block for as
+     * long as the writer takes, and uploads segments on the I/O pool as they fill.
+     */
+    public CompletableFuture<Void> start() {
+        BandwidthGovernor governor = this.context.getGovernor();
+        int reserved;
+        try {
+            // the ring is held for the whole upload, so take its memory up front,
+            // leaving at least a writer's chunk for the segments
+            long ringBytes = (long) this.ringBuffers * Constants.STREAM_BUFFER_SIZE;
+            reserved = governor.reserveBuffer(Math.max(0,
+                    Math.min(ringBytes, governor.getMaxBufferedBytes() - Constants.STREAM_BUFFER_SIZE)));
+        } catch (InterruptedIOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<Void>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        print("Streaming in segments of up to " + this.maxSegmentBuffers * (long) Constants.STREAM_BUFFER_SIZE
+                + " bytes, through a ring of " + this.ringBuffers + " buffers.");
+
+        CompletableFuture<Void> read = new CompletableFuture<Void>();
+        Thread reader = new Thread(() -> {
+            try {
+                readSegments();
+                read.complete(null);
+            } catch (Throwable e) {
+                abort();
+                read.completeExceptionally(e);
+            }
+        }, "stream-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        Executor io = this.context.getIoExecutor();
+        return read.handle((done, readError) -> readError)
+                .thenCompose(readError -> awaitSegments(readError))
+                .thenCompose(fileCrc32c -> compose(fileCrc32c))
+                .whenCompleteAsync((done, error) -> governor.releaseBuffer(reserved), io);
+    }
+
+    /**
+     * Fills segments from the input until it ends, starting each one's upload as
+     * soon as it is full.
+     */
+    private void readSegments() throws IOException {
+        while (true) {
+            int index = this.segments.size();
+            Segment segment = new Segment(index);
+            boolean more = segment.fill(segmentBuffers(index, this.maxSegmentBuffers));
+            if (segment.length == 0 && index > 0) {
+                // the input ended on a segment boundary
+                segment.release();
+                break;
+            }
+            if (index >= Constants.MAX_SLICES) {
+                segment.release();
+                throw new IOException("Input is longer than " + this.bytes + " bytes, the most that fits in "
+                        + Constants.MAX_SLICES + " slices with this buffer memory; raise --max-buffered");
+            }
+            this.bytes += segment.length;
+            // input that ends within the first segment needs no compose
+            segment.info = index == 0 && !more ? createObjectInfo()
+                    : createSliceInfo(this.objectName + "_chunk_" + index);
+            this.segments.add(segment);
+            upload(segment);
+            if (!more) {
+                break;
+            }
+        }
+        print("Read " + this.bytes + " bytes in " + this.segments.size() + " segments.");
+    }
+
+    /**
+     * Uploads a segment, retrying from its buffers, and gives the buffers back to
+     * the ring once it has succeeded or failed for good.
+     */
+    private void upload(Segment segment) {
+        Executor io = this.context.getIoExecutor();
+        segment.result = this.context.getRetryPolicy().retryAsync(segment, SimpleUpload::isRetryable,
+                (failedAttempts, e) -> System.err.println(this.objectName + ": Segment " + segment.info.getName()
+                        + " failed attempt " + failedAttempts + ", retrying: " + e), io)
+                .whenComplete((segmentCrc32c, error) -> {
+                    segment.release();
+                    if (error != null) {
+                        abort();
+                    }
+                });
+    }
+
+    /**
+     * Waits for every segment that was started to finish, then returns the CRC32C
+     * of the whole input, combined from the segment checksums.
+     */
+    private CompletableFuture<Integer> awaitSegments(Throwable readError) {
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        for (Segment segment : this.segments) {
+            results.add(segment.result);
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).handleAsync((done, error) -> {
+            // a failed segment stops the reader too, so report the segment's failure
+            Throwable cause = error != null ? error : readError;
+            if (cause != null) {
+                print("Stream upload failed, aborting.");
+                if (!this.segments.isEmpty() && isSlice(this.segments.get(0))) {
+                    this.context.getCleaner().deleteLater(this.bucketName, sliceNames());
+                }
+                throw new CompletionException(
+                        new IOException("Upload of " + this.objectName + " aborted", RetryPolicy.unwrap(cause)));
+            }
+            int fileCrc32c = results.get(0).join();
+            for (int idx = 1; idx < results.size(); idx++) {
+                fileCrc32c = CRC32CMath.combine(fileCrc32c, results.get(idx).join(),
+                        this.segments.get(idx).sentBytes);
+            }
+            return fileCrc32c;
+        }, this.context.getIoExecutor());
+    }
+
+    /**
+     * Composes the slices into the object, or, if the input fit in one segment
+     * written to the object itself, fetches its checksum.
+     */
+    private CompletableFuture<Void> compose(int fileCrc32c) {
+        this.computedCrc32c = CRC32CMath.encode(fileCrc32c);
+        Segment first = this.segments.get(0);
+        if (!isSlice(first)) {
+            return CompletableFuture.runAsync(() -> {
+                long getStart = System.nanoTime();
+                this.blobInfo = this.storage.get(first.info.getBlobId());
+                this.context.getMetrics().histogram("get").recordSince(getStart);
+                this.crc32c = this.blobInfo.getCrc32c();
+                this.success = true;
+            }, this.context.getIoExecutor());
+        }
+
+        print("Composing " + this.segments.size() + " segments.");
+        List<String> sliceNames = sliceNames();
+        ComposeTree tree = new ComposeTree(this.bucketName, this.objectName, this.context);
+        if (this.context.getCompressor() != null) {
+            tree.setContentEncoding(BlockCompressor.CONTENT_ENCODING);
+        }
+        return tree.compose(sliceNames)
+                .whenComplete((finalBlob, error) -> this.context.getCleaner().deleteLater(this.bucketName,
+                        sliceNames))
+                .thenAccept(finalBlob -> {
+                    print("Stream upload complete.");
+                    this.blobInfo = finalBlob;
+                    this.crc32c = finalBlob.getCrc32c();
+                    this.success = true;
+                });
+    }
+
+    private boolean isSlice(Segment segment) {
+        return !segment.info.getName().equals(this.objectName);
+    }
+
+    private List<String> sliceNames() {
+        List<String> names = new ArrayList<String>();
+        for (Segment segment : this.segments) {
+            names.add(segment.info.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Stops the reader and any segments not yet sent. Closing the input wakes a
+     * reader blocked on a pipe that has gone quiet.
+     */
+    private void abort() {
+        if (this.aborted.compareAndSet(false, true)) {
+            try {
+                this.input.close();
+            } catch (IOException e) {
+                // nothing more will be read
+            }
+        }
+    }
+
+    private BlobInfo createObjectInfo() {
+        BlobInfo.Builder builder = BlobInfo.newBuilder(BlobId.of(this.bucketName, this.objectName));
+        if (this.context.getCompressor() != null) {
+            builder.setContentEncoding(BlockCompressor.CONTENT_ENCODING);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Slices are tagged with the object they belong to, as CompositeUpload does,
+     * so the sweeper can find them if the upload never finishes.
+     */
+    private BlobInfo createSliceInfo(String key) {
+        BlobId blobId = BlobId.of(this.bucketName, key);
+        BlobInfo.Builder builder = BlobInfo.newBuilder(blobId);
+        builder.setMetadata(Collections.singletonMap(Constants.SLICE_METADATA_KEY, this.objectName));
+        return builder.build();
+    }
+
+    /**
+     * A run of ring buffers holding consecutive bytes of the input, and the slice
+     * they are uploaded to.
+     */
+    private class Segment implements Callable<Integer> {
+        private final int index;
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private long length = 0;
+        private int crc32c = 0;
+        // bytes the slice holds, which differ from length when compressed
+        private volatile long sentBytes = 0;
+        private BlobInfo info = null;
+        private CompletableFuture<Integer> result = null;
+
+        Segment(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Reads up to count buffers' worth of input, hashing each buffer as it
+         * fills. Returns false if the input ended.
+         */
+        boolean fill(int count) throws IOException {
+            CRC32C checksum = new CRC32C();
+            try {
+                for (int idx = 0; idx < count; idx++) {
+                    ByteBuffer buffer = acquire();
+                    this.buffers.add(buffer);
+                    boolean ended = false;
+                    while (buffer.hasRemaining() && !ended) {
+                        ended = input.read(buffer) < 0;
+                    }
+                    buffer.flip();
+                    this.length += buffer.remaining();
+                    checksum.update(buffer.duplicate());
+                    if (ended) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                this.crc32c = (int) checksum.getValue();
+            }
+        }
+
+        private ByteBuffer acquire() throws IOException {
+            checkAborted();
+            ByteBuffer buffer;
+            try {
+                buffer = ring.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a buffer");
+            }
+            if (aborted.get()) {
+                ring.release(buffer);
+                checkAborted();
+            }
+            return buffer;
+        }
+
+        /**
+         * Makes one attempt at sending the segment from its buffers, returning its
+         * CRC32C.
+         */
+        @Override
+        public Integer call() throws IOException {
+            checkAborted();
+            BandwidthGovernor governor = context.getGovernor();
+            Metrics metrics = context.getMetrics();
+            System.out.println(objectName + ": Uploading segment of " + this.length + " bytes to "
+                    + this.info.getName() + ".");
+            // the writer buffers a chunk, one ring buffer, before sending it
+            int reserved = governor.reserveBuffer(Math.min(this.length, Constants.STREAM_BUFFER_SIZE));
+            long sliceStart = System.nanoTime();
+            int sentCrc32c;
+            try {
+                WriteChannel writer = storage.writer(this.info);
+                writer.setChunkSize(Constants.STREAM_BUFFER_SIZE);
+                // closing the writer creates the object, which for a single segment is
+                // the target itself, so it is left open if sending fails
+                TimedWriteChannel timed = new TimedWriteChannel(writer, Constants.STREAM_BUFFER_SIZE,
+                        metrics.histogram("chunk.write"));
+                BlockCompressor compressor = context.getCompressor();
+                if (compressor == null) {
+                    send(timed, governor);
+                    timed.close();
+                    this.sentBytes = this.length;
+                    sentCrc32c = this.crc32c;
+                } else {
+                    CompressingChannel compressing = new CompressingChannel(timed, compressor, metrics);
+                    boolean sent = false;
+                    try {
+                        send(compressing, governor);
+                        sent = true;
+                    } finally {
+                        if (!sent) {
+                            compressing.abandon();
+                        }
+                    }
+                    compressing.close();
+                    this.sentBytes = compressing.getWritten();
+                    sentCrc32c = compressing.getCrc32c();
+                }
+            } finally {
+                governor.releaseBuffer(reserved);
+            }
+            metrics.recordSlice(this.info.getName(), sliceStart);
+            return sentCrc32c;
+        }
+
+        private void send(WritableByteChannel target, BandwidthGovernor governor) throws IOException {
+            for (ByteBuffer buffer : this.buffers) {
+                checkAborted();
+                // duplicates leave the buffers as they are for another attempt
+                ByteBuffer send = buffer.duplicate();
+                governor.acquire(send.remaining());
+                while (send.hasRemaining()) {
+                    target.write(send);
+                }
+            }
+        }
+
+        void release() {
+            for (ByteBuffer buffer : this.buffers) {
+                ring.release(buffer);
+            }
+            this.buffers.clear();
+        }
+
+        private void checkAborted() {
+            if (aborted.get()) {
+                throw new CancellationException("Upload of " + objectName + " aborted");
+            }
+        }
+    }
+}
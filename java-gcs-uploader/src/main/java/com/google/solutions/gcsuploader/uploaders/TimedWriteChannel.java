@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.google.solutions.gcsuploader.metrics.Histogram;
+
+/**
+ * TimedWriteChannel
+ *
+ * Passes writes through to a resumable writer, timing those that send a chunk.
+ * The writer buffers a chunk and sends it from inside the write that fills the
+ * buffer, so a write that crosses a chunk boundary lasts a request; the last,
+ * partial chunk goes on close.
+ */
+class TimedWriteChannel implements WritableByteChannel {
+
+    // the writer rounds its chunk size up to a multiple of this
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+    private final WritableByteChannel writer;
+    private final long chunkSize;
+    private final Histogram chunkWrites;
+    private long written = 0;
+
+    TimedWriteChannel(WritableByteChannel writer, int chunkSize, Histogram chunkWrites) {
+        this.writer = writer;
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, (chunkSize + MIN_CHUNK_SIZE - 1L) / MIN_CHUNK_SIZE * MIN_CHUNK_SIZE);
+        this.chunkWrites = chunkWrites;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        long start = System.nanoTime();
+        int bytes = this.writer.write(source);
+        long before = this.written;
+        this.written += bytes;
+        if (before / this.chunkSize != this.written / this.chunkSize) {
+            this.chunkWrites.recordSince(start);
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.writer.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.writer.isOpen()) {
+            return;
+        }
+        long start = System.nanoTime();
+        this.writer.close();
+        this.chunkWrites.recordSince(start);
+    }
+}
@@ -16,11 +16,27 @@
 
 package com.google.solutions.gcsuploader.uploaders;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Uploader
  */
-public interface Uploader extends Runnable{
+public interface Uploader {
+
+    /**
+     * Starts the upload, returning a future that completes once the object is in
+     * GCS. The upload's stages run on the context's I/O pool; none of them wait.
+     */
+    public CompletableFuture<Void> start();
 
+    /**
+     * CRC32C of the object, as reported by GCS.
+     */
     public String getCrc32c();
+
+    /**
+     * CRC32C of the bytes read from disk, computed while they were uploaded.
+     */
+    public String getComputedCrc32c();
     
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.TestCase;
+
+public class ByteBudgetTest extends TestCase {
+
+    public void testGrantsAtOnceWhileBytesAreLeft() {
+        ByteBudget budget = new ByteBudget(100);
+        CompletableFuture<Long> grant = budget.acquire(60);
+        assertTrue(grant.isDone());
+        assertEquals(60L, (long) grant.join());
+        assertEquals(40, budget.getAvailable());
+    }
+
+    public void testAdmitsWaitersInOrder() {
+        ByteBudget budget = new ByteBudget(100);
+        budget.acquire(90);
+        CompletableFuture<Long> large = budget.acquire(50);
+        // would fit, but waits behind the larger request
+        CompletableFuture<Long> small = budget.acquire(5);
+        assertFalse(large.isDone());
+        assertFalse(small.isDone());
+
+        budget.release(90);
+        assertEquals(50L, (long) large.join());
+        assertEquals(5L, (long) small.join());
+        assertEquals(45, budget.getAvailable());
+    }
+
+    public void testReleaseAdmitsOnlyWhatFits() {
+        ByteBudget budget = new ByteBudget(100);
+        budget.acquire(100);
+        CompletableFuture<Long> first = budget.acquire(70);
+        CompletableFuture<Long> second = budget.acquire(70);
+        budget.release(100);
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        budget.release(70);
+        assertTrue(second.isDone());
+    }
+
+    public void testRequestLargerThanBudgetGetsAllOfIt() {
+        ByteBudget budget = new ByteBudget(100);
+        CompletableFuture<Long> huge = budget.acquire(500);
+        assertEquals(100L, (long) huge.join());
+        CompletableFuture<Long> next = budget.acquire(1);
+        assertFalse(next.isDone());
+        budget.release(huge.join());
+        assertTrue(next.isDone());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class CRC32CMathTest extends TestCase {
+
+    public void testCombineMatchesChecksumOfWhole() {
+        byte[] data = TestFiles.randomBytes(200 * 1000, 1);
+        int whole = TestFiles.crc32c(data, 0, data.length);
+        for (int split : new int[] { 0, 1, 7, 4096, 65537, data.length - 1, data.length }) {
+            int first = TestFiles.crc32c(data, 0, split);
+            int second = TestFiles.crc32c(data, split, data.length - split);
+            assertEquals("split at " + split, whole, CRC32CMath.combine(first, second, data.length - split));
+        }
+    }
+
+    public void testCombineFoldsManyParts() {
+        byte[] data = TestFiles.randomBytes(1000 * 1000, 2);
+        int parts = 37;
+        int partBytes = data.length / parts;
+        int combined = 0;
+        for (int part = 0; part < parts; part++) {
+            int from = part * partBytes;
+            int to = part == parts - 1 ? data.length : from + partBytes;
+            int crc = TestFiles.crc32c(data, from, to - from);
+            combined = part == 0 ? crc : CRC32CMath.combine(combined, crc, to - from);
+        }
+        assertEquals(TestFiles.crc32c(data, 0, data.length), combined);
+    }
+
+    public void testEncodesAsGcsDoes() {
+        // the standard check value, 0xE3069283, big-endian in base64
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("4waSgw==", CRC32CMath.encode(TestFiles.crc32c(check, 0, check.length)));
+    }
+
+    public void testDecodeReversesEncode() {
+        for (int crc : new int[] { 0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0xE3069283 }) {
+            assertEquals(crc, CRC32CMath.decode(CRC32CMath.encode(crc)));
+        }
+    }
+}
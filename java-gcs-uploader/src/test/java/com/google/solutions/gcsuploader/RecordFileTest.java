@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class RecordFileTest extends TestCase {
+
+    private static final int MAGIC = 0x47435354; // "GCST"
+    private static final RecordFile.Format<Long> FORMAT = new RecordFile.Format<Long>() {
+        @Override
+        public Long read(DataInputStream in) throws IOException {
+            return in.readLong();
+        }
+
+        @Override
+        public void write(DataOutputStream out, Long record) throws IOException {
+            out.writeLong(record);
+        }
+    };
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("record-file-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testReadsWhatWasWritten() throws IOException {
+        Path path = this.directory.resolve("nested").resolve("records");
+        Map<String, Long> written = new HashMap<String, Long>();
+        written.put("a", 1L);
+        written.put("b", Long.MAX_VALUE);
+        new RecordFile<Long>(path, MAGIC, 1, FORMAT, "bucket", "prefix").write(written);
+
+        Map<String, Long> read = new HashMap<String, Long>();
+        assertTrue(new RecordFile<Long>(path, MAGIC, 1, FORMAT, "bucket", "prefix").read(read));
+        assertEquals(written, read);
+        assertFalse(Files.exists(path.resolveSibling("records.tmp")));
+    }
+
+    public void testReadsNothingWrittenForOthers() throws IOException {
+        Path path = this.directory.resolve("records");
+        Map<String, Long> written = new HashMap<String, Long>();
+        written.put("a", 1L);
+        new RecordFile<Long>(path, MAGIC, 1, FORMAT, "bucket", "prefix").write(written);
+
+        Map<String, Long> read = new HashMap<String, Long>();
+        assertFalse(new RecordFile<Long>(path, MAGIC, 1, FORMAT, "bucket", "other").read(read));
+        assertFalse(new RecordFile<Long>(path, MAGIC, 2, FORMAT, "bucket", "prefix").read(read));
+        assertFalse(new RecordFile<Long>(path, MAGIC + 1, 1, FORMAT, "bucket", "prefix").read(read));
+        assertTrue(read.isEmpty());
+    }
+
+    public void testReadsAMissingFileAsEmpty() throws IOException {
+        Map<String, Long> read = new HashMap<String, Long>();
+        assertTrue(new RecordFile<Long>(this.directory.resolve("missing"), MAGIC, 1, FORMAT).read(read));
+        assertTrue(read.isEmpty());
+    }
+}
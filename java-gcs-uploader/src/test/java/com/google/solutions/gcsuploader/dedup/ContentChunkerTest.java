@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.dedup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.solutions.gcsuploader.TestFiles;
+
+public class ContentChunkerTest extends TestCase {
+
+    private static final long AVERAGE = 16 * 1024;
+
+    private Path directory;
+
+    /**
+     * A chunk as the chunker reported it.
+     */
+    private static class Chunk {
+        final long start;
+        final long length;
+        final String sha256;
+        final int crc32c;
+
+        Chunk(long start, long length, String sha256, int crc32c) {
+            this.start = start;
+            this.length = length;
+            this.sha256 = sha256;
+            this.crc32c = crc32c;
+        }
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("chunker-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testChunksCoverFileInOrder() throws IOException {
+        byte[] data = TestFiles.randomBytes(2 * 1000 * 1000, 1);
+        List<Chunk> chunks = scan(data, Integer.MAX_VALUE);
+        long position = 0;
+        for (int idx = 0; idx < chunks.size(); idx++) {
+            Chunk chunk = chunks.get(idx);
+            assertEquals(position, chunk.start);
+            assertTrue(chunk.length <= AVERAGE * 4);
+            if (idx < chunks.size() - 1) {
+                assertTrue(chunk.length >= AVERAGE / 4);
+            }
+            assertEquals(TestFiles.crc32c(data, (int) chunk.start, (int) chunk.length), chunk.crc32c);
+            position += chunk.length;
+        }
+        assertEquals(data.length, position);
+        // sizes average out near the target
+        long mean = data.length / chunks.size();
+        assertTrue("mean chunk " + mean, mean > AVERAGE / 2 && mean < AVERAGE * 2);
+    }
+
+    public void testSameBytesGiveSameChunks() throws IOException {
+        byte[] data = TestFiles.randomBytes(1000 * 1000, 2);
+        List<Chunk> first = scan(data, Integer.MAX_VALUE);
+        List<Chunk> second = scan(data, Integer.MAX_VALUE);
+        assertEquals(first.size(), second.size());
+        for (int idx = 0; idx < first.size(); idx++) {
+            assertEquals(first.get(idx).start, second.get(idx).start);
+            assertEquals(first.get(idx).sha256, second.get(idx).sha256);
+        }
+    }
+
+    public void testBoundariesSurviveAnInsertion() throws IOException {
+        byte[] data = TestFiles.randomBytes(2 * 1000 * 1000, 3);
+        byte[] inserted = TestFiles.randomBytes(100, 4);
+        int at = 300 * 1000;
+        byte[] edited = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, edited, 0, at);
+        System.arraycopy(inserted, 0, edited, at, inserted.length);
+        System.arraycopy(data, at, edited, at + inserted.length, data.length - at);
+
+        List<Chunk> before = scan(data, Integer.MAX_VALUE);
+        Set<String> after = new HashSet<String>();
+        for (Chunk chunk : scan(edited, Integer.MAX_VALUE)) {
+            after.add(chunk.sha256);
+        }
+        int changed = 0;
+        for (Chunk chunk : before) {
+            if (!after.contains(chunk.sha256)) {
+                changed++;
+            }
+        }
+        // only the chunks around the insertion differ, not every one after it
+        assertTrue(changed + " of " + before.size() + " chunks changed", changed > 0 && changed <= 3);
+    }
+
+    public void testLastAllowedChunkTakesTheRest() throws IOException {
+        byte[] data = TestFiles.randomBytes(1000 * 1000, 5);
+        List<Chunk> chunks = scan(data, 3);
+        assertEquals(3, chunks.size());
+        Chunk last = chunks.get(2);
+        assertEquals(data.length, last.start + last.length);
+        assertTrue(last.length > AVERAGE * 4);
+    }
+
+    public void testAverageMustBePowerOfTwo() {
+        try {
+            new ContentChunker(3000);
+            fail("Chunker accepted an average that is not a power of two");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private List<Chunk> scan(byte[] data, int maxChunks) throws IOException {
+        Path file = Files.write(Files.createTempFile(this.directory, "data", ".bin"), data);
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            int count = new ContentChunker(AVERAGE).scan(input, data.length, maxChunks,
+                    (start, length, sha256, crc32c) -> chunks.add(new Chunk(start, length, sha256, crc32c)));
+            assertEquals(chunks.size(), count);
+        }
+        return chunks;
+    }
+}
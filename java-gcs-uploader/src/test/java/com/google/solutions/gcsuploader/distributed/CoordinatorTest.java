@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.distributed;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.TestCase;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.FileSource;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+
+public class CoordinatorTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+    private static final int LARGE_BYTES = (int) Constants.SLICED_THRESHOLD + 1024 * 1024;
+    private static final long LEASE_MILLIS = 10 * 1000;
+
+    private Path directory;
+    private final List<UploadContext> contexts = new ArrayList<UploadContext>();
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("coordinator-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        for (UploadContext context : this.contexts) {
+            context.shutdown();
+        }
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testWorkersUploadEveryFile() throws Exception {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().setFailureRate(0.05).setSeed(3).build();
+        Path files = Files.createDirectories(this.directory.resolve("files"));
+        List<byte[]> contents = new ArrayList<byte[]>();
+        List<Path> paths = new ArrayList<Path>();
+        for (int idx = 0; idx < 10; idx++) {
+            byte[] data = TestFiles.randomBytes(1000 * (idx + 1), idx);
+            contents.add(data);
+            paths.add(Files.write(files.resolve("small-" + idx), data));
+        }
+        byte[] large = TestFiles.randomBytes(LARGE_BYTES, 10);
+        contents.add(large);
+        paths.add(Files.write(files.resolve("large"), large));
+        Path work = this.directory.resolve("work");
+
+        List<CompletableFuture<Boolean>> workers = new ArrayList<CompletableFuture<Boolean>>();
+        for (String name : new String[] {"worker-a", "worker-b"}) {
+            Worker worker = new Worker(work, name, context(fake), LEASE_MILLIS);
+            workers.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return worker.run(BUCKET);
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        Coordinator coordinator = new Coordinator(BUCKET, work, context(fake));
+        FileSource feed = new FileSource(Collections.singletonList(files.toString()),
+                Collections.<String>emptyList(), ',').start();
+
+        assertTrue(coordinator.run(feed));
+        assertEquals(paths.size(), coordinator.getFilesSucceeded());
+        for (CompletableFuture<Boolean> worker : workers) {
+            assertTrue(worker.join());
+        }
+        fake.setFailureRate(0);
+        Storage storage = fake.getOptions().getService();
+        for (int idx = 0; idx < paths.size(); idx++) {
+            byte[] data = contents.get(idx);
+            Blob blob = storage.get(BlobId.of(BUCKET, paths.get(idx).toString()));
+            assertEquals(CRC32CMath.encode(TestFiles.crc32c(data, 0, data.length)), blob.getCrc32c());
+        }
+    }
+
+    private UploadContext context(FakeStorageRpc fake) {
+        UploadContext context = UploadContext.newBuilder()
+                .setStorage(fake.getOptions().getService())
+                .setConnections(4)
+                .setSlices(4)
+                .setRetryPolicy(new RetryPolicy(20, 1, 20))
+                .build();
+        this.contexts.add(context);
+        return context;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.distributed;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.solutions.gcsuploader.TestFiles;
+
+public class WorkManifestTest extends TestCase {
+
+    private static final long LEASE_MILLIS = 60 * 1000;
+
+    private Path directory;
+    private WorkManifest manifest;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("manifest-test");
+        WorkManifest planned = WorkManifest.create(this.directory, "test-bucket");
+        planned.addWhole("small", "/data/small", 1000, 1);
+        planned.addComposite("large", "/data/large", 3000, 2, Arrays.asList(0L, 1000L, 2000L));
+        planned.save();
+        this.manifest = WorkManifest.open(this.directory);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testOpensWhatWasSaved() {
+        assertEquals("test-bucket", this.manifest.getBucketName());
+        assertEquals(2, this.manifest.getFiles().size());
+        assertEquals(4, this.manifest.getTasks().size());
+        WorkManifest.Task last = this.manifest.getTasks().get(3);
+        assertEquals("large_chunk_2", last.objectName());
+        assertEquals(2000, last.start);
+        assertEquals(3000, last.end);
+    }
+
+    public void testReadsEachResultOnce() throws IOException {
+        WorkManifest.Task first = task(0);
+        WorkManifest.Task second = task(1);
+        complete(first, "worker-a", 11);
+        List<WorkManifest.Result> results = this.manifest.newResults();
+        assertEquals(1, results.size());
+        assertEquals(first.id, results.get(0).taskId);
+        assertEquals("worker-a", results.get(0).worker);
+        assertEquals(11, results.get(0).crc32c);
+        assertTrue(this.manifest.newResults().isEmpty());
+
+        complete(second, "worker-b", 22);
+        results = this.manifest.newResults();
+        assertEquals(1, results.size());
+        assertEquals(second.id, results.get(0).taskId);
+        assertEquals("worker-b", results.get(0).worker);
+        assertTrue(this.manifest.isDone(first));
+        assertTrue(this.manifest.isDone(second));
+        assertFalse(this.manifest.isDone(task(2)));
+    }
+
+    public void testSkipsAndOverwritesATornRecord() throws IOException {
+        // as a worker that stopped mid-write leaves its log
+        Files.write(this.directory.resolve("results").resolve("worker-a"), new byte[7],
+                StandardOpenOption.CREATE_NEW);
+        assertTrue(this.manifest.newResults().isEmpty());
+
+        complete(task(2), "worker-a", 33);
+        List<WorkManifest.Result> results = this.manifest.newResults();
+        assertEquals(1, results.size());
+        assertEquals(2, results.get(0).taskId);
+        assertEquals(33, results.get(0).crc32c);
+    }
+
+    public void testTakesOverAnExpiredLease() throws IOException {
+        WorkManifest.Task task = task(1);
+        assertNull(this.manifest.lease(task));
+        WorkManifest.Lease first = this.manifest.tryLease(task, null, "worker-a", LEASE_MILLIS);
+        assertNotNull(first);
+        // the lease file exists, so a worker that looked before it did gets nothing
+        assertNull(this.manifest.tryLease(task, null, "worker-b", LEASE_MILLIS));
+        WorkManifest.Lease current = this.manifest.lease(task);
+        assertEquals("worker-a", current.worker);
+        assertNull(this.manifest.tryLease(task, current, "worker-b", LEASE_MILLIS));
+
+        WorkManifest.Lease second = this.manifest.tryLease(task, current, "worker-b", 0);
+        assertEquals(1, second.number);
+        assertFalse(this.manifest.renew(first));
+        assertTrue(this.manifest.renew(second));
+        assertEquals("worker-b", this.manifest.lease(task).worker);
+    }
+
+    public void testIgnoresFailuresOfLostLeasesAndDoneTasks() throws IOException {
+        WorkManifest.Task task = task(2);
+        WorkManifest.Lease first = this.manifest.tryLease(task, null, "worker-a", LEASE_MILLIS);
+        WorkManifest.Lease second = this.manifest.tryLease(task, first, "worker-b", 0);
+        this.manifest.fail(task, first, "lost its lease");
+        assertTrue(this.manifest.failures().isEmpty());
+
+        this.manifest.fail(task, second, "could not read");
+        WorkManifest.Failure failure = this.manifest.failures().get(task.id);
+        assertEquals("worker-b", failure.worker);
+        assertEquals("could not read", failure.message);
+
+        this.manifest.complete(task, second, task.getLength(), 0);
+        assertTrue(this.manifest.failures().isEmpty());
+    }
+
+    private WorkManifest.Task task(int id) {
+        return this.manifest.getTasks().get(id);
+    }
+
+    private void complete(WorkManifest.Task task, String worker, int crc32c) throws IOException {
+        WorkManifest.Lease lease = this.manifest.tryLease(task, null, worker, LEASE_MILLIS);
+        this.manifest.complete(task, lease, task.getLength(), crc32c);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.downloaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+import com.google.solutions.gcsuploader.journal.FileJournal;
+import com.google.solutions.gcsuploader.journal.UploadJournal;
+
+public class CompositeDownloadTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+    private static final int OBJECT_BYTES = 4 * 1024 * 1024;
+    private static final int SLICES = 8;
+
+    private Path directory;
+    private UploadJournal journal;
+    private FakeStorageRpc fake;
+    private UploadContext context;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("download-test");
+        this.journal = new UploadJournal(this.directory.resolve("journal"));
+        this.fake = FakeStorageRpc.newBuilder().setRetainData(true).setSeed(3).build();
+        this.context = UploadContext.newBuilder()
+                .setStorage(this.fake.getOptions().getService())
+                .setConnections(4)
+                .setSlices(SLICES)
+                .setChunkSize(256 * 1024)
+                .setRetryPolicy(new RetryPolicy(20, 1, 20))
+                .setJournal(this.journal)
+                .build();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        this.context.shutdown();
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testDownloadsUnderInjectedFailures() throws IOException {
+        byte[] data = TestFiles.randomBytes(OBJECT_BYTES, 1);
+        this.context.getStorage().create(BlobInfo.newBuilder(BUCKET, "object").build(), data);
+        this.fake.setFailureRate(0.2);
+        Path target = this.directory.resolve("target");
+
+        CompositeDownload download = new CompositeDownload(BUCKET, "object", target, this.context);
+        download.start().join();
+
+        assertTrue("no failures were injected", this.fake.getFailures() > 0);
+        assertEquals(download.getCrc32c(), download.getComputedCrc32c());
+        assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+        assertFalse(this.journal.forDownload(BUCKET, "object", target.toString()).exists());
+    }
+
+    public void testResumesFromJournal() throws IOException {
+        Storage storage = this.context.getStorage();
+        byte[] data = TestFiles.randomBytes(OBJECT_BYTES, 2);
+        Blob blob = storage.create(BlobInfo.newBuilder(BUCKET, "object").build(), data);
+        int sliceBytes = OBJECT_BYTES / SLICES;
+
+        long before = this.fake.getRequests();
+        new CompositeDownload(BUCKET, "object", this.directory.resolve("whole"), this.context).start().join();
+        long wholeRequests = this.fake.getRequests() - before;
+
+        // as a stopped download leaves it: the first slice on disk, the rest not
+        Path target = this.directory.resolve("resumed");
+        try (FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            output.write(ByteBuffer.wrap(data, 0, sliceBytes), 0);
+            output.write(ByteBuffer.wrap(new byte[1]), OBJECT_BYTES - 1);
+        }
+        FileJournal fileJournal = this.journal.forDownload(BUCKET, "object", target.toString());
+        fileJournal.saveLayout(OBJECT_BYTES, blob.getGeneration(), SLICES);
+        fileJournal.complete(0, sliceBytes, TestFiles.crc32c(data, 0, sliceBytes));
+
+        before = this.fake.getRequests();
+        CompositeDownload download = new CompositeDownload(BUCKET, "object", target, this.context);
+        download.start().join();
+
+        assertEquals(download.getCrc32c(), download.getComputedCrc32c());
+        assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+        assertTrue("the done slice was read again", this.fake.getRequests() - before < wholeRequests);
+    }
+}
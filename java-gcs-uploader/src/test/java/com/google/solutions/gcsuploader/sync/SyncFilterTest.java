@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.sync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.FileSource;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+
+public class SyncFilterTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+
+    private Path directory;
+    private Path files;
+    private Storage storage;
+    private SyncIndex index;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("sync-test");
+        this.files = Files.createDirectories(this.directory.resolve("files"));
+        this.storage = FakeStorageRpc.newBuilder().build().getOptions().getService();
+        this.index = SyncIndex.load(this.directory.resolve("index"), BUCKET);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testPassesOnOnlyFilesThatDiffer() throws Exception {
+        byte[] same = TestFiles.randomBytes(3000, 1);
+        upload(TestFiles.random(this.files, "same", 3000, 1), same);
+        upload(TestFiles.random(this.files, "resized", 3000, 2), TestFiles.randomBytes(2000, 2));
+        upload(TestFiles.random(this.files, "edited", 3000, 3), TestFiles.randomBytes(3000, 4));
+        TestFiles.random(this.files, "new", 3000, 5);
+
+        Set<String> passed = filter(false);
+
+        assertEquals(names("resized", "edited", "new"), passed);
+        assertNotNull(this.index.get(this.files.resolve("same").toString()));
+        assertNull(this.index.get(this.files.resolve("edited").toString()));
+    }
+
+    public void testIndexSkipsUnchangedFilesUnlessCheckingRemote() throws Exception {
+        Path file = TestFiles.random(this.files, "indexed", 3000, 6);
+        this.index.put(file.toString(), 3000, Files.getLastModifiedTime(file).toMillis(), 0);
+
+        assertTrue(filter(false).isEmpty());
+        // the object is missing, whatever the index says
+        assertEquals(names("indexed"), filter(true));
+    }
+
+    private void upload(Path file, byte[] data) {
+        this.storage.create(BlobInfo.newBuilder(BUCKET, file.toString()).build(), data);
+    }
+
+    private Set<String> filter(boolean checkRemote) throws InterruptedException {
+        FileSource source = new FileSource(Collections.singletonList(this.files.toString()),
+                Collections.<String>emptyList(), ',').start();
+        SyncFilter filter = new SyncFilter(source, this.storage, BUCKET, this.index, checkRemote).start();
+        Set<String> passed = new HashSet<String>();
+        FileSource.Entry entry;
+        while ((entry = filter.next()) != null) {
+            passed.add(entry.fileName);
+        }
+        return passed;
+    }
+
+    private Set<String> names(String... names) {
+        Set<String> paths = new HashSet<String>();
+        for (String name : names) {
+            paths.add(this.files.resolve(name).toString());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+
+public class ComposeTreeTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+
+    private UploadContext context;
+
+    @Override
+    protected void tearDown() {
+        if (this.context != null) {
+            this.context.shutdown();
+        }
+    }
+
+    public void testComposesMoreSourcesThanOneRequestTakes() {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().setRetainData(true).setSeed(11).build();
+        Storage storage = fake.getOptions().getService();
+        this.context = UploadContext.newBuilder()
+                .setStorage(storage)
+                .setConnections(4)
+                .setRetryPolicy(new RetryPolicy(20, 1, 20))
+                .build();
+
+        // a level of intermediates, the last of them composed from fewer sources
+        int sourceCount = Constants.MAX_COMPOSE_SOURCES * 4 + 5;
+        List<String> sources = new ArrayList<String>();
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        for (int idx = 0; idx < sourceCount; idx++) {
+            byte[] data = TestFiles.randomBytes(100 + idx % 17, idx);
+            String name = "whole_chunk_" + idx;
+            storage.create(BlobInfo.newBuilder(BUCKET, name).build(), data);
+            sources.add(name);
+            whole.write(data, 0, data.length);
+        }
+        fake.setFailureRate(0.1);
+
+        Blob blob = new ComposeTree(BUCKET, "whole", this.context).compose(sources).join();
+        fake.setFailureRate(0);
+        this.context.getCleaner().await();
+
+        byte[] expected = whole.toByteArray();
+        assertTrue("no failures were injected", fake.getFailures() > 0);
+        assertEquals(CRC32CMath.encode(TestFiles.crc32c(expected, 0, expected.length)), blob.getCrc32c());
+        assertTrue(Arrays.equals(expected, storage.readAllBytes(BlobId.of(BUCKET, "whole"))));
+        // the sources are left, the intermediates deleted
+        int left = 0;
+        for (Blob object : storage.list(BUCKET).iterateAll()) {
+            assertFalse(object.getName(), object.getName().startsWith("whole_compose_"));
+            left++;
+        }
+        assertEquals(sourceCount + 1, left);
+    }
+}
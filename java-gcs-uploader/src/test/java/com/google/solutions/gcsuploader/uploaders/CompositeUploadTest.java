@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import junit.framework.TestCase;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+import com.google.solutions.gcsuploader.journal.FileJournal;
+import com.google.solutions.gcsuploader.journal.UploadJournal;
+
+public class CompositeUploadTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int FILE_BYTES = 8 * 1024 * 1024;
+    private static final int SLICES = 8;
+
+    private Path directory;
+    private UploadJournal journal;
+    private UploadContext context;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("composite-test");
+        this.journal = new UploadJournal(this.directory.resolve("journal"));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        if (this.context != null) {
+            this.context.shutdown();
+        }
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testRetriesInjectedFailures() throws IOException {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().setFailureRate(0.2).setSeed(7).build();
+        this.context = context(fake, 20);
+        byte[] data = TestFiles.randomBytes(FILE_BYTES, 1);
+        Path file = Files.write(this.directory.resolve("retried"), data);
+
+        CompositeUpload upload = new CompositeUpload(BUCKET, file.toString(), this.context);
+        upload.start().join();
+
+        assertTrue("no failures were injected", fake.getFailures() > 0);
+        String expected = CRC32CMath.encode(TestFiles.crc32c(data, 0, data.length));
+        assertEquals(expected, upload.getComputedCrc32c());
+        assertEquals(expected, upload.getCrc32c());
+        this.context.getCleaner().await();
+        // the listing itself is not retried
+        fake.setFailureRate(0);
+        assertEquals(1, objects(fake.getOptions().getService(), file.toString()).size());
+    }
+
+    public void testResumesFromJournal() throws IOException {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().build();
+        this.context = context(fake, 3);
+        Storage storage = fake.getOptions().getService();
+        byte[] data = TestFiles.randomBytes(FILE_BYTES, 2);
+        Path file = Files.write(this.directory.resolve("resumed"), data);
+        String fileName = file.toString();
+        int sliceBytes = FILE_BYTES / SLICES;
+
+        // as an interrupted run leaves it: slice 0 uploaded, slice 1 partly sent
+        FileJournal fileJournal = this.journal.forFile(BUCKET, fileName);
+        fileJournal.saveLayout(FILE_BYTES, Files.getLastModifiedTime(file).toMillis(), SLICES);
+        storage.create(BlobInfo.newBuilder(BUCKET, fileName + "_chunk_0").build(),
+                Arrays.copyOfRange(data, 0, sliceBytes));
+        fileJournal.complete(0, sliceBytes, TestFiles.crc32c(data, 0, sliceBytes));
+        int sent = 2 * CHUNK_SIZE;
+        WriteChannel writer = storage.writer(BlobInfo.newBuilder(BUCKET, fileName + "_chunk_1").build());
+        writer.setChunkSize(CHUNK_SIZE);
+        writer.write(ByteBuffer.wrap(data, sliceBytes, sent));
+        fileJournal.checkpoint(1, sent, TestFiles.crc32c(data, sliceBytes, sent), writer.capture());
+        long receivedBefore = fake.getBytesReceived();
+
+        CompositeUpload upload = new CompositeUpload(BUCKET, fileName, this.context);
+        upload.start().join();
+
+        String expected = CRC32CMath.encode(TestFiles.crc32c(data, 0, data.length));
+        assertEquals(expected, upload.getCrc32c());
+        assertEquals(expected, upload.getComputedCrc32c());
+        // only what the journal did not cover was sent again
+        assertEquals(FILE_BYTES - sliceBytes - sent, fake.getBytesReceived() - receivedBefore);
+        assertFalse(this.journal.forFile(BUCKET, fileName).exists());
+    }
+
+    public void testAbortDeletesWrittenSlices() throws Exception {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().setLatencyMillis(20).build();
+        this.context = context(fake, 10);
+        Storage storage = fake.getOptions().getService();
+        Path file = TestFiles.random(this.directory, "aborted", FILE_BYTES, 3);
+        String fileName = file.toString();
+
+        CompletableFuture<Void> result = new CompositeUpload(BUCKET, fileName, this.context).start();
+        // once some slices are written, every request fails, so the rest run out of retries
+        while (objects(storage, fileName + "_chunk_").size() < 2) {
+            Thread.sleep(5);
+        }
+        fake.setFailureRate(1);
+        try {
+            result.join();
+            fail("Upload succeeded with every request failing");
+        } catch (CompletionException e) {
+            // expected
+        }
+        fake.setFailureRate(0);
+        this.context.getCleaner().await();
+
+        assertEquals(0, objects(storage, fileName).size());
+        assertFalse(this.journal.forFile(BUCKET, fileName).exists());
+    }
+
+    public void testFailedComposeKeepsSlicesAndJournal() throws Exception {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().build();
+        this.context = context(fake, 2);
+        Storage storage = fake.getOptions().getService();
+        byte[] data = TestFiles.randomBytes(FILE_BYTES, 4);
+        Path file = Files.write(this.directory.resolve("uncomposed"), data);
+        String fileName = file.toString();
+        int sliceBytes = FILE_BYTES / SLICES;
+
+        // every slice is already uploaded, so compose is the only request
+        FileJournal fileJournal = this.journal.forFile(BUCKET, fileName);
+        fileJournal.saveLayout(FILE_BYTES, Files.getLastModifiedTime(file).toMillis(), SLICES);
+        for (int idx = 0; idx < SLICES; idx++) {
+            storage.create(BlobInfo.newBuilder(BUCKET, fileName + "_chunk_" + idx).build(),
+                    Arrays.copyOfRange(data, idx * sliceBytes, (idx + 1) * sliceBytes));
+            fileJournal.complete(idx, sliceBytes, TestFiles.crc32c(data, idx * sliceBytes, sliceBytes));
+        }
+        fake.setFailureRate(1);
+        try {
+            new CompositeUpload(BUCKET, fileName, this.context).start().join();
+            fail("Compose succeeded with every request failing");
+        } catch (CompletionException e) {
+            // expected
+        }
+        fake.setFailureRate(0);
+        this.context.getCleaner().await();
+
+        assertEquals(SLICES, objects(storage, fileName + "_chunk_").size());
+        assertTrue(this.journal.forFile(BUCKET, fileName).exists());
+
+        // a rerun composes what is there without sending the file again
+        long receivedBefore = fake.getBytesReceived();
+        CompositeUpload upload = new CompositeUpload(BUCKET, fileName, this.context);
+        upload.start().join();
+        assertEquals(CRC32CMath.encode(TestFiles.crc32c(data, 0, data.length)), upload.getCrc32c());
+        assertEquals(0, fake.getBytesReceived() - receivedBefore);
+        this.context.getCleaner().await();
+        assertEquals(1, objects(storage, fileName).size());
+        assertFalse(this.journal.forFile(BUCKET, fileName).exists());
+    }
+
+    private UploadContext context(FakeStorageRpc fake, int attempts) {
+        return UploadContext.newBuilder()
+                .setStorage(fake.getOptions().getService())
+                .setConnections(4)
+                .setSlices(SLICES)
+                .setChunkSize(CHUNK_SIZE)
+                .setRetryPolicy(new RetryPolicy(attempts, 1, 20))
+                .setJournal(this.journal)
+                .build();
+    }
+
+    private static List<String> objects(Storage storage, String prefix) {
+        List<String> names = new ArrayList<String>();
+        for (Blob blob : storage.list(BUCKET, Storage.BlobListOption.prefix(prefix)).iterateAll()) {
+            names.add(blob.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import com.google.solutions.gcsuploader.BlockCompressor;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+
+public class CompressingChannelTest extends TestCase {
+
+    private BlockCompressor compressor;
+
+    @Override
+    protected void setUp() {
+        this.compressor = new BlockCompressor(1, 2);
+    }
+
+    @Override
+    protected void tearDown() {
+        this.compressor.shutdown();
+    }
+
+    public void testClosesTheWriterOnceEverythingIsWritten() throws IOException {
+        byte[] data = TestFiles.randomBytes(Constants.COMPRESS_BLOCK_SIZE * 3 + 5, 1);
+        Target target = new Target(Integer.MAX_VALUE);
+        CompressingChannel channel = new CompressingChannel(target, this.compressor, new Metrics());
+        channel.write(ByteBuffer.wrap(data));
+        channel.close();
+
+        assertFalse(target.isOpen());
+        byte[] written = target.bytes.toByteArray();
+        assertEquals(written.length, channel.getWritten());
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(written))) {
+            assertTrue(Arrays.equals(data, in.readAllBytes()));
+        }
+    }
+
+    public void testLeavesTheWriterOpenWhenAWriteFails() throws IOException {
+        byte[] data = TestFiles.randomBytes(Constants.COMPRESS_BLOCK_SIZE * 3, 2);
+        Target target = new Target(1);
+        CompressingChannel channel = new CompressingChannel(target, this.compressor, new Metrics());
+        channel.write(ByteBuffer.wrap(data));
+        try {
+            channel.close();
+            fail("the failed write was not reported");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // closed, the writer would have created an object from part of the stream
+        assertTrue(target.isOpen());
+        assertFalse(channel.isOpen());
+    }
+
+    /**
+     * Collects what is written, failing every write after the first writes.
+     */
+    private static class Target implements WritableByteChannel {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int writesLeft;
+        private boolean open = true;
+
+        Target(int writes) {
+            this.writesLeft = writes;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (this.writesLeft-- <= 0) {
+                throw new IOException("Injected failure");
+            }
+            int length = source.remaining();
+            byte[] copy = new byte[length];
+            source.get(copy);
+            this.bytes.write(copy);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+    }
+}
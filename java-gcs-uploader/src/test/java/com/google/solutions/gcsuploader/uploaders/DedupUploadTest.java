@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.dedup.ChunkIndex;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+
+public class DedupUploadTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+    private static final int FILE_BYTES = (int) Constants.DEDUP_CHUNK_BYTES * 6;
+
+    private Path directory;
+    private FakeStorageRpc fake;
+    private UploadContext context;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("dedup-test");
+        this.fake = FakeStorageRpc.newBuilder().build();
+        this.context = UploadContext.newBuilder()
+                .setStorage(this.fake.getOptions().getService())
+                .setConnections(4)
+                .setRetryPolicy(new RetryPolicy(3, 1, 20))
+                .setChunkIndex(ChunkIndex.load(this.directory.resolve("index"), BUCKET,
+                        Constants.DEFAULT_CHUNK_PREFIX))
+                .build();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        this.context.shutdown();
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testSendsOnlyChunksNotStored() throws IOException {
+        byte[] data = TestFiles.randomBytes(FILE_BYTES, 1);
+        upload("first", data);
+        long firstChunks = counter("dedup.chunks");
+        assertTrue(firstChunks > 1);
+        assertEquals(firstChunks, counter("dedup.chunks.sent"));
+
+        // the same bytes under another name send nothing
+        upload("copy", data);
+        assertEquals(firstChunks, counter("dedup.chunks.sent"));
+
+        // a change in the middle sends only the chunks around it
+        data[FILE_BYTES / 2] ^= 1;
+        upload("edited", data);
+        long sent = counter("dedup.chunks.sent") - firstChunks;
+        assertTrue(sent > 0);
+        assertTrue(sent < firstChunks);
+    }
+
+    public void testLooksUpChunksTheIndexListsButTheBucketLost() throws IOException {
+        byte[] data = TestFiles.randomBytes(FILE_BYTES, 2);
+        upload("first", data);
+        Storage storage = this.context.getStorage();
+        int chunks = 0;
+        for (Blob chunk : storage.list(BUCKET, Storage.BlobListOption.prefix(Constants.DEFAULT_CHUNK_PREFIX))
+                .iterateAll()) {
+            storage.delete(chunk.getBlobId());
+            chunks++;
+        }
+
+        // the compose fails on the missing chunks, and they are sent again
+        upload("again", data);
+        assertEquals(chunks * 2, counter("dedup.chunks.sent"));
+    }
+
+    private void upload(String name, byte[] data) throws IOException {
+        Path file = Files.write(this.directory.resolve(name), data);
+        DedupUpload upload = new DedupUpload(BUCKET, file.toString(), data.length, this.context);
+        upload.start().join();
+        String expected = CRC32CMath.encode(TestFiles.crc32c(data, 0, data.length));
+        assertEquals(expected, upload.getComputedCrc32c());
+        assertEquals(expected, upload.getCrc32c());
+    }
+
+    private long counter(String name) {
+        Map<String, Long> counters = this.context.getMetrics().getCounters();
+        return counters.getOrDefault(name, 0L);
+    }
+}
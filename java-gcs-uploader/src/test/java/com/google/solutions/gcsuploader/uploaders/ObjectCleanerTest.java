@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import com.google.solutions.gcsuploader.Constants;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+import com.google.solutions.gcsuploader.metrics.Metrics;
+
+public class ObjectCleanerTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() {
+        this.executor = Executors.newFixedThreadPool(2);
+    }
+
+    @Override
+    protected void tearDown() {
+        this.executor.shutdown();
+    }
+
+    public void testDeletesInBatchesDespiteFailures() {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().setSeed(11).build();
+        Storage storage = fake.getOptions().getService();
+        // more than two batches' worth
+        List<String> names = new ArrayList<String>();
+        for (int idx = 0; idx < Constants.DELETE_BATCH_SIZE * 2 + 50; idx++) {
+            String name = "slice-" + idx;
+            storage.create(BlobInfo.newBuilder(BUCKET, name).build(), new byte[] {(byte) idx});
+            names.add(name);
+        }
+        ObjectCleaner cleaner = new ObjectCleaner(storage, this.executor, new RetryPolicy(30, 1, 20),
+                new Metrics());
+
+        // one request per batch, so only a few to fail
+        fake.setFailureRate(0.5);
+        cleaner.deleteLater(BUCKET, names);
+        cleaner.await();
+        fake.setFailureRate(0);
+
+        assertTrue("no failures were injected", fake.getFailures() > 0);
+        assertEquals(0, cleaner.getFailed());
+        assertFalse(storage.list(BUCKET).iterateAll().iterator().hasNext());
+    }
+
+    public void testCountsObjectsAlreadyGoneAsDeleted() {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().build();
+        ObjectCleaner cleaner = new ObjectCleaner(fake.getOptions().getService(), this.executor,
+                new RetryPolicy(1, 1, 1), new Metrics());
+
+        cleaner.delete(BUCKET, Arrays.asList("never-written", "also-never-written")).join();
+
+        assertEquals(2, cleaner.getDeleted());
+        assertEquals(0, cleaner.getFailed());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import junit.framework.TestCase;
+
+public class SliceRangeTest extends TestCase {
+
+    public void testClaimStopsAtEnd() {
+        SliceRange range = new SliceRange(100, 200);
+        assertEquals(64, range.claim(100, 64));
+        assertEquals(36, range.remaining());
+        assertEquals(36, range.claim(164, 64));
+        assertEquals(0, range.claim(200, 64));
+        assertEquals(0, range.remaining());
+    }
+
+    public void testSplitPointHalvesWhatIsUnclaimed() {
+        SliceRange range = new SliceRange(0, 1000);
+        range.claim(0, 200);
+        assertEquals(600, range.splitPoint(100));
+        assertEquals(600, range.splitPoint(400));
+        // either half would be under the minimum
+        assertEquals(-1, range.splitPoint(401));
+    }
+
+    public void testCutEndsRange() {
+        SliceRange range = new SliceRange(0, 1000);
+        range.claim(0, 100);
+        range.cut(range.splitPoint(100));
+        assertEquals(550, range.getEnd());
+        assertEquals(550, range.getLength());
+        assertEquals(450, range.remaining());
+        assertEquals(50, range.claim(500, 100));
+        assertEquals(0, range.claim(550, 100));
+    }
+
+    public void testCannotCutWhatIsClaimed() {
+        SliceRange range = new SliceRange(0, 1000);
+        range.claim(0, 500);
+        try {
+            range.cut(400);
+            fail("Cut inside the claimed bytes");
+        } catch (IllegalArgumentException e) {
+            assertEquals(1000, range.getEnd());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.solutions.gcsuploader.uploaders;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.TestCase;
+
+import com.google.solutions.gcsuploader.CRC32CMath;
+import com.google.solutions.gcsuploader.RetryPolicy;
+import com.google.solutions.gcsuploader.TestFiles;
+import com.google.solutions.gcsuploader.UploadContext;
+import com.google.solutions.gcsuploader.fake.FakeStorageRpc;
+
+public class SmallUploadTest extends TestCase {
+
+    private static final String BUCKET = "test-bucket";
+
+    private Path directory;
+    private UploadContext context;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("small-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        if (this.context != null) {
+            this.context.shutdown();
+        }
+        TestFiles.deleteRecursively(this.directory);
+    }
+
+    public void testRetriesInjectedFailures() throws IOException {
+        FakeStorageRpc fake = FakeStorageRpc.newBuilder().setFailureRate(0.3).setSeed(5).build();
+        this.context = UploadContext.newBuilder()
+                .setStorage(fake.getOptions().getService())
+                .setSmallFileConnections(8)
+                .setRetryPolicy(new RetryPolicy(30, 1, 20))
+                .build();
+
+        List<byte[]> contents = new ArrayList<byte[]>();
+        List<SmallUpload> uploads = new ArrayList<SmallUpload>();
+        List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+        for (int idx = 0; idx < 20; idx++) {
+            byte[] data = TestFiles.randomBytes(1000 * (idx + 1), idx);
+            Path file = Files.write(this.directory.resolve("file-" + idx), data);
+            SmallUpload upload = new SmallUpload(BUCKET, file.toString(), this.context);
+            contents.add(data);
+            uploads.add(upload);
+            results.add(upload.start());
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+
+        assertTrue("no failures were injected", fake.getFailures() > 0);
+        for (int idx = 0; idx < uploads.size(); idx++) {
+            byte[] data = contents.get(idx);
+            String expected = CRC32CMath.encode(TestFiles.crc32c(data, 0, data.length));
+            assertEquals(expected, uploads.get(idx).getComputedCrc32c());
+            assertEquals(expected, uploads.get(idx).getCrc32c());
+        }
+    }
+}
@@ -21,7 +21,8 @@ function usage(){
     echo >&2
     echo "Usage: $0 BUCKET_NAME" >&2
     echo >&2
-    echo "Uploads ../sampleblob to BUCKET_NAME with a series of different chunk sizes." >&2
+    echo "Uploads ../sampleblob to BUCKET_NAME with a series of different chunk sizes (MB)." >&2
+    echo "Build the uploader first with 'mvn package' in ../java-gcs-uploader." >&2
     echo >&2
     echo "Arguments:" >&2
     echo "  BUCKET_NAME     The bucket to use for the tests." >&2
@@ -31,11 +32,11 @@ function usage(){
 
 BUCKET=${1?$(usage)}
 OBJECT="../sampleblob"
-UPLOADER="../java-gcs-uploader/target/java-gcs-uploader-1.0-SNAPSHOT-jar-with-dependencies.jar"
+UPLOADER="../java-gcs-uploader/target/gcsuploader.jar"
 
 for i in 1 2 5 10 15 20 25 30 35 40 50 60 70 80 90 100; do
     for _ in {1..3}; do
-        $UPLOADER $BUCKET $OBJECT $i
+        java -jar "$UPLOADER" -b "$BUCKET" --chunk-size "$i" "$OBJECT"
         sleep 2
     done
 done
\ No newline at end of file
@@ -0,0 +1,82 @@
+#!/usr/bin/env bash
+
+# Copyright 2019 Google Inc. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+set -euo pipefail
+
+# Display script usage
+function usage(){
+    echo >&2
+    echo "Usage: $0 WORKERS FILE|DIR..." >&2
+    echo >&2
+    echo "Runs a distributed upload on this host, a coordinator and WORKERS workers each in its own JVM," >&2
+    echo "against a fake GCS they share through a temporary directory. The first worker is killed partway" >&2
+    echo "through, so its leases expire and the others take its tasks over." >&2
+    echo "Build the uploader first with 'mvn package' in ../java-gcs-uploader." >&2
+    echo >&2
+    echo "Arguments:" >&2
+    echo "  WORKERS         The number of workers to start." >&2
+    echo "  FILE|DIR        Files to upload, big enough to be sliced." >&2
+    echo >&2
+    echo "Environment:" >&2
+    echo "  UPLOADER_CMD    Command to run the uploader with. Default 'java -jar' on the built jar." >&2
+    echo "  LEASE           Seconds a lease lasts without renewal. Default 5." >&2
+    echo "  KILL_AFTER      Seconds before the first worker is killed. Default 5." >&2
+    echo "  STREAM_MBPS     Fake GCS rate of one transfer in Mb/s. Default 200." >&2
+    echo >&2
+}
+
+WORKERS=${1?$(usage)}
+shift
+if [ $# -eq 0 ]; then
+    usage
+    exit 1
+fi
+UPLOADER_CMD=${UPLOADER_CMD:-java -jar ../java-gcs-uploader/target/gcsuploader.jar}
+LEASE=${LEASE:-5}
+KILL_AFTER=${KILL_AFTER:-5}
+STREAM_MBPS=${STREAM_MBPS:-200}
+
+WORK=$(mktemp -d)
+MANIFEST="$WORK/manifest"
+COMMON=(-b fake-bucket --fake --fake-dir "$WORK/fake" --fake-stream-bandwidth "$STREAM_MBPS" --no-tune)
+echo "Logs, manifest and fake bucket in $WORK"
+
+# shellcheck disable=SC2086
+$UPLOADER_CMD "${COMMON[@]}" --coordinate "$MANIFEST" "$@" > "$WORK/coordinator.log" 2>&1 &
+COORDINATOR=$!
+
+PIDS=()
+for i in $(seq 1 "$WORKERS"); do
+    # shellcheck disable=SC2086
+    $UPLOADER_CMD "${COMMON[@]}" --work "$MANIFEST" --worker-name "worker-$i" --lease "$LEASE" \
+        > "$WORK/worker-$i.log" 2>&1 &
+    PIDS+=($!)
+done
+
+sleep "$KILL_AFTER"
+echo "Killing worker-1"
+kill -9 "${PIDS[0]}" 2>/dev/null || true
+
+STATUS=0
+wait "$COORDINATOR" || STATUS=$?
+for pid in "${PIDS[@]:1}"; do
+    wait "$pid" || true
+done
+
+grep -h "Taking over" "$WORK"/worker-*.log || true
+grep -h "Tasks done" "$WORK"/worker-*.log || true
+tail -n 6 "$WORK/coordinator.log"
+exit "$STATUS"